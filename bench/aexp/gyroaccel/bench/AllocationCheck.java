@@ -0,0 +1,133 @@
+package aexp.gyroaccel.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import aexp.gyroaccel.engine.FusionEngine;
+import aexp.gyroaccel.engine.FusionListener;
+import aexp.gyroaccel.engine.SampleBlockProcessor;
+import aexp.gyroaccel.engine.SampleRing;
+
+/**
+ * Checks that the per-sample path of the sampling service allocates
+ * nothing in steady state: samples are put into a SampleRing one at a time
+ * like the sensor callback does, drained in blocks into a FusionEngine in
+ * measuring state, and every diff is requested and consumed. After a
+ * warmup the bytes allocated by the thread over MEASURED_ROUNDS passes of
+ * the stream must be zero; the process exits with 1 otherwise.
+ * <pre>
+ * AllocationCheck
+ * </pre>
+ */
+public class AllocationCheck {
+	public static final int STREAM_SIZE = 64 * 1024;
+	public static final int RING_CAPACITY = 8192;
+	public static final int BLOCK_SIZE = 256;
+	public static final int WARMUP_ROUNDS = 50;
+	public static final int MEASURED_ROUNDS = 20;
+
+	public static void main( String args[] ) {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if( !( bean instanceof com.sun.management.ThreadMXBean ) ||
+				!( (com.sun.management.ThreadMXBean)bean ).isThreadAllocatedMemorySupported() ) {
+			System.err.println( "Thread allocation counting is not supported by this VM" );
+			System.exit( 1 );
+		}
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)bean;
+		allocationBean.setThreadAllocatedMemoryEnabled( true );
+		AllocationCheck check = new AllocationCheck();
+		check.calibrate();
+		for( int i = 0 ; i < WARMUP_ROUNDS ; ++i )
+			check.round();
+		check.diffs = 0L;
+		long threadId = Thread.currentThread().getId();
+// The cost of the measurement itself, subtracted below
+		long before = allocationBean.getThreadAllocatedBytes( threadId );
+		long overhead = allocationBean.getThreadAllocatedBytes( threadId ) - before;
+		before = allocationBean.getThreadAllocatedBytes( threadId );
+		for( int i = 0 ; i < MEASURED_ROUNDS ; ++i )
+			check.round();
+		long allocated = allocationBean.getThreadAllocatedBytes( threadId ) - before - overhead;
+		long samples = (long)MEASURED_ROUNDS * STREAM_SIZE;
+		System.out.println( samples+" samples, "+check.diffs+" diffs, "+allocated+" bytes allocated"+
+				" (engine "+FusionEngine.getStateName( check.engine.getState() )+
+				", ring dropped "+check.ring.getDropped()+")" );
+		if( ( allocated > 0L ) ||
+				( check.engine.getState() != FusionEngine.ENGINESTATES_MEASURING ) ||
+				( check.ring.getDropped() > 0L ) ) {
+			System.out.println( "FAILED" );
+			System.exit( 1 );
+		}
+		System.out.println( "OK" );
+	}
+
+	void calibrate() {
+		engine.reset();
+		feed( 0, SampleStream.STILL_SAMPLES );
+		stream.shift( stream.getDuration() );
+	}
+
+	void round() {
+		feed( 0, stream.size() );
+		stream.shift( stream.getDuration() );
+	}
+
+// Alternates between filling the ring and draining it, as the sensor
+// callback and the processing thread do
+	private void feed( int offset, int length ) {
+		int end = offset + length;
+		for( int i = offset ; i < end ; ++i ) {
+			ring.put( stream.timeStamps[i], stream.sensorTypes[i], stream.xs[i], stream.ys[i], stream.zs[i] );
+			if( ring.size() >= BLOCK_SIZE )
+				ring.drain( processor, BLOCK_SIZE );
+		}
+		while( ring.drain( processor, BLOCK_SIZE ) > 0 )
+			;
+	}
+
+	private final SampleBlockProcessor processor = new SampleBlockProcessor() {
+		public void processBlock(
+				long timeStamps[],
+				byte sensorTypes[],
+				float xs[],
+				float ys[],
+				float zs[],
+				int offset,
+				int length ) {
+			engine.processBlock( timeStamps, sensorTypes, xs, ys, zs, offset, length );
+		}
+	};
+
+	private final FusionListener listener = new FusionListener() {
+		public void stateChanged( int oldState, int newState, int sampleCounter ) {
+		}
+
+		public void sampleCounter( int sampleCounter ) {
+		}
+
+		public void calibratingLimitExtended( int calibratingLimit ) {
+		}
+
+		public void calibrated( double gravity[], double gravityLen ) {
+		}
+
+		public boolean diffRequested( long timeStamp ) {
+			return true;
+		}
+
+		public void diff( long timeStamp, double diff[], double rotatedDiff[] ) {
+			++diffs;
+			checksum += diff[0] + rotatedDiff[2];
+		}
+
+		public void simulatedGravity( long timeStamp, double gravity[] ) {
+			checksum += gravity[1];
+		}
+	};
+
+	private final SampleStream stream = SampleStream.generate( STREAM_SIZE, FusionBenchmarks.SEED );
+	private final SampleRing ring = new SampleRing( RING_CAPACITY );
+	private final FusionEngine engine = new FusionEngine( listener );
+	private long diffs = 0L;
+	private double checksum = 0.0;
+}
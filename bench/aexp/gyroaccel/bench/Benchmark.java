@@ -0,0 +1,38 @@
+package aexp.gyroaccel.bench;
+
+/**
+ * One measured operation of the benchmark suite. run() performs
+ * getOperations() operations and returns a value derived from their
+ * results, which the runner consumes so that the JIT cannot drop the work.
+ */
+public abstract class Benchmark {
+	protected Benchmark( String name, int operations ) {
+		this.name = name;
+		this.operations = operations;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getOperations() {
+		return operations;
+	}
+
+/**
+ * Called once before the warmup, outside the measurement.
+ */
+	public void setUp() {
+	}
+
+/**
+ * Called before every run(), outside the measurement.
+ */
+	public void beforeRun() {
+	}
+
+	public abstract long run();
+
+	private final String name;
+	private final int operations;
+}
@@ -0,0 +1,266 @@
+package aexp.gyroaccel.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmark suite on a desktop JVM. Every benchmark is warmed up,
+ * then measured over a number of iterations, each repeating run() for at
+ * least the iteration time; the score is the mean time per operation.
+ * Where the JVM reports per-thread allocation (HotSpot) the bytes
+ * allocated per operation are measured alongside, -1 otherwise.
+ * <p>
+ * Results are written as JSON, to stdout or to the file given with -o, so
+ * that runs of different builds can be compared by a script; a readable
+ * table goes to stderr.
+ * <pre>
+ * BenchmarkRunner [-w warmups] [-i iterations] [-t millis] [-n samples] [-f filter] [-o results.json]
+ * </pre>
+ */
+public class BenchmarkRunner {
+	public static final int DEFAULT_WARMUPS = 5;
+	public static final int DEFAULT_ITERATIONS = 10;
+	public static final long DEFAULT_ITERATION_MILLIS = 200L;
+	public static final int DEFAULT_STREAM_SIZE = 64 * 1024;
+
+	public static void main( String args[] ) throws IOException {
+		int warmups = DEFAULT_WARMUPS;
+		int iterations = DEFAULT_ITERATIONS;
+		long iterationMillis = DEFAULT_ITERATION_MILLIS;
+		int streamSize = DEFAULT_STREAM_SIZE;
+		String filter = null;
+		String output = null;
+		for( int i = 0 ; i < args.length ; ++i ) {
+			String arg = args[i];
+			if( i + 1 >= args.length )
+				usage();
+			String value = args[++i];
+			if( arg.equals( "-w" ) )
+				warmups = Integer.parseInt( value );
+			else
+			if( arg.equals( "-i" ) )
+				iterations = Integer.parseInt( value );
+			else
+			if( arg.equals( "-t" ) )
+				iterationMillis = Long.parseLong( value );
+			else
+			if( arg.equals( "-n" ) )
+				streamSize = Integer.parseInt( value );
+			else
+			if( arg.equals( "-f" ) )
+				filter = value;
+			else
+			if( arg.equals( "-o" ) )
+				output = value;
+			else
+				usage();
+		}
+		BenchmarkRunner runner = new BenchmarkRunner( warmups, iterations, iterationMillis );
+		List<Result> results = new ArrayList<Result>();
+		for( Benchmark benchmark : FusionBenchmarks.create( streamSize ) ) {
+			if( ( filter != null ) && ( benchmark.getName().indexOf( filter ) < 0 ) )
+				continue;
+			Result result = runner.run( benchmark );
+			System.err.println( result );
+			results.add( result );
+		}
+		PrintWriter out = output == null ?
+				new PrintWriter( new OutputStreamWriter( System.out, "UTF-8" ) ) :
+				new PrintWriter( new OutputStreamWriter( new FileOutputStream( output ), "UTF-8" ) );
+		try {
+			runner.writeJson( results, out );
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void usage() {
+		System.err.println(
+				"Usage: BenchmarkRunner [-w warmups] [-i iterations] [-t millis] [-n samples] [-f filter] [-o results.json]" );
+		System.exit( 1 );
+	}
+
+	public BenchmarkRunner( int warmups, int iterations, long iterationMillis ) {
+		this.warmups = warmups;
+		this.iterations = iterations;
+		iterationNanos = iterationMillis * 1000000L;
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		allocationBean = ( bean instanceof com.sun.management.ThreadMXBean ) &&
+				( (com.sun.management.ThreadMXBean)bean ).isThreadAllocatedMemorySupported() ?
+				(com.sun.management.ThreadMXBean)bean : null;
+		if( allocationBean != null )
+			allocationBean.setThreadAllocatedMemoryEnabled( true );
+	}
+
+	public Result run( Benchmark benchmark ) {
+		benchmark.setUp();
+		for( int i = 0 ; i < warmups ; ++i )
+			iterate( benchmark );
+		Result result = new Result( benchmark.getName(), benchmark.getOperations(), iterations );
+		long allocated = 0L;
+		long operations = 0L;
+		for( int i = 0 ; i < iterations ; ++i ) {
+			iterate( benchmark );
+			result.nanosPerOperation[i] = (double)iterationElapsed / iterationOperations;
+			allocated += iterationAllocated;
+			operations += iterationOperations;
+		}
+		result.allocatedBytesPerOperation = allocationBean == null ?
+				-1.0 :
+				(double)allocated / operations;
+		return result;
+	}
+
+// Repeats run() until the measured time reaches the iteration time; the
+// time and allocations of beforeRun() are left out
+	private void iterate( Benchmark benchmark ) {
+		iterationElapsed = 0L;
+		iterationAllocated = 0L;
+		iterationOperations = 0L;
+		do {
+			benchmark.beforeRun();
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			long value = benchmark.run();
+			iterationElapsed += System.nanoTime() - start;
+			iterationAllocated += allocatedBytes() - allocatedBefore;
+			iterationOperations += benchmark.getOperations();
+			consume( value );
+		} while( iterationElapsed < iterationNanos );
+	}
+
+	public void writeJson( List<Result> results, PrintWriter out ) {
+		out.println( "{" );
+		out.println( "  \"jvm\": "+quote( System.getProperty( "java.vm.name" ) )+"," );
+		out.println( "  \"jvmVersion\": "+quote( System.getProperty( "java.vm.version" ) )+"," );
+		out.println( "  \"os\": "+quote( System.getProperty( "os.name" )+" "+System.getProperty( "os.arch" ) )+"," );
+		out.println( "  \"processors\": "+Runtime.getRuntime().availableProcessors()+"," );
+		out.println( "  \"warmups\": "+warmups+"," );
+		out.println( "  \"iterations\": "+iterations+"," );
+		out.println( "  \"iterationMillis\": "+( iterationNanos / 1000000L )+"," );
+		out.println( "  \"results\": [" );
+		for( int i = 0 ; i < results.size() ; ++i ) {
+			Result r = results.get( i );
+			out.print( "    { \"benchmark\": "+quote( r.name ) );
+			out.print( ", \"unit\": \"ns/op\"" );
+			out.print( ", \"operations\": "+r.operations );
+			out.print( ", \"score\": "+r.getMean() );
+			out.print( ", \"stdev\": "+r.getStdev() );
+			out.print( ", \"min\": "+r.getMin() );
+			out.print( ", \"max\": "+r.getMax() );
+			out.print( ", \"allocBytesPerOp\": "+r.allocatedBytesPerOperation );
+			out.print( ", \"iterations\": [" );
+			for( int k = 0 ; k < r.nanosPerOperation.length ; ++k ) {
+				if( k > 0 )
+					out.print( ", " );
+				out.print( r.nanosPerOperation[k] );
+			}
+			out.println( "] }"+( i + 1 < results.size() ? "," : "" ) );
+		}
+		out.println( "  ]" );
+		out.println( "}" );
+	}
+
+	private long allocatedBytes() {
+		if( allocationBean == null )
+			return 0L;
+		return allocationBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	private void consume( long value ) {
+		sink ^= value;
+	}
+
+	private static String quote( String s ) {
+		StringBuilder b = new StringBuilder( "\"" );
+		for( int i = 0 ; i < s.length() ; ++i ) {
+			char c = s.charAt( i );
+			if( ( c == '"' ) || ( c == '\\' ) )
+				b.append( '\\' );
+			if( c < ' ' )
+				b.append( ' ' );
+			else
+				b.append( c );
+		}
+		return b.append( '"' ).toString();
+	}
+
+	public static class Result {
+		Result( String name, int operations, int iterations ) {
+			this.name = name;
+			this.operations = operations;
+			nanosPerOperation = new double[iterations];
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getMean() {
+			double sum = 0.0;
+			for( int i = 0 ; i < nanosPerOperation.length ; ++i )
+				sum += nanosPerOperation[i];
+			return sum / nanosPerOperation.length;
+		}
+
+		public double getStdev() {
+			if( nanosPerOperation.length < 2 )
+				return 0.0;
+			double mean = getMean();
+			double sum = 0.0;
+			for( int i = 0 ; i < nanosPerOperation.length ; ++i ) {
+				double d = nanosPerOperation[i] - mean;
+				sum += d*d;
+			}
+			return Math.sqrt( sum / ( nanosPerOperation.length - 1 ) );
+		}
+
+		public double getMin() {
+			double min = Double.MAX_VALUE;
+			for( int i = 0 ; i < nanosPerOperation.length ; ++i )
+				min = Math.min( min, nanosPerOperation[i] );
+			return min;
+		}
+
+		public double getMax() {
+			double max = 0.0;
+			for( int i = 0 ; i < nanosPerOperation.length ; ++i )
+				max = Math.max( max, nanosPerOperation[i] );
+			return max;
+		}
+
+		public double getAllocatedBytesPerOperation() {
+			return allocatedBytesPerOperation;
+		}
+
+		public String toString() {
+			return String.format(
+					"%-22s %10.2f ns/op +- %8.2f  alloc %8.3f B/op",
+					name,
+					getMean(),
+					getStdev(),
+					allocatedBytesPerOperation );
+		}
+
+		final String name;
+		final int operations;
+		final double nanosPerOperation[];
+		double allocatedBytesPerOperation;
+	}
+
+	private final int warmups;
+	private final int iterations;
+	private final long iterationNanos;
+	private final com.sun.management.ThreadMXBean allocationBean;
+// Results of the runs end up here so that they count as used
+	static volatile long sink;
+	private long iterationElapsed;
+	private long iterationAllocated;
+	private long iterationOperations;
+}
@@ -0,0 +1,437 @@
+package aexp.gyroaccel.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import aexp.gyroaccel.capture.CaptureFormat;
+import aexp.gyroaccel.capture.CsvFormatter;
+import aexp.gyroaccel.engine.Attitude;
+import aexp.gyroaccel.engine.EarthRotation;
+import aexp.gyroaccel.engine.FusionEngine;
+import aexp.gyroaccel.engine.FusionListener;
+
+/**
+ * The benchmarks of the fusion hot path. Every benchmark measures the cost
+ * per sample (or per CSV line) of one step over a SampleStream: the steps
+ * of FusionEngine in isolation, the whole engine and the CSV formatting
+ * of captured records, next to the String concatenation formatting
+ * CsvFormatter replaced.
+ */
+public class FusionBenchmarks {
+	public static final long SEED = 20120315L;
+
+	public static List<Benchmark> create( int streamSize ) {
+		SampleStream stream = SampleStream.generate( streamSize, SEED );
+		Derived derived = new Derived( stream );
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+// Benchmarks shift the timestamps of their stream to feed it again, so
+// every one taking it gets a copy of its own and sees the same data
+// whatever ran before it
+		benchmarks.add( new Calibration( stream.copy() ) );
+		benchmarks.add( new GravityTracking( stream.copy() ) );
+		SampleStream gyro = stream.select( FusionEngine.SENSORTYPE_GYRO );
+		benchmarks.add( new GyroIntegration( gyro ) );
+		benchmarks.add( new GyroNoiseLimiter( gyro ) );
+		benchmarks.add( new Vecdiff( derived ) );
+		benchmarks.add( new RotateToEarth( derived ) );
+		benchmarks.add( new EngineProcessBlock( stream.copy() ) );
+		benchmarks.add( new CsvFormatRaw( stream.copy() ) );
+		benchmarks.add( new CsvConcatRaw( stream.copy() ) );
+		benchmarks.add( new CsvFormatDerived( derived ) );
+		return benchmarks;
+	}
+
+// Engine output recorded once from the stream: the gravity estimate, the
+// measured acceleration and the diffs of every accelerometer sample in
+// measuring state
+	static class Derived extends QuietListener {
+		Derived( SampleStream stream ) {
+			super( true );
+			int size = stream.size();
+			recordedTimeStamps = new long[size];
+			recordedGravity = new double[3][size];
+			recordedDiff = new double[3][size];
+			engine = new FusionEngine( this );
+			engine.reset();
+			engine.processBlock(
+					stream.timeStamps,
+					stream.sensorTypes,
+					stream.xs,
+					stream.ys,
+					stream.zs,
+					0,
+					size );
+			count = recorded;
+			timeStamps = copy( recordedTimeStamps );
+			gravity = new double[3][];
+			diff = new double[3][];
+			for( int k = 0 ; k < 3 ; ++k ) {
+				gravity[k] = copy( recordedGravity[k] );
+				diff[k] = copy( recordedDiff[k] );
+			}
+			accel = new double[3][count];
+			for( int i = 0 ; i < count ; ++i )
+				for( int k = 0 ; k < 3 ; ++k )
+					accel[k][i] = gravity[k][i] + diff[k][i];
+		}
+
+		public void diff( long timeStamp, double d[], double rotatedDiff[] ) {
+			double g[] = engine.getSimulatedGravity();
+			recordedTimeStamps[recorded] = timeStamp;
+			for( int k = 0 ; k < 3 ; ++k ) {
+				recordedGravity[k][recorded] = g[k];
+				recordedDiff[k][recorded] = d[k];
+			}
+			++recorded;
+		}
+
+		private double[] copy( double v[] ) {
+			double c[] = new double[count];
+			System.arraycopy( v, 0, c, 0, count );
+			return c;
+		}
+
+		private long[] copy( long v[] ) {
+			long c[] = new long[count];
+			System.arraycopy( v, 0, c, 0, count );
+			return c;
+		}
+
+		final int count;
+		final long timeStamps[];
+		final double gravity[][];
+		final double diff[][];
+		final double accel[][];
+		private final FusionEngine engine;
+		private final long recordedTimeStamps[];
+		private final double recordedGravity[][];
+		private final double recordedDiff[][];
+		private int recorded = 0;
+	}
+
+// Listener that declines the per-sample diff unless told otherwise
+	static class QuietListener implements FusionListener {
+		QuietListener( boolean diffs ) {
+			this.diffs = diffs;
+		}
+
+		public void stateChanged( int oldState, int newState, int sampleCounter ) {
+		}
+
+		public void sampleCounter( int sampleCounter ) {
+		}
+
+		public void calibratingLimitExtended( int calibratingLimit ) {
+		}
+
+		public void calibrated( double gravity[], double gravityLen ) {
+		}
+
+		public boolean diffRequested( long timeStamp ) {
+			return diffs;
+		}
+
+		public void diff( long timeStamp, double diff[], double rotatedDiff[] ) {
+			checksum += Double.doubleToRawLongBits( rotatedDiff[0] );
+		}
+
+		public void simulatedGravity( long timeStamp, double gravity[] ) {
+			++checksum;
+		}
+
+		final boolean diffs;
+		long checksum;
+	}
+
+// Calibration: averaging the accelerometer until CALIBRATING_LIMIT samples
+	static class Calibration extends Benchmark {
+		Calibration( SampleStream stream ) {
+			super( "calibration", FusionEngine.CALIBRATING_LIMIT );
+			this.stream = stream;
+		}
+
+		public long run() {
+			engine.reset();
+			engine.processBlock(
+					stream.timeStamps,
+					stream.sensorTypes,
+					stream.xs,
+					stream.ys,
+					stream.zs,
+					0,
+					getOperations() );
+			return Double.doubleToRawLongBits( engine.getGravityAccelLen() );
+		}
+
+		private final SampleStream stream;
+		private final FusionEngine engine = new FusionEngine( new QuietListener( false ) );
+	}
+
+// Measuring state, accelerometer only: the magnitude test and the gravity
+// reset, without diffs
+	static class GravityTracking extends Benchmark {
+		GravityTracking( SampleStream stream ) {
+			this( stream.select( FusionEngine.SENSORTYPE_ACCEL ), stream );
+		}
+
+		private GravityTracking( SampleStream accel, SampleStream stream ) {
+			super( "gravityTracking", accel.size() );
+			this.accel = accel;
+			this.stream = stream;
+		}
+
+		public void setUp() {
+			calibrate( engine, stream );
+		}
+
+		public long run() {
+			engine.processBlock( accel.timeStamps, accel.sensorTypes, accel.xs, accel.ys, accel.zs, 0, accel.size() );
+			return Double.doubleToRawLongBits( engine.getSimulatedGravity()[0] );
+		}
+
+		private final SampleStream accel;
+		private final SampleStream stream;
+		private final FusionEngine engine = new FusionEngine( new QuietListener( false ) );
+	}
+
+// The gyro integration: one attitude step and the gravity prediction per
+// gyroscope sample
+	static class GyroIntegration extends Benchmark {
+		GyroIntegration( SampleStream gyro ) {
+			super( "gyroIntegration", gyro.size() );
+			steps = toSteps( gyro );
+		}
+
+		public long run() {
+			double d[] = steps;
+			int n = getOperations();
+			for( int i = 0 ; i < n ; ++i ) {
+				attitude.integrate( d[3*i], d[3*i+1], d[3*i+2] );
+				attitude.toDevice( reference, gravity );
+			}
+			return Double.doubleToRawLongBits( gravity[0] );
+		}
+
+		private final double steps[];
+		private final Attitude attitude = new Attitude();
+		private final double reference[] = { 0.0, 0.0, SampleStream.GRAVITY };
+		private final double gravity[] = new double[3];
+	}
+
+	static class GyroNoiseLimiter extends Benchmark {
+		GyroNoiseLimiter( SampleStream gyro ) {
+			super( "gyroNoiseLimiter", gyro.size() );
+			steps = toSteps( gyro );
+		}
+
+		public long run() {
+			double d[] = steps;
+			double sum = 0.0;
+			int n = getOperations();
+			for( int i = 0 ; i < n ; ++i )
+				sum += FusionEngine.gyroNoiseLimiter( d[3*i] ) +
+						FusionEngine.gyroNoiseLimiter( d[3*i+1] ) +
+						FusionEngine.gyroNoiseLimiter( d[3*i+2] );
+			return Double.doubleToRawLongBits( sum );
+		}
+
+		private final double steps[];
+	}
+
+	static class Vecdiff extends Benchmark {
+		Vecdiff( Derived derived ) {
+			super( "vecdiff", derived.count );
+			this.derived = derived;
+		}
+
+		public long run() {
+			double a[][] = derived.accel;
+			double g[][] = derived.gravity;
+			double sum = 0.0;
+			int n = getOperations();
+			for( int i = 0 ; i < n ; ++i ) {
+				v[0] = a[0][i];
+				v[1] = a[1][i];
+				v[2] = a[2][i];
+				gravity[0] = g[0][i];
+				gravity[1] = g[1][i];
+				gravity[2] = g[2][i];
+				FusionEngine.vecdiff( v, gravity, diff );
+				sum += diff[0];
+			}
+			return Double.doubleToRawLongBits( sum );
+		}
+
+		private final Derived derived;
+		private final double v[] = new double[3];
+		private final double gravity[] = new double[3];
+		private final double diff[] = new double[3];
+	}
+
+// Per-sample rotation into the earth frame, following the recorded gravity
+	static class RotateToEarth extends Benchmark {
+		RotateToEarth( Derived derived ) {
+			super( "rotateToEarth", derived.count );
+			this.derived = derived;
+		}
+
+		public long run() {
+			double g[][] = derived.gravity;
+			double d[][] = derived.diff;
+			double sum = 0.0;
+			int n = getOperations();
+			for( int i = 0 ; i < n ; ++i ) {
+				gravity[0] = g[0][i];
+				gravity[1] = g[1][i];
+				gravity[2] = g[2][i];
+				diff[0] = d[0][i];
+				diff[1] = d[1][i];
+				diff[2] = d[2][i];
+				rotation.update( gravity );
+				rotation.apply( diff, rotated );
+				sum += rotated[2];
+			}
+			return Double.doubleToRawLongBits( sum );
+		}
+
+		private final Derived derived;
+		private final EarthRotation rotation = new EarthRotation();
+		private final double gravity[] = new double[3];
+		private final double diff[] = new double[3];
+		private final double rotated[] = new double[3];
+	}
+
+// The whole engine in measuring state with diffs requested, as while
+// capturing
+	static class EngineProcessBlock extends Benchmark {
+		EngineProcessBlock( SampleStream stream ) {
+			super( "engineProcessBlock", stream.size() );
+			this.stream = stream;
+		}
+
+		public void setUp() {
+			calibrate( engine, stream );
+		}
+
+		public void beforeRun() {
+			stream.shift( stream.getDuration() );
+		}
+
+		public long run() {
+			engine.processBlock( stream.timeStamps, stream.sensorTypes, stream.xs, stream.ys, stream.zs, 0, stream.size() );
+			return listener.checksum;
+		}
+
+		private final SampleStream stream;
+		private final QuietListener listener = new QuietListener( true );
+		private final FusionEngine engine = new FusionEngine( listener );
+	}
+
+	static class CsvFormatRaw extends Benchmark {
+		CsvFormatRaw( SampleStream stream ) {
+			super( "csvFormatRaw", stream.size() );
+			this.stream = stream;
+		}
+
+		public long run() {
+			long length = 0L;
+			int n = getOperations();
+			for( int i = 0 ; i < n ; ++i ) {
+				formatter.formatRaw(
+						stream.timeStamps[i],
+						CaptureFormat.channelOfSensorType( stream.sensorTypes[i] ),
+						stream.xs[i],
+						stream.ys[i],
+						stream.zs[i] );
+				length += formatter.getLength();
+			}
+			return length;
+		}
+
+		private final SampleStream stream;
+		private final CsvFormatter formatter = new CsvFormatter();
+	}
+
+// The lines as CaptureConverter built them before CsvFormatter: String
+// concatenation, which formats the floats with Float.toString
+	static class CsvConcatRaw extends Benchmark {
+		CsvConcatRaw( SampleStream stream ) {
+			super( "csvConcatRaw", stream.size() );
+			this.stream = stream;
+		}
+
+		public long run() {
+			long length = 0L;
+			int n = getOperations();
+			for( int i = 0 ; i < n ; ++i ) {
+				String line = stream.timeStamps[i]+
+						","+
+						CaptureFormat.getChannelName( CaptureFormat.channelOfSensorType( stream.sensorTypes[i] ) )+
+						","+
+						stream.xs[i]+
+						","+
+						stream.ys[i]+
+						","+
+						stream.zs[i];
+				length += line.length() + 1;
+			}
+			return length;
+		}
+
+		private final SampleStream stream;
+	}
+
+	static class CsvFormatDerived extends Benchmark {
+		CsvFormatDerived( Derived derived ) {
+			super( "csvFormatDerived", derived.count );
+			this.derived = derived;
+		}
+
+		public long run() {
+			double d[][] = derived.diff;
+			long length = 0L;
+			int n = getOperations();
+			for( int i = 0 ; i < n ; ++i ) {
+				v[0] = d[0][i];
+				v[1] = d[1][i];
+				v[2] = d[2][i];
+				formatter.formatDerived( derived.timeStamps[i], CaptureFormat.CHANNEL_VECDIFF, v );
+				length += formatter.getLength();
+			}
+			return length;
+		}
+
+		private final Derived derived;
+		private final CsvFormatter formatter = new CsvFormatter();
+		private final double v[] = new double[3];
+	}
+
+// Brings the engine into measuring state and moves the stream past the
+// samples it has seen
+	static void calibrate( FusionEngine engine, SampleStream stream ) {
+		engine.reset();
+		engine.processBlock(
+				stream.timeStamps,
+				stream.sensorTypes,
+				stream.xs,
+				stream.ys,
+				stream.zs,
+				0,
+				SampleStream.STILL_SAMPLES );
+		stream.shift( stream.getDuration() );
+	}
+
+// Rotation steps (rate times dt) of consecutive gyroscope samples, x, y, z
+// interleaved
+	static double[] toSteps( SampleStream gyro ) {
+		int n = gyro.size();
+		double steps[] = new double[3*n];
+		for( int i = 1 ; i < n ; ++i ) {
+			double dt = ( gyro.timeStamps[i] - gyro.timeStamps[i - 1] ) / 1e9;
+			steps[3*i] = gyro.xs[i] * dt;
+			steps[3*i+1] = gyro.ys[i] * dt;
+			steps[3*i+2] = gyro.zs[i] * dt;
+		}
+		return steps;
+	}
+}
@@ -0,0 +1,354 @@
+package aexp.gyroaccel.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import aexp.gyroaccel.capture.CaptureFiles;
+import aexp.gyroaccel.capture.CaptureFormat;
+import aexp.gyroaccel.capture.CaptureHeader;
+import aexp.gyroaccel.capture.CaptureIndex;
+import aexp.gyroaccel.capture.CaptureReplay;
+import aexp.gyroaccel.capture.CaptureSink;
+import aexp.gyroaccel.capture.CaptureSource;
+import aexp.gyroaccel.capture.CaptureWriter;
+import aexp.gyroaccel.capture.CompressedCaptureWriter;
+import aexp.gyroaccel.engine.FusionEngine;
+import aexp.gyroaccel.engine.FusionListener;
+
+/**
+ * Golden-output regression suite. Every session of the golden directory,
+ * &lt;name&gt;.bin, is replayed through CaptureReplay and the derived
+ * records, the calibration included, are compared with
+ * &lt;name&gt;.expected.bin: channels and timestamps must match exactly,
+ * values within ABS_TOLERANCE plus REL_TOLERANCE of the expected value.
+ * The engine throughput of every session is measured as well and must
+ * stay within the nanoseconds per sample budgeted in budgets.properties.
+ * The process exits with 1 if any session fails.
+ * <p>
+ * -record regenerates the sessions and the expected outputs from the
+ * current code, after a deliberate change of the results; the budgets are
+ * only written if the file does not exist yet, at BUDGET_MARGIN times the
+ * measured cost. -scale multiplies the budgets for slower machines.
+ * <pre>
+ * GoldenRunner [-record] [-scale factor] [directory]
+ * </pre>
+ */
+public class GoldenRunner {
+	public static final String DEFAULT_DIRECTORY = "bench/golden";
+	public static final String BUDGETS_NAME = "budgets.properties";
+	public static final String SESSION_SUFFIX = ".bin";
+	public static final String EXPECTED_SUFFIX = ".expected.bin";
+	public static final String BUDGET_SUFFIX = ".nsPerSample";
+	public static final double ABS_TOLERANCE = 1e-9;
+	public static final double REL_TOLERANCE = 1e-9;
+	public static final double BUDGET_MARGIN = 3.0;
+	static final long TIMING_WARMUP_MILLIS = 500L;
+	static final int TIMING_RUNS = 50;
+
+	public static void main( String args[] ) throws IOException {
+		boolean record = false;
+		double scale = 1.0;
+		File directory = new File( DEFAULT_DIRECTORY );
+		for( int i = 0 ; i < args.length ; ++i ) {
+			if( args[i].equals( "-record" ) )
+				record = true;
+			else
+			if( args[i].equals( "-scale" ) && ( i + 1 < args.length ) )
+				scale = Double.parseDouble( args[++i] );
+			else
+			if( !args[i].startsWith( "-" ) )
+				directory = new File( args[i] );
+			else {
+				System.err.println( "Usage: GoldenRunner [-record] [-scale factor] [directory]" );
+				System.exit( 1 );
+			}
+		}
+		GoldenRunner runner = new GoldenRunner( directory );
+		boolean passed = record ? runner.record() : runner.check( scale );
+		System.exit( passed ? 0 : 1 );
+	}
+
+	public GoldenRunner( File directory ) {
+		this.directory = directory;
+	}
+
+	public boolean record() throws IOException {
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Cannot create "+directory );
+		File budgetsFile = new File( directory, BUDGETS_NAME );
+		boolean writeBudgets = !budgetsFile.exists();
+		Properties budgets = new Properties();
+		for( int i = 0 ; i < GoldenSessions.SESSION_NAMES.length ; ++i ) {
+			String name = GoldenSessions.SESSION_NAMES[i];
+			SampleStream stream = GoldenSessions.generate( name );
+			File sessionFile = new File( directory, name+SESSION_SUFFIX );
+			CompressedCaptureWriter writer = new CompressedCaptureWriter( sessionFile, null, null );
+			try {
+				for( int k = 0 ; k < stream.size() ; ++k )
+					writer.writeRaw(
+							stream.timeStamps[k],
+							CaptureFormat.channelOfSensorType( stream.sensorTypes[k] ),
+							stream.xs[k],
+							stream.ys[k],
+							stream.zs[k] );
+			} finally {
+				writer.close();
+			}
+			File expectedFile = new File( directory, name+EXPECTED_SUFFIX );
+			CaptureSink expected = new CaptureWriter( expectedFile, null, null );
+			CaptureSource source = CaptureFiles.openSource( sessionFile );
+			CaptureReplay.Result result;
+			try {
+				result = new CaptureReplay( expected, false ).replay( source );
+			} finally {
+				source.close();
+				expected.close();
+			}
+// The indexes are rebuilt on demand and are not part of the suite
+			CaptureIndex.getIndexFile( sessionFile ).delete();
+			CaptureIndex.getIndexFile( expectedFile ).delete();
+			double cost = measure( stream );
+			budgets.setProperty( name+BUDGET_SUFFIX, Long.toString( (long)Math.ceil( cost * BUDGET_MARGIN ) ) );
+			System.out.println( name+": recorded "+result+"; "+format( cost )+" ns/sample" );
+		}
+		if( writeBudgets ) {
+			OutputStream out = new FileOutputStream( budgetsFile );
+			try {
+				budgets.store( out, "Engine cost budgets of the golden sessions in ns per sample" );
+			} finally {
+				out.close();
+			}
+		}
+		return true;
+	}
+
+	public boolean check( double scale ) throws IOException {
+		Properties budgets = new Properties();
+		InputStream in = new FileInputStream( new File( directory, BUDGETS_NAME ) );
+		try {
+			budgets.load( in );
+		} finally {
+			in.close();
+		}
+		boolean passed = true;
+		for( int i = 0 ; i < GoldenSessions.SESSION_NAMES.length ; ++i ) {
+			String name = GoldenSessions.SESSION_NAMES[i];
+			String failure = compare( name );
+			SampleStream stream = load( new File( directory, name+SESSION_SUFFIX ) );
+			double cost = measure( stream );
+			String budget = budgets.getProperty( name+BUDGET_SUFFIX );
+			if( ( failure == null ) && ( budget == null ) )
+				failure = "no budget";
+			double limit = budget == null ? 0.0 : Double.parseDouble( budget ) * scale;
+			if( ( failure == null ) && ( cost > limit ) )
+				failure = "throughput regressed, "+format( cost )+" ns/sample over budget "+format( limit );
+			System.out.println( name+": "+( failure == null ? "ok" : "FAILED "+failure )+
+					", "+format( cost )+" ns/sample, budget "+format( limit )+
+					", max deviation "+maxDeviation );
+			if( failure != null )
+				passed = false;
+		}
+		return passed;
+	}
+
+// Replays the session and returns the first disagreement with the
+// expected output, or null
+	private String compare( String name ) throws IOException {
+		maxDeviation = 0.0;
+		Collector actual = new Collector();
+		CaptureSource source = CaptureFiles.openSource( new File( directory, name+SESSION_SUFFIX ) );
+		try {
+			new CaptureReplay( actual, false ).replay( source );
+		} finally {
+			source.close();
+		}
+		CaptureSource expected = CaptureFiles.openSource( new File( directory, name+EXPECTED_SUFFIX ) );
+		try {
+			CaptureHeader header = expected.getHeader();
+			if( header.isCalibrated() != actual.calibrated )
+				return "calibration "+( actual.calibrated ? "unexpected" : "missing" );
+			if( header.isCalibrated() ) {
+				double gravity[] = header.getCalibratedGravity();
+				for( int k = 0 ; k < 3 ; ++k )
+					if( !agrees( actual.calibration[k], gravity[k] ) )
+						return "calibrated gravity "+actual.calibration[k]+" expected "+gravity[k];
+				if( !agrees( actual.calibration[3], header.getCalibratedGravityLen() ) )
+					return "calibrated gravity length "+actual.calibration[3]+
+							" expected "+header.getCalibratedGravityLen();
+			}
+			int n = 0;
+			while( expected.next() ) {
+				if( n >= actual.count )
+					return "output ends after "+n+" records";
+				if( ( expected.getChannel() != actual.channels[n] ) ||
+					( expected.getTimeStamp() != actual.timeStamps[n] ) )
+					return "record "+n+" is "+CaptureFormat.getChannelName( actual.channels[n] )+
+							" at "+actual.timeStamps[n]+
+							", expected "+CaptureFormat.getChannelName( expected.getChannel() )+
+							" at "+expected.getTimeStamp();
+				double v[] = expected.getValues();
+				for( int k = 0 ; k < 3 ; ++k )
+					if( !agrees( actual.values[3*n+k], v[k] ) )
+						return "record "+n+" "+CaptureFormat.getChannelName( actual.channels[n] )+
+								" at "+actual.timeStamps[n]+
+								" axis "+k+" is "+actual.values[3*n+k]+
+								", expected "+v[k];
+				++n;
+			}
+			if( n < actual.count )
+				return ( actual.count - n )+" records more than expected";
+		} finally {
+			expected.close();
+		}
+		return null;
+	}
+
+	private boolean agrees( double value, double expected ) {
+		double deviation = Math.abs( value - expected );
+		if( deviation > maxDeviation )
+			maxDeviation = deviation;
+		return deviation <= ABS_TOLERANCE + REL_TOLERANCE * Math.abs( expected );
+	}
+
+// Best engine cost per sample over the timing runs after the warmup, with
+// diffs requested as while capturing
+	static double measure( SampleStream stream ) {
+		final long checksum[] = new long[1];
+		FusionEngine engine = new FusionEngine( new FusionListener() {
+			public void stateChanged( int oldState, int newState, int sampleCounter ) {
+			}
+
+			public void sampleCounter( int sampleCounter ) {
+			}
+
+			public void calibratingLimitExtended( int calibratingLimit ) {
+			}
+
+			public void calibrated( double gravity[], double gravityLen ) {
+			}
+
+			public boolean diffRequested( long timeStamp ) {
+				return true;
+			}
+
+			public void diff( long timeStamp, double diff[], double rotatedDiff[] ) {
+				checksum[0] += Double.doubleToRawLongBits( rotatedDiff[2] );
+			}
+
+			public void simulatedGravity( long timeStamp, double gravity[] ) {
+				checksum[0] += Double.doubleToRawLongBits( gravity[2] );
+			}
+		} );
+		long warmupEnd = System.nanoTime() + TIMING_WARMUP_MILLIS * 1000000L;
+		long best = Long.MAX_VALUE;
+		int runs = 0;
+		while( runs < TIMING_RUNS ) {
+			engine.reset();
+			long start = System.nanoTime();
+			engine.processBlock( stream.timeStamps, stream.sensorTypes, stream.xs, stream.ys, stream.zs, 0, stream.size() );
+			long elapsed = System.nanoTime() - start;
+			if( start < warmupEnd )
+				continue;
+			if( elapsed < best )
+				best = elapsed;
+			++runs;
+		}
+		BenchmarkRunner.sink ^= checksum[0];
+		return (double)best / stream.size();
+	}
+
+	static SampleStream load( File file ) throws IOException {
+		CaptureSource source = CaptureFiles.openSource( file );
+		try {
+			int n = 0;
+			while( source.next() )
+				if( CaptureFormat.isRawChannel( source.getChannel() ) )
+					++n;
+			source.close();
+			source = CaptureFiles.openSource( file );
+			SampleStream stream = new SampleStream( n );
+			int k = 0;
+			while( source.next() ) {
+				int channel = source.getChannel();
+				if( !CaptureFormat.isRawChannel( channel ) )
+					continue;
+				float v[] = source.getRawValues();
+				stream.timeStamps[k] = source.getTimeStamp();
+				stream.sensorTypes[k] = (byte)CaptureFormat.sensorTypeOfChannel( channel );
+				stream.xs[k] = v[0];
+				stream.ys[k] = v[1];
+				stream.zs[k] = v[2];
+				++k;
+			}
+			return stream;
+		} finally {
+			source.close();
+		}
+	}
+
+	private static String format( double value ) {
+		return String.format( "%.1f", value );
+	}
+
+// Keeps the derived records of a replay in memory
+	static class Collector implements CaptureSink {
+		public void writeRaw( long timeStamp, int channel, float x, float y, float z ) {
+		}
+
+		public void writeDerived( long timeStamp, int channel, double v[] ) {
+			if( count == channels.length ) {
+				int capacity = 2 * count;
+				long newTimeStamps[] = new long[capacity];
+				int newChannels[] = new int[capacity];
+				double newValues[] = new double[3 * capacity];
+				System.arraycopy( timeStamps, 0, newTimeStamps, 0, count );
+				System.arraycopy( channels, 0, newChannels, 0, count );
+				System.arraycopy( values, 0, newValues, 0, 3 * count );
+				timeStamps = newTimeStamps;
+				channels = newChannels;
+				values = newValues;
+			}
+			timeStamps[count] = timeStamp;
+			channels[count] = channel;
+			values[3*count] = v[0];
+			values[3*count+1] = v[1];
+			values[3*count+2] = v[2];
+			++count;
+		}
+
+		public void writeCalibration( double gravity[], double gravityLen ) {
+			calibrated = true;
+			System.arraycopy( gravity, 0, calibration, 0, 3 );
+			calibration[3] = gravityLen;
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+
+		public long getRecordCount() {
+			return count;
+		}
+
+		public long getBytesWritten() {
+			return 0L;
+		}
+
+		long timeStamps[] = new long[1024];
+		int channels[] = new int[1024];
+		double values[] = new double[3 * 1024];
+		int count = 0;
+		boolean calibrated = false;
+		final double calibration[] = new double[4];
+	}
+
+	private final File directory;
+	private double maxDeviation;
+}
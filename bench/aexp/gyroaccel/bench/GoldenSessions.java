@@ -0,0 +1,81 @@
+package aexp.gyroaccel.bench;
+
+import java.util.Random;
+
+import aexp.gyroaccel.engine.FusionEngine;
+
+/**
+ * Synthesizes the sessions of the golden suite. Every session starts with
+ * the device lying still until calibration is over, followed by one kind
+ * of motion: none, a slow tilt back and forth, shaking, or walking with
+ * the device held in front. Accelerometer and gyroscope samples are
+ * interleaved at SENSOR_DELAY_FASTEST-like rates with noise and timestamp
+ * jitter. Generation only uses StrictMath and java.util.Random so the
+ * sessions come out bit for bit the same on every JVM.
+ */
+public class GoldenSessions {
+	public static final String SESSION_NAMES[] = { "still", "tilt", "shake", "walk" };
+	public static final int MOTION_SAMPLES = 5000;
+	public static final long SAMPLE_PERIOD = 5000000L;
+	public static final double GRAVITY = 9.81;
+	static final double ACCEL_NOISE = 0.04;
+	static final double GYRO_NOISE = 0.015;
+	static final long SEED = 20120401L;
+
+	public static SampleStream generate( String name ) {
+		int motion = -1;
+		for( int i = 0 ; i < SESSION_NAMES.length ; ++i )
+			if( SESSION_NAMES[i].equals( name ) )
+				motion = i;
+		if( motion < 0 )
+			throw new IllegalArgumentException( "Unknown session "+name );
+		int stillSamples = FusionEngine.CALIBRATING_LIMIT + 200;
+		SampleStream stream = new SampleStream( stillSamples + MOTION_SAMPLES );
+		Random random = new Random( SEED + motion );
+		long timeStamp = 5000000000L;
+// Rotation of the device around its y axis, integrated from the gyroscope
+		double angle = 0.0;
+		for( int i = 0 ; i < stream.size() ; ++i ) {
+			timeStamp += SAMPLE_PERIOD / 2 + (long)( random.nextGaussian() * SAMPLE_PERIOD / 50 );
+			stream.timeStamps[i] = timeStamp;
+			double t = i < stillSamples ? -1.0 : ( i - stillSamples ) * SAMPLE_PERIOD / 2e9;
+			double rate = 0.0;
+			double ax = 0.0;
+			double az = 0.0;
+			double sway = 0.0;
+			if( t >= 0.0 )
+				switch( motion ) {
+				case 1:
+// Tilt: 0.6 rad/s back and forth with a 4 s period
+					rate = 0.6 * StrictMath.sin( 2.0 * StrictMath.PI * t / 4.0 );
+					break;
+
+				case 2:
+// Shake: 6 Hz along x, with the wrist rocking at the same rate
+					ax = 8.0 * StrictMath.sin( 2.0 * StrictMath.PI * 6.0 * t );
+					rate = 1.5 * StrictMath.cos( 2.0 * StrictMath.PI * 6.0 * t );
+					break;
+
+				case 3:
+// Walk: steps at 1.8 Hz bounce vertically, the body sways at half that
+					az = 2.5 * StrictMath.sin( 2.0 * StrictMath.PI * 1.8 * t );
+					sway = 0.25 * StrictMath.sin( 2.0 * StrictMath.PI * 0.9 * t );
+					rate = 0.15 * StrictMath.cos( 2.0 * StrictMath.PI * 0.9 * t );
+					break;
+				}
+			if( ( i & 1 ) == 0 ) {
+				stream.sensorTypes[i] = (byte)FusionEngine.SENSORTYPE_ACCEL;
+				stream.xs[i] = (float)( GRAVITY * StrictMath.sin( angle ) + ax + random.nextGaussian() * ACCEL_NOISE );
+				stream.ys[i] = (float)( sway + random.nextGaussian() * ACCEL_NOISE );
+				stream.zs[i] = (float)( GRAVITY * StrictMath.cos( angle ) + az + random.nextGaussian() * ACCEL_NOISE );
+			} else {
+				stream.sensorTypes[i] = (byte)FusionEngine.SENSORTYPE_GYRO;
+				stream.xs[i] = (float)( random.nextGaussian() * GYRO_NOISE );
+				stream.ys[i] = (float)( rate + random.nextGaussian() * GYRO_NOISE );
+				stream.zs[i] = (float)( random.nextGaussian() * GYRO_NOISE );
+				angle += rate * SAMPLE_PERIOD / 1e9;
+			}
+		}
+		return stream;
+	}
+}
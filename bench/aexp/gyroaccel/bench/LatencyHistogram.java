@@ -0,0 +1,75 @@
+package aexp.gyroaccel.bench;
+
+/**
+ * Histogram of latencies in nanoseconds with logarithmic buckets, each
+ * power of two split into SUB_BUCKETS linear steps, so percentiles are
+ * reported within 1/SUB_BUCKETS of the true value. Recording does not
+ * allocate. Not thread safe.
+ */
+public class LatencyHistogram {
+	static final int SUB_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int BUCKETS = ( 64 - SUB_BITS + 1 ) * SUB_BUCKETS;
+
+	public void record( long nanos ) {
+		if( nanos < 0L )
+			nanos = 0L;
+		++counts[index( nanos )];
+		++count;
+		sum += nanos;
+		if( nanos > max )
+			max = nanos;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0L ? 0.0 : (double)sum / count;
+	}
+
+/**
+ * Returns the upper bound of the bucket holding the given percentile, at
+ * most the maximum recorded.
+ */
+	public long getPercentile( double percentile ) {
+		if( count == 0L )
+			return 0L;
+		long rank = (long)Math.ceil( percentile / 100.0 * count );
+		if( rank < 1L )
+			rank = 1L;
+		long seen = 0L;
+		for( int i = 0 ; i < BUCKETS ; ++i ) {
+			seen += counts[i];
+			if( seen >= rank )
+				return Math.min( upperBound( i ), max );
+		}
+		return max;
+	}
+
+	static int index( long nanos ) {
+		if( nanos < SUB_BUCKETS )
+			return (int)nanos;
+		int magnitude = 63 - Long.numberOfLeadingZeros( nanos ) - SUB_BITS;
+		int sub = (int)( nanos >>> magnitude ) & ( SUB_BUCKETS - 1 );
+		return ( magnitude + 1 ) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound( int index ) {
+		if( index < SUB_BUCKETS )
+			return index;
+		int magnitude = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS;
+		return ( ( SUB_BUCKETS + sub + 1 ) << magnitude ) - 1;
+	}
+
+	private final long counts[] = new long[BUCKETS];
+	private long count = 0L;
+	private long sum = 0L;
+	private long max = 0L;
+}
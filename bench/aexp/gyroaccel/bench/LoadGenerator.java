@@ -0,0 +1,357 @@
+package aexp.gyroaccel.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import aexp.gyroaccel.capture.AsyncCaptureSink;
+import aexp.gyroaccel.capture.CaptureFormat;
+import aexp.gyroaccel.capture.CaptureSink;
+import aexp.gyroaccel.capture.CaptureSinkFactory;
+import aexp.gyroaccel.capture.CaptureWriter;
+import aexp.gyroaccel.capture.CompressedCaptureWriter;
+import aexp.gyroaccel.engine.FusionEngine;
+import aexp.gyroaccel.engine.FusionListener;
+import aexp.gyroaccel.engine.SampleBlockProcessor;
+import aexp.gyroaccel.engine.SampleRing;
+import aexp.gyroaccel.engine.SyntheticSensorSource;
+
+/**
+ * Drives the sampling pipeline of SamplingService on a desktop JVM from a
+ * SyntheticSensorSource: the source fills a SampleRing, a processing
+ * thread drains it in blocks into a FusionEngine and, optionally, captures
+ * through an AsyncCaptureSink into temporary files, in the same order the
+ * service does. After the run it reports the throughput, the latency from
+ * the scheduled time of a sample to its processing, and every place where
+ * samples or records were lost: the ring, the gaps of the source and the
+ * capture writer.
+ * <pre>
+ * LoadGenerator [-profile still|tilt|shake|walk] [-rate hz] [-seconds s]
+ *     [-jitter fraction] [-gaps probability:millis] [-ooo probability]
+ *     [-capture none|journaled|compressed] [-ring capacity] [-block samples]
+ *     [-o result.json]
+ * </pre>
+ * The rate applies to each of the two sensors.
+ */
+public class LoadGenerator {
+	public static final double DEFAULT_RATE = 10000.0;
+	public static final int DEFAULT_SECONDS = 10;
+	public static final int DEFAULT_RING_CAPACITY = 8192;
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+	public static final String CAPTURE_MODES[] = { "none", "journaled", "compressed" };
+	static final long PROCESSING_WAIT_TIMEOUT = 100L;
+
+	public static void main( String args[] ) throws IOException, InterruptedException {
+		LoadGenerator generator = new LoadGenerator();
+		String output = null;
+		for( int i = 0 ; i < args.length ; ++i ) {
+			String arg = args[i];
+			if( i + 1 >= args.length )
+				usage();
+			String value = args[++i];
+			if( arg.equals( "-profile" ) )
+				generator.profile = SyntheticSensorSource.getProfile( value );
+			else
+			if( arg.equals( "-rate" ) )
+				generator.rate = Double.parseDouble( value );
+			else
+			if( arg.equals( "-seconds" ) )
+				generator.seconds = Integer.parseInt( value );
+			else
+			if( arg.equals( "-jitter" ) )
+				generator.jitter = Double.parseDouble( value );
+			else
+			if( arg.equals( "-gaps" ) ) {
+				int colon = value.indexOf( ':' );
+				if( colon < 0 )
+					usage();
+				generator.gapProbability = Double.parseDouble( value.substring( 0, colon ) );
+				generator.gapMillis = Long.parseLong( value.substring( colon + 1 ) );
+			} else
+			if( arg.equals( "-ooo" ) )
+				generator.outOfOrderProbability = Double.parseDouble( value );
+			else
+			if( arg.equals( "-capture" ) )
+				generator.captureMode = getCaptureMode( value );
+			else
+			if( arg.equals( "-ring" ) )
+				generator.ringCapacity = Integer.parseInt( value );
+			else
+			if( arg.equals( "-block" ) )
+				generator.blockSize = Integer.parseInt( value );
+			else
+			if( arg.equals( "-o" ) )
+				output = value;
+			else
+				usage();
+		}
+		if( ( generator.profile < 0 ) || ( generator.captureMode < 0 ) )
+			usage();
+		generator.run();
+		generator.printReport( System.err );
+		PrintWriter out = output == null ?
+				new PrintWriter( new OutputStreamWriter( System.out, "UTF-8" ) ) :
+				new PrintWriter( new OutputStreamWriter( new FileOutputStream( output ), "UTF-8" ) );
+		try {
+			generator.writeJson( out );
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void usage() {
+		System.err.println( "Usage: LoadGenerator [-profile still|tilt|shake|walk] [-rate hz] [-seconds s]" );
+		System.err.println( "    [-jitter fraction] [-gaps probability:millis] [-ooo probability]" );
+		System.err.println( "    [-capture none|journaled|compressed] [-ring capacity] [-block samples]" );
+		System.err.println( "    [-o result.json]" );
+		System.exit( 1 );
+	}
+
+	static int getCaptureMode( String name ) {
+		for( int i = 0 ; i < CAPTURE_MODES.length ; ++i )
+			if( CAPTURE_MODES[i].equals( name ) )
+				return i;
+		return -1;
+	}
+
+	public void run() throws IOException, InterruptedException {
+		SampleRing ring = new SampleRing( ringCapacity );
+		source = new SyntheticSensorSource( profile, rate, rate );
+		source.setJitter( jitter );
+		source.setGaps( gapProbability, gapMillis );
+		source.setOutOfOrder( outOfOrderProbability );
+		captureDirectory = null;
+		if( captureMode != 0 ) {
+			captureDirectory = File.createTempFile( "loadgen", "" );
+			captureDirectory.delete();
+			captureDirectory.mkdirs();
+			capture = new AsyncCaptureSink(
+					captureSinkFactory,
+					AsyncCaptureSink.POLICY_DROP_NEWEST,
+					0L,
+					0L );
+		}
+		engine.reset();
+		ProcessingThread processingThread = new ProcessingThread( ring );
+		processingThread.start();
+		long start = System.nanoTime();
+		source.start( ring );
+		Thread.sleep( seconds * 1000L );
+		source.stop();
+		processingThread.shutdown();
+		processingThread.join();
+		elapsedNanos = System.nanoTime() - start;
+		ringDropped = ring.getDropped();
+		if( capture != null ) {
+			try {
+				capture.close();
+			} finally {
+				captureRecords = capture.getRecordsWritten();
+				captureDropped = capture.getRecordsDropped();
+				captureBytes = capture.getBytesWritten();
+				File files[] = captureDirectory.listFiles();
+				for( int i = 0 ; i < files.length ; ++i )
+					files[i].delete();
+				captureDirectory.delete();
+			}
+		}
+	}
+
+	public void printReport( java.io.PrintStream out ) {
+		double seconds = elapsedNanos / 1e9;
+		out.println( "Profile "+SyntheticSensorSource.PROFILE_NAMES[profile]+
+				" at "+rate+" Hz per sensor for "+String.format( "%.2f", seconds )+" s, capture "+
+				CAPTURE_MODES[captureMode] );
+		out.println( "  generated "+source.getSamplesGenerated()+
+				", processed "+processed+
+				" ("+String.format( "%.0f", processed / seconds )+" samples/s)" );
+		out.println( "  dropped in ring "+ringDropped+
+				", skipped by gaps "+source.getSamplesSkipped()+
+				", reordered "+source.getSamplesReordered() );
+		out.println( "  latency mean "+micros( (long)latency.getMean() )+
+				" p50 "+micros( latency.getPercentile( 50.0 ) )+
+				" p99 "+micros( latency.getPercentile( 99.0 ) )+
+				" p99.9 "+micros( latency.getPercentile( 99.9 ) )+
+				" max "+micros( latency.getMax() )+
+				", generator max lag "+micros( source.getMaxLagNanos() ) );
+		if( capture != null )
+			out.println( "  captured "+captureRecords+" records, "+captureBytes+
+					" bytes, dropped "+captureDropped );
+		out.println( "  engine "+FusionEngine.getStateName( engine.getState() )+
+				", "+diffs+" diffs" );
+	}
+
+	public void writeJson( PrintWriter out ) {
+		out.println( "{" );
+		out.println( "  \"profile\": \""+SyntheticSensorSource.PROFILE_NAMES[profile]+"\"," );
+		out.println( "  \"rate\": "+rate+"," );
+		out.println( "  \"jitter\": "+jitter+"," );
+		out.println( "  \"gapProbability\": "+gapProbability+"," );
+		out.println( "  \"gapMillis\": "+gapMillis+"," );
+		out.println( "  \"outOfOrderProbability\": "+outOfOrderProbability+"," );
+		out.println( "  \"capture\": \""+CAPTURE_MODES[captureMode]+"\"," );
+		out.println( "  \"ringCapacity\": "+ringCapacity+"," );
+		out.println( "  \"blockSize\": "+blockSize+"," );
+		out.println( "  \"elapsedNanos\": "+elapsedNanos+"," );
+		out.println( "  \"generated\": "+source.getSamplesGenerated()+"," );
+		out.println( "  \"processed\": "+processed+"," );
+		out.println( "  \"samplesPerSecond\": "+( processed * 1e9 / elapsedNanos )+"," );
+		out.println( "  \"ringDropped\": "+ringDropped+"," );
+		out.println( "  \"gapSkipped\": "+source.getSamplesSkipped()+"," );
+		out.println( "  \"reordered\": "+source.getSamplesReordered()+"," );
+		out.println( "  \"generatorMaxLagNanos\": "+source.getMaxLagNanos()+"," );
+		out.println( "  \"latencyMeanNanos\": "+latency.getMean()+"," );
+		out.println( "  \"latencyP50Nanos\": "+latency.getPercentile( 50.0 )+"," );
+		out.println( "  \"latencyP99Nanos\": "+latency.getPercentile( 99.0 )+"," );
+		out.println( "  \"latencyP999Nanos\": "+latency.getPercentile( 99.9 )+"," );
+		out.println( "  \"latencyMaxNanos\": "+latency.getMax()+"," );
+		out.println( "  \"captureRecords\": "+captureRecords+"," );
+		out.println( "  \"captureDropped\": "+captureDropped+"," );
+		out.println( "  \"diffs\": "+diffs );
+		out.println( "}" );
+	}
+
+	private static String micros( long nanos ) {
+		return String.format( "%.1f us", nanos / 1000.0 );
+	}
+
+// Drains the ring like the ProcessingThread of SamplingService
+	class ProcessingThread extends Thread {
+		ProcessingThread( SampleRing ring ) {
+			super( "LoadGenerator.processing" );
+			this.ring = ring;
+		}
+
+		public void run() {
+			try {
+				while( running || ( ring.size() > 0 ) ) {
+					if( ring.drain( sampleProcessor, blockSize ) == 0 )
+						ring.await( PROCESSING_WAIT_TIMEOUT );
+				}
+			} catch( InterruptedException ex ) {
+// Shut down
+			}
+		}
+
+		void shutdown() {
+			running = false;
+		}
+
+		private final SampleRing ring;
+		private volatile boolean running = true;
+	}
+
+	private final SampleBlockProcessor sampleProcessor = new SampleBlockProcessor() {
+		public void processBlock(
+				long timeStamps[],
+				byte sensorTypes[],
+				float xs[],
+				float ys[],
+				float zs[],
+				int offset,
+				int length ) {
+			long now = System.nanoTime();
+			int end = offset + length;
+			for( int i = offset ; i < end ; ++i )
+				latency.record( now - timeStamps[i] );
+			processed += length;
+			if( capture == null ) {
+				engine.processBlock( timeStamps, sensorTypes, xs, ys, zs, offset, length );
+				return;
+			}
+			for( int i = offset ; i < end ; ++i ) {
+				try {
+					capture.writeRaw(
+							timeStamps[i],
+							CaptureFormat.channelOfSensorType( sensorTypes[i] ),
+							xs[i],
+							ys[i],
+							zs[i] );
+				} catch( IOException ex ) {
+					captureFailed( ex );
+				}
+				engine.processBlock( timeStamps, sensorTypes, xs, ys, zs, i, 1 );
+			}
+		}
+	};
+
+	private final FusionListener fusionListener = new FusionListener() {
+		public void stateChanged( int oldState, int newState, int sampleCounter ) {
+		}
+
+		public void sampleCounter( int sampleCounter ) {
+		}
+
+		public void calibratingLimitExtended( int calibratingLimit ) {
+		}
+
+		public void calibrated( double gravity[], double gravityLen ) {
+			if( capture != null )
+				capture.writeCalibration( gravity, gravityLen );
+		}
+
+		public boolean diffRequested( long timeStamp ) {
+			return true;
+		}
+
+		public void diff( long timeStamp, double diff[], double rotatedDiff[] ) {
+			++diffs;
+			if( capture == null )
+				return;
+			try {
+				capture.writeDerived( timeStamp, CaptureFormat.CHANNEL_VECDIFF, diff );
+				capture.writeDerived( timeStamp, CaptureFormat.CHANNEL_ROTATEDDIFF, rotatedDiff );
+			} catch( IOException ex ) {
+				captureFailed( ex );
+			}
+		}
+
+		public void simulatedGravity( long timeStamp, double gravity[] ) {
+			if( capture == null )
+				return;
+			try {
+				capture.writeDerived( timeStamp, CaptureFormat.CHANNEL_SIMUL, gravity );
+			} catch( IOException ex ) {
+				captureFailed( ex );
+			}
+		}
+	};
+
+	private final CaptureSinkFactory captureSinkFactory = new CaptureSinkFactory() {
+		public CaptureSink create( int sequence ) throws IOException {
+			File file = new File( captureDirectory, "capture-"+sequence+".bin" );
+			if( captureMode == 2 )
+				return new CompressedCaptureWriter( file, null, null );
+			return new CaptureWriter( file, null, null, CaptureWriter.DEFAULT_SYNC_INTERVAL );
+		}
+	};
+
+	private void captureFailed( IOException ex ) {
+		throw new IllegalStateException( "Capture write failed", ex );
+	}
+
+	private int profile = SyntheticSensorSource.PROFILE_TILT;
+	private double rate = DEFAULT_RATE;
+	private int seconds = DEFAULT_SECONDS;
+	private double jitter = 0.0;
+	private double gapProbability = 0.0;
+	private long gapMillis = 0L;
+	private double outOfOrderProbability = 0.0;
+	private int captureMode = 0;
+	private int ringCapacity = DEFAULT_RING_CAPACITY;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private SyntheticSensorSource source;
+	private File captureDirectory;
+	private AsyncCaptureSink capture;
+	private final FusionEngine engine = new FusionEngine( fusionListener );
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private long elapsedNanos;
+	private long processed = 0L;
+	private long diffs = 0L;
+	private long ringDropped;
+	private long captureRecords;
+	private long captureDropped;
+	private long captureBytes;
+}
@@ -0,0 +1,117 @@
+package aexp.gyroaccel.bench;
+
+import java.util.Random;
+
+import aexp.gyroaccel.engine.FusionEngine;
+
+/**
+ * Interleaved accelerometer and gyroscope samples in the column layout of
+ * the sample ring. The stream starts with the device lying still long
+ * enough to calibrate, then the device is tilted back and forth with a
+ * slow rotation and shaken in bursts, with sensor noise and timestamp
+ * jitter on both sensors. Streams are deterministic for a given seed.
+ */
+public class SampleStream {
+	public static final long SAMPLE_PERIOD = 5000000L;
+	public static final long JITTER = 200000L;
+	public static final double GRAVITY = 9.81;
+	public static final double ACCEL_NOISE = 0.05;
+	public static final double GYRO_NOISE = 0.02;
+	public static final int STILL_SAMPLES = FusionEngine.CALIBRATING_LIMIT + 1000;
+
+	public static SampleStream generate( int count, long seed ) {
+		SampleStream stream = new SampleStream( count );
+		Random random = new Random( seed );
+		long timeStamp = 1000000000L;
+		double angle = 0.0;
+		for( int i = 0 ; i < count ; ++i ) {
+			timeStamp += SAMPLE_PERIOD / 2 + (long)( random.nextGaussian() * JITTER / 2 );
+			stream.timeStamps[i] = timeStamp;
+			boolean moving = i >= STILL_SAMPLES;
+// A tilt cycle takes 4000 samples (10 s), shaking for the last quarter
+			double rate = moving ? 0.8 * Math.sin( i * Math.PI / 2000.0 ) : 0.0;
+			boolean shaking = moving && ( ( i % 4000 ) >= 3000 );
+			if( ( i & 1 ) == 0 ) {
+				stream.sensorTypes[i] = (byte)FusionEngine.SENSORTYPE_ACCEL;
+				double shake = shaking ? 3.0 * Math.sin( i * 0.7 ) : 0.0;
+				stream.xs[i] = (float)( GRAVITY * Math.sin( angle ) + shake + random.nextGaussian() * ACCEL_NOISE );
+				stream.ys[i] = (float)( random.nextGaussian() * ACCEL_NOISE );
+				stream.zs[i] = (float)( GRAVITY * Math.cos( angle ) + shake / 2 + random.nextGaussian() * ACCEL_NOISE );
+			} else {
+				stream.sensorTypes[i] = (byte)FusionEngine.SENSORTYPE_GYRO;
+				stream.xs[i] = (float)( random.nextGaussian() * GYRO_NOISE );
+				stream.ys[i] = (float)( rate + random.nextGaussian() * GYRO_NOISE );
+				stream.zs[i] = (float)( random.nextGaussian() * GYRO_NOISE );
+				angle += rate * SAMPLE_PERIOD / 1e9;
+			}
+		}
+		return stream;
+	}
+
+	public SampleStream( int count ) {
+		timeStamps = new long[count];
+		sensorTypes = new byte[count];
+		xs = new float[count];
+		ys = new float[count];
+		zs = new float[count];
+	}
+
+	public int size() {
+		return timeStamps.length;
+	}
+
+	public long getDuration() {
+		return timeStamps[timeStamps.length - 1] - timeStamps[0] + SAMPLE_PERIOD / 2;
+	}
+
+/**
+ * Moves the whole stream forward in time so that it can be fed again to an
+ * engine that has already seen it.
+ */
+	public void shift( long delta ) {
+		for( int i = 0 ; i < timeStamps.length ; ++i )
+			timeStamps[i] += delta;
+	}
+
+/**
+ * Returns a copy that can be shifted independently of this stream.
+ */
+	public SampleStream copy() {
+		SampleStream copy = new SampleStream( timeStamps.length );
+		System.arraycopy( timeStamps, 0, copy.timeStamps, 0, timeStamps.length );
+		System.arraycopy( sensorTypes, 0, copy.sensorTypes, 0, sensorTypes.length );
+		System.arraycopy( xs, 0, copy.xs, 0, xs.length );
+		System.arraycopy( ys, 0, copy.ys, 0, ys.length );
+		System.arraycopy( zs, 0, copy.zs, 0, zs.length );
+		return copy;
+	}
+
+/**
+ * Returns the samples of one sensor type as a new stream.
+ */
+	public SampleStream select( int sensorType ) {
+		int n = 0;
+		for( int i = 0 ; i < timeStamps.length ; ++i )
+			if( sensorTypes[i] == sensorType )
+				++n;
+		SampleStream selected = new SampleStream( n );
+		int k = 0;
+		for( int i = 0 ; i < timeStamps.length ; ++i ) {
+			if( sensorTypes[i] != sensorType )
+				continue;
+			selected.timeStamps[k] = timeStamps[i];
+			selected.sensorTypes[k] = sensorTypes[i];
+			selected.xs[k] = xs[i];
+			selected.ys[k] = ys[i];
+			selected.zs[k] = zs[i];
+			++k;
+		}
+		return selected;
+	}
+
+	public final long timeStamps[];
+	public final byte sensorTypes[];
+	public final float xs[];
+	public final float ys[];
+	public final float zs[];
+}
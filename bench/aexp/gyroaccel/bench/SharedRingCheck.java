@@ -0,0 +1,185 @@
+package aexp.gyroaccel.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import aexp.gyroaccel.engine.SharedSampleRing;
+
+/**
+ * Checks SharedSampleRing over a memory mapped file, with the writer and
+ * the reader on separate mappings as in separate processes. A writer
+ * thread publishes STREAM_SIZE samples through a small ring as fast as it
+ * can while the reader follows it; every sample read must carry the
+ * payload written for its timestamp, timestamps must increase, and the
+ * samples read and lost must add up to the samples written once the ring
+ * is closed. Then a payload is corrupted behind the stamps of a complete
+ * record, and the reader must report that record as lost instead of
+ * returning it. Last, readers must refuse rings whose header claims a
+ * capacity that is not a power of two or whose size would overflow. The
+ * process exits with 1 if a check fails.
+ * <pre>
+ * SharedRingCheck
+ * </pre>
+ */
+public class SharedRingCheck {
+	public static final int CAPACITY = 1024;
+	public static final int STREAM_SIZE = 4 * 1024 * 1024;
+	public static final int READ_SIZE = 256;
+	public static final int CORRUPT_SAMPLES = 16;
+	public static final int CORRUPT_SEQUENCE = 5;
+	public static final int BAD_CAPACITIES[] = { 0, -CAPACITY, CAPACITY + 1, 0x40000000 };
+
+	public static void main( String args[] ) throws Exception {
+		File file = File.createTempFile( "sharedring", ".ring" );
+		file.deleteOnExit();
+		boolean ok = checkConcurrent( file ) & checkCorrupt( file ) & checkBadCapacity( file );
+		file.delete();
+		if( !ok ) {
+			System.out.println( "FAILED" );
+			System.exit( 1 );
+		}
+		System.out.println( "OK" );
+	}
+
+	static boolean checkConcurrent( File file ) throws Exception {
+		final SharedSampleRing.Writer writer = new SharedSampleRing.Writer(
+				SharedSampleRing.mapForWriting( file, CAPACITY ),
+				CAPACITY );
+		SharedSampleRing.Reader reader = openReader( file );
+		Thread writerThread = new Thread( "SharedRingCheck.writer" ) {
+			public void run() {
+				for( long n = 0L ; n < STREAM_SIZE ; ++n )
+					writer.put( n, channelOf( n ), xOf( n ), yOf( n ), zOf( n ) );
+				writer.close();
+			}
+		};
+		long timeStamps[] = new long[READ_SIZE];
+		byte channels[] = new byte[READ_SIZE];
+		float values[] = new float[READ_SIZE*3];
+		long read = 0L;
+		long mismatches = 0L;
+		long lastTimeStamp = -1L;
+		writerThread.start();
+		while( true ) {
+			boolean closed = reader.isClosed();
+			int n = reader.read( timeStamps, channels, values, READ_SIZE );
+			for( int i = 0 ; i < n ; ++i ) {
+				long t = timeStamps[i];
+				if( ( t <= lastTimeStamp ) ||
+						( channels[i] != channelOf( t ) ) ||
+						( values[3*i] != xOf( t ) ) ||
+						( values[3*i+1] != yOf( t ) ) ||
+						( values[3*i+2] != zOf( t ) ) )
+					++mismatches;
+				lastTimeStamp = t;
+			}
+			read += n;
+			if( n == 0 ) {
+				if( closed && ( reader.getNextSequence() == reader.getPublishedSequence() ) )
+					break;
+				Thread.yield();
+			}
+		}
+		writerThread.join();
+		boolean ok = ( mismatches == 0L ) && ( read + reader.getSamplesLost() == STREAM_SIZE );
+		System.out.println( "concurrent: "+STREAM_SIZE+" written, "+read+" read, "+
+				reader.getSamplesLost()+" lost, "+mismatches+" bad"+( ok ? "" : " FAILED" ) );
+		return ok;
+	}
+
+	static boolean checkCorrupt( File file ) throws IOException {
+		SharedSampleRing.Writer writer = new SharedSampleRing.Writer(
+				SharedSampleRing.mapForWriting( file, CAPACITY ),
+				CAPACITY );
+		for( long n = 0L ; n < CORRUPT_SAMPLES ; ++n )
+			writer.put( n, channelOf( n ), xOf( n ), yOf( n ), zOf( n ) );
+		writer.close();
+		corruptX( file, CORRUPT_SEQUENCE );
+		SharedSampleRing.Reader reader = openReader( file );
+		long timeStamps[] = new long[CORRUPT_SAMPLES];
+		int n = reader.read( timeStamps, new byte[CORRUPT_SAMPLES], new float[CORRUPT_SAMPLES*3], CORRUPT_SAMPLES );
+		boolean returned = false;
+		for( int i = 0 ; i < n ; ++i )
+			returned |= timeStamps[i] == CORRUPT_SEQUENCE;
+		boolean ok = ( n == CORRUPT_SAMPLES - 1 ) && !returned && ( reader.getSamplesLost() == 1L );
+		System.out.println( "corrupt record: "+n+" read, "+reader.getSamplesLost()+" lost"+
+				( returned ? ", corrupt record returned" : "" )+( ok ? "" : " FAILED" ) );
+		return ok;
+	}
+
+	static boolean checkBadCapacity( File file ) throws IOException {
+		boolean ok = true;
+		for( int i = 0 ; i < BAD_CAPACITIES.length ; ++i ) {
+			new SharedSampleRing.Writer( SharedSampleRing.mapForWriting( file, CAPACITY ), CAPACITY ).close();
+			setCapacity( file, BAD_CAPACITIES[i] );
+			boolean refused = false;
+			try {
+				openReader( file );
+			} catch( IOException ex ) {
+				refused = true;
+			}
+			System.out.println( "capacity "+BAD_CAPACITIES[i]+": "+( refused ? "refused" : "accepted FAILED" ) );
+			ok &= refused;
+		}
+		return ok;
+	}
+
+	private static SharedSampleRing.Reader openReader( File file ) throws IOException {
+		FileInputStream in = new FileInputStream( file );
+		try {
+			return new SharedSampleRing.Reader( SharedSampleRing.mapForReading( in ) );
+		} finally {
+			in.close();
+		}
+	}
+
+// Flips a bit of the x value of a record through a mapping of its own
+	private static void corruptX( File file, long sequence ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0L, raf.length() );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			int offset = SharedSampleRing.HEADER_SIZE +
+					(int)( sequence % CAPACITY ) * SharedSampleRing.RECORD_SIZE +
+					8 + 8 + 4;
+			buffer.putInt( offset, buffer.getInt( offset ) ^ 1 );
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+// Overwrites the capacity field of the header
+	private static void setCapacity( File file, int capacity ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0L, raf.length() );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			buffer.putInt( 8, capacity );
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	static int channelOf( long n ) {
+		return 1 + (int)( n & 1L );
+	}
+
+	static float xOf( long n ) {
+		return (float)( n & 0xFFFFL );
+	}
+
+	static float yOf( long n ) {
+		return -(float)( ( n >>> 16 ) & 0xFFFFL );
+	}
+
+	static float zOf( long n ) {
+		return xOf( n ) * 0.25f + 1.0f;
+	}
+}
@@ -1,34 +1,79 @@
 package aexp.gyroaccel;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+/**
+ * Shows the latest diff as a ball over the axes. A render thread owns the
+ * surface while it exists: once per FRAME_INTERVAL it takes the latest
+ * vector from the source slot and draws it if it changed. The background
+ * with the axes is drawn once per surface size into a bitmap, and drawing
+ * a frame allocates nothing.
+ */
 public class BallPanel extends SurfaceView implements SurfaceHolder.Callback {
 	static final float SCALE = 10f;	// Maximum acceleration in m/s2
-	
+	static final long FRAME_INTERVAL = GyroAccelActivity.FRAME_INTERVAL;
+
 	public BallPanel(Context context, AttributeSet attrs) {
 		super(context, attrs);
         getHolder().addCallback(this);
         setFocusable(true);
+		axisPaint.setColor( Color.WHITE );
+		ballPaint.setColor( Color.WHITE );
+		ballPaint.setStyle( Paint.Style.FILL );
+	}
+
+/**
+ * Sets the slot the render thread takes the diffs from.
+ */
+	public void setSource( LatestValueSlot source ) {
+		this.source = source;
+	}
+
+	public long getFramesDrawn() {
+		return framesDrawn;
+	}
+
+/**
+ * Frame deadlines the render thread missed.
+ */
+	public long getFramesDropped() {
+		return framesDropped;
+	}
+
+	public long getMeanFrameNanos() {
+		return framesDrawn == 0L ? 0L : frameNanosSum / framesDrawn;
+	}
+
+	public long getMaxFrameNanos() {
+		return maxFrameNanos;
 	}
 
 // SurfaceHolder.Callback
 	@Override
 	public void surfaceChanged(
-			SurfaceHolder holder, 
-			int format, 
+			SurfaceHolder holder,
+			int format,
 			int width,
 			int height) {
+		stopRendering();
 		this.panelHeight = (float)height;
 		this.panelWidth = (float)width;
-		Canvas c = holder.lockCanvas();
-		drawBall( c,false, 0.0f,0.0f,0.0f);
-		holder.unlockCanvasAndPost( c );
+		halfWidth = panelWidth / 2.0f;
+		halfHeight = panelHeight / 2.0f;
+		xScale = halfWidth / SCALE;
+		yScale = halfHeight / SCALE;
+		createAxesLayer( width, height );
+		renderThread = new RenderThread( holder );
+		renderThread.start();
 	}
 
 	@Override
@@ -36,34 +81,145 @@ public class BallPanel extends SurfaceView implements SurfaceHolder.Callback {
 		GyroAccelActivity.ballPanel = this;
 	}
 
+// The surface must not be drawn once this returns
 	@Override
 	public void surfaceDestroyed(SurfaceHolder holder) {
-		GyroAccelActivity.ballPanel = this;		
+		stopRendering();
+		if( axesLayer != null ) {
+			axesLayer.recycle();
+			axesLayer = null;
+		}
+		LatestValueSlot slot = source;
+		Log.d( GyroAccelActivity.LOG_TAG, "BallPanel: "+
+				( slot == null ? 0 : slot.getSetCount() )+" diffs received, "+
+				framesDrawn+" frames drawn, "+
+				framesDropped+" dropped, frame time mean "+
+				( getMeanFrameNanos() / 1000L )+" us, max "+
+				( maxFrameNanos / 1000L )+" us" );
+		GyroAccelActivity.ballPanel = this;
 	}
 
-	public void drawBall( Canvas c, 
-				boolean ball, 
-				float x, 
-				float y, 
+	public void drawBall( Canvas c,
+				boolean ball,
+				float x,
+				float y,
 				float z ) {
-		c.drawRGB( 0,0,0);
-		Paint p = new Paint();
-		p.setColor( Color.WHITE);
-		float halfWidth = panelWidth / 2.0f;
-		float halfHeight = panelHeight / 2.0f;
-		c.drawLine( halfWidth,0,halfWidth,panelHeight,p);
-		c.drawLine( 0,halfHeight,panelWidth,halfHeight,p);
+		if( axesLayer != null )
+			c.drawBitmap( axesLayer, 0.0f, 0.0f, null );
+		else
+			drawAxes( c );
 		if( ball ) {
-			float cx = halfWidth + ( halfWidth * ( x / SCALE ) );
-			float cy = halfHeight + ( halfHeight * ( y / SCALE ) );
+			float cx = halfWidth + ( xScale * x );
+			float cy = halfHeight + ( yScale * y );
 			float radius = 100 + ( 100* ( z / SCALE ) );
 			if( radius < 0.0f )
 				radius = 1.0f;
-			p.setStyle( Paint.Style.FILL);
-			c.drawCircle(cx, cy, radius, p );
+			c.drawCircle(cx, cy, radius, ballPaint );
+		}
+	}
+
+	private void drawAxes( Canvas c ) {
+		c.drawRGB( 0,0,0);
+		c.drawLine( halfWidth,0,halfWidth,panelHeight,axisPaint);
+		c.drawLine( 0,halfHeight,panelWidth,halfHeight,axisPaint);
+	}
+
+	private void createAxesLayer( int width, int height ) {
+		if( axesLayer != null )
+			axesLayer.recycle();
+		axesLayer = null;
+		if( ( width <= 0 ) || ( height <= 0 ) )
+			return;
+		axesLayer = Bitmap.createBitmap( width, height, Bitmap.Config.RGB_565 );
+		drawAxes( new Canvas( axesLayer ) );
+	}
+
+	private void stopRendering() {
+		RenderThread thread = renderThread;
+		if( thread == null )
+			return;
+		renderThread = null;
+		thread.shutdown();
+		try {
+			thread.join();
+		} catch( InterruptedException ex ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	class RenderThread extends Thread {
+		RenderThread( SurfaceHolder holder ) {
+			super( "BallPanel.render" );
+			this.holder = holder;
+		}
+
+		public void run() {
+			boolean ball = false;
+			boolean redraw = true;
+			long nextFrameTime = SystemClock.uptimeMillis();
+			try {
+				while( running ) {
+					long wait = nextFrameTime - SystemClock.uptimeMillis();
+					if( wait > 0L )
+						Thread.sleep( wait );
+					long late = SystemClock.uptimeMillis() - nextFrameTime;
+					long missed = late / FRAME_INTERVAL;
+					framesDropped += missed;
+					nextFrameTime += ( missed + 1L ) * FRAME_INTERVAL;
+					LatestValueSlot slot = source;
+					if( ( slot != null ) && slot.take( diff ) ) {
+						ball = true;
+						redraw = true;
+					}
+					if( redraw && drawFrame( ball ) )
+						redraw = false;
+				}
+			} catch( InterruptedException ex ) {
+// Surface going away
+			}
+		}
+
+		void shutdown() {
+			running = false;
+			interrupt();
+		}
+
+		private boolean drawFrame( boolean ball ) {
+			long start = System.nanoTime();
+			Canvas c = holder.lockCanvas();
+			if( c == null )
+				return false;
+			try {
+				drawBall( c, ball, (float)diff[0], (float)diff[1], (float)diff[2] );
+			} finally {
+				holder.unlockCanvasAndPost( c );
+			}
+			long frameNanos = System.nanoTime() - start;
+			frameNanosSum += frameNanos;
+			if( frameNanos > maxFrameNanos )
+				maxFrameNanos = frameNanos;
+			++framesDrawn;
+			return true;
 		}
+
+		private final SurfaceHolder holder;
+		private final double diff[] = new double[3];
+		private volatile boolean running = true;
 	}
 
 	float panelHeight;
 	float panelWidth;
+	private float halfWidth;
+	private float halfHeight;
+	private float xScale;
+	private float yScale;
+	private final Paint axisPaint = new Paint();
+	private final Paint ballPaint = new Paint();
+	private Bitmap axesLayer = null;
+	private volatile LatestValueSlot source = null;
+	private RenderThread renderThread = null;
+	private volatile long framesDrawn = 0L;
+	private volatile long framesDropped = 0L;
+	private volatile long frameNanosSum = 0L;
+	private volatile long maxFrameNanos = 0L;
 }
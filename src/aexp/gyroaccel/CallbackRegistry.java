@@ -0,0 +1,322 @@
+package aexp.gyroaccel;
+
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The IGyroAccel callbacks of all clients of the service. Every client
+ * chooses the callbacks it wants (a mask of SamplingService.CALLBACK_
+ * constants) and the interval of its diff() updates. Clients are
+ * registered and removed on binder threads while the processing thread
+ * dispatches; a RemoteCallbackList takes care of both and drops clients
+ * whose process died.
+ * <p>
+ * A client that throws from a callback is logged and skipped; it cannot
+ * stop the dispatch to the others or the processing thread. Clients in this
+ * process are called directly, so this is where their bugs would surface.
+ * <p>
+ * diff() is throttled per distinct interval rather than per client: all
+ * clients asking for the same interval share one DiffRate, which decides
+ * once per sample whether they are due. Batching works the same way: all
+ * clients asking for the same stream, batch size and latency share one
+ * SampleBatcher, and a batcher is dropped with its last client.
+ */
+class CallbackRegistry {
+	void register( IBinder binder, long diffIntervalMillis, int callbacks ) {
+		synchronized( clients ) {
+			Client previous = clients.get( binder );
+			SampleBatcher batcher = previous == null ? null : previous.batcher;
+			replace( binder, new Client( callbacks, rateFor( diffIntervalMillis ), batcher ) );
+		}
+	}
+
+/**
+ * Sets the batching of samples() for a registered client; stream
+ * SamplingService.BATCH_STREAM_NONE turns it off. Returns false if the
+ * client is not registered or has died.
+ */
+	boolean setBatching( IBinder binder, int stream, int batchSize, long maxLatencyMillis ) {
+		synchronized( clients ) {
+			Client client = clients.get( binder );
+			if( client == null )
+				return false;
+			SampleBatcher batcher = stream == SamplingService.BATCH_STREAM_NONE ?
+					null :
+					batcherFor( stream, batchSize, maxLatencyMillis );
+			return replace( binder, new Client( client.callbacks, client.rate, batcher ) );
+		}
+	}
+
+	void unregister( IBinder binder ) {
+		synchronized( clients ) {
+			callbackList.unregister( IGyroAccel.Stub.asInterface( binder ) );
+			clients.remove( binder );
+			updateRates();
+		}
+	}
+
+	int getClientCount() {
+		synchronized( clients ) {
+			return clients.size();
+		}
+	}
+
+/**
+ * Returns true if some client takes any of the callbacks of the mask.
+ */
+	boolean isWanted( int callbacks ) {
+		return ( wantedCallbacks & callbacks ) != 0;
+	}
+
+/**
+ * The distinct batchers of the clients taking samples(). The array is
+ * replaced, never changed, whenever the set changes.
+ */
+	SampleBatcher[] getBatchers() {
+		return batchers;
+	}
+
+/**
+ * Decides for the current sample which intervals are due for a diff()
+ * update and returns true if any is. Processing thread only.
+ */
+	boolean diffDue() {
+		DiffRate currentRates[] = rates;
+		long currentTime = System.currentTimeMillis();
+		diffPending = false;
+		for( int i = 0 ; i < currentRates.length ; ++i ) {
+			DiffRate rate = currentRates[i];
+			rate.due = ( rate.lastSent < 0L ) || ( currentTime - rate.lastSent > rate.intervalMillis );
+			if( rate.due ) {
+				rate.lastSent = currentTime;
+				diffPending = true;
+			}
+		}
+		return diffPending;
+	}
+
+/**
+ * Sends the diff to the clients whose interval diffDue() found due.
+ */
+	synchronized void sendDiff( double x, double y, double z ) {
+		if( !diffPending )
+			return;
+		diffPending = false;
+		int n = callbackList.beginBroadcast();
+		try {
+			for( int i = 0 ; i < n ; ++i ) {
+				Client client = (Client)callbackList.getBroadcastCookie( i );
+				if( ( ( client.callbacks & SamplingService.CALLBACK_DIFF ) == 0 ) || !client.rate.due )
+					continue;
+				try {
+					callbackList.getBroadcastItem( i ).diff( x, y, z );
+				} catch( RemoteException ex ) {
+					Log.e( SamplingService.LOG_TAG, "diff() callback", ex );
+				} catch( RuntimeException ex ) {
+					clientFailed( "diff()", ex );
+				}
+			}
+		} finally {
+			callbackList.finishBroadcast();
+		}
+	}
+
+	synchronized void sendState( int state ) {
+		int n = callbackList.beginBroadcast();
+		try {
+			for( int i = 0 ; i < n ; ++i ) {
+				Client client = (Client)callbackList.getBroadcastCookie( i );
+				if( ( client.callbacks & SamplingService.CALLBACK_STATE ) == 0 )
+					continue;
+				try {
+					callbackList.getBroadcastItem( i ).statusMessage( state );
+				} catch( RemoteException ex ) {
+					Log.e( SamplingService.LOG_TAG, "statusMessage() callback", ex );
+				} catch( RuntimeException ex ) {
+					clientFailed( "statusMessage()", ex );
+				}
+			}
+		} finally {
+			callbackList.finishBroadcast();
+		}
+	}
+
+	synchronized void sendSampleCounter( int sampleCounter ) {
+		int n = callbackList.beginBroadcast();
+		try {
+			for( int i = 0 ; i < n ; ++i ) {
+				Client client = (Client)callbackList.getBroadcastCookie( i );
+				if( ( client.callbacks & SamplingService.CALLBACK_SAMPLE_COUNTER ) == 0 )
+					continue;
+				try {
+					callbackList.getBroadcastItem( i ).sampleCounter( sampleCounter );
+				} catch( RemoteException ex ) {
+					Log.e( SamplingService.LOG_TAG, "sampleCounter() callback", ex );
+				} catch( RuntimeException ex ) {
+					clientFailed( "sampleCounter()", ex );
+				}
+			}
+		} finally {
+			callbackList.finishBroadcast();
+		}
+	}
+
+/**
+ * Sends a batch of a batcher to the clients of the batcher that take
+ * samples() and returns how many got it.
+ */
+	synchronized int sendSamples( SampleBatcher batcher, int count, long timeStamps[], byte channels[], float values[] ) {
+		int sent = 0;
+		int n = callbackList.beginBroadcast();
+		try {
+			for( int i = 0 ; i < n ; ++i ) {
+				Client client = (Client)callbackList.getBroadcastCookie( i );
+				if( ( ( client.callbacks & SamplingService.CALLBACK_SAMPLES ) == 0 ) || ( client.batcher != batcher ) )
+					continue;
+				try {
+					callbackList.getBroadcastItem( i ).samples( count, timeStamps, channels, values );
+					++sent;
+				} catch( RemoteException ex ) {
+					Log.e( SamplingService.LOG_TAG, "samples() callback", ex );
+				} catch( RuntimeException ex ) {
+					clientFailed( "samples()", ex );
+				}
+			}
+		} finally {
+			callbackList.finishBroadcast();
+		}
+		return sent;
+	}
+
+// A local client failed, most likely touching its views from the
+// processing thread
+	private void clientFailed( String callbackName, RuntimeException ex ) {
+		Log.e( SamplingService.LOG_TAG, callbackName+" callback threw", ex );
+	}
+
+	void kill() {
+		synchronized( clients ) {
+			callbackList.kill();
+			clients.clear();
+			updateRates();
+		}
+	}
+
+// Installs the options of a client, with the clients lock held. Returns
+// false and drops the client if its process has already died.
+	private boolean replace( IBinder binder, Client client ) {
+		IGyroAccel callback = IGyroAccel.Stub.asInterface( binder );
+		callbackList.unregister( callback );
+		boolean registered = callbackList.register( callback, client );
+		if( registered )
+			clients.put( binder, client );
+		else
+			clients.remove( binder );
+		updateRates();
+		return registered;
+	}
+
+// Reuses the DiffRate of an interval some client already has so that its
+// clients stay in step
+	private DiffRate rateFor( long intervalMillis ) {
+		for( Iterator<Client> it = clients.values().iterator() ; it.hasNext() ; ) {
+			DiffRate rate = it.next().rate;
+			if( rate.intervalMillis == intervalMillis )
+				return rate;
+		}
+		return new DiffRate( intervalMillis );
+	}
+
+// Reuses the batcher of the same options some client already has so that
+// its clients get the same batches
+	private SampleBatcher batcherFor( int stream, int batchSize, long maxLatencyMillis ) {
+		for( Iterator<Client> it = clients.values().iterator() ; it.hasNext() ; ) {
+			SampleBatcher batcher = it.next().batcher;
+			if( ( batcher != null ) &&
+					( batcher.getStream() == stream ) &&
+					( batcher.getBatchSize() == batchSize ) &&
+					( batcher.getMaxLatencyMillis() == maxLatencyMillis ) )
+				return batcher;
+		}
+		return new SampleBatcher( stream, batchSize, maxLatencyMillis );
+	}
+
+// Rebuilds the sets of distinct intervals of the clients taking diff() and
+// of distinct batchers of the clients taking samples(), with the clients
+// lock held
+	private void updateRates() {
+		DiffRate newRates[] = new DiffRate[clients.size()];
+		SampleBatcher newBatchers[] = new SampleBatcher[clients.size()];
+		int count = 0;
+		int batcherCount = 0;
+		int callbacks = 0;
+		for( Iterator<Client> it = clients.values().iterator() ; it.hasNext() ; ) {
+			Client client = it.next();
+			callbacks |= client.callbacks;
+			if( ( client.batcher != null ) && ( ( client.callbacks & SamplingService.CALLBACK_SAMPLES ) != 0 ) ) {
+				boolean known = false;
+				for( int i = 0 ; i < batcherCount ; ++i )
+					known |= newBatchers[i] == client.batcher;
+				if( !known )
+					newBatchers[batcherCount++] = client.batcher;
+			}
+			if( ( client.callbacks & SamplingService.CALLBACK_DIFF ) == 0 )
+				continue;
+			boolean known = false;
+			for( int i = 0 ; i < count ; ++i )
+				known |= newRates[i] == client.rate;
+			if( !known )
+				newRates[count++] = client.rate;
+		}
+		DiffRate trimmed[] = new DiffRate[count];
+		System.arraycopy( newRates, 0, trimmed, 0, count );
+		rates = trimmed;
+		SampleBatcher trimmedBatchers[] = new SampleBatcher[batcherCount];
+		System.arraycopy( newBatchers, 0, trimmedBatchers, 0, batcherCount );
+		batchers = trimmedBatchers;
+		wantedCallbacks = callbacks;
+	}
+
+	static class DiffRate {
+		DiffRate( long intervalMillis ) {
+			this.intervalMillis = intervalMillis;
+		}
+
+		final long intervalMillis;
+// Processing thread state
+		long lastSent = -1L;
+		boolean due;
+	}
+
+	static class Client {
+		Client( int callbacks, DiffRate rate, SampleBatcher batcher ) {
+			this.callbacks = callbacks;
+			this.rate = rate;
+			this.batcher = batcher;
+		}
+
+		final int callbacks;
+		final DiffRate rate;
+// Null if the client does not batch
+		final SampleBatcher batcher;
+	}
+
+	private final RemoteCallbackList<IGyroAccel> callbackList = new RemoteCallbackList<IGyroAccel>() {
+		public void onCallbackDied( IGyroAccel callback, Object cookie ) {
+			Log.d( SamplingService.LOG_TAG, "Client died" );
+			synchronized( clients ) {
+				clients.remove( callback.asBinder() );
+				updateRates();
+			}
+		}
+	};
+	private final HashMap<IBinder, Client> clients = new HashMap<IBinder, Client>();
+	private volatile DiffRate rates[] = new DiffRate[0];
+	private volatile SampleBatcher batchers[] = new SampleBatcher[0];
+	private volatile int wantedCallbacks = 0;
+	private boolean diffPending = false;
+}
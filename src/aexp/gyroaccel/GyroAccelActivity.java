@@ -7,7 +7,6 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.ComponentName;
 import android.content.Context;
-import android.graphics.Canvas;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
 import android.media.AudioManager;
@@ -17,7 +16,6 @@ import android.os.Handler;
 import android.os.RemoteException;
 import android.os.IBinder;
 import android.util.Log;
-import android.view.SurfaceHolder;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
@@ -30,6 +28,9 @@ public class GyroAccelActivity extends Activity
 	static final String LOG_TAG = "GYROCAPTURE";
 	static final String SAMPLING_SERVICE_ACTIVATED_KEY = "samplingServiceActivated";
 	static final String GYROACCEL_KEY = "sampleCounter";
+// BallPanel draws at most once per frame; the service is asked for diff()
+// updates at the same interval
+	static final long FRAME_INTERVAL = 16L;
 
     /** Called when the activity is first created. */
     @Override
@@ -63,6 +64,7 @@ public class GyroAccelActivity extends Activity
 			sampleCounterTV.setVisibility( View.VISIBLE );
         }
         ballPanel = (BallPanel)findViewById( R.id.ball);
+        ballPanel.setSource( latestDiff );
 		statusMessageTV = (TextView)findViewById( R.id.state );
 		CheckBox cb = (CheckBox)findViewById( R.id.cb_sampling );
         if( samplingServiceActivated )
@@ -163,7 +165,10 @@ public class GyroAccelActivity extends Activity
 			Log.e( LOG_TAG, "setCallbackOnService: Service not available" );
 		else {
 			try {
-				samplingService.setCallback( iSteps.asBinder() );
+				samplingService.registerCallback( 
+						iSteps.asBinder(), 
+						(int)FRAME_INTERVAL, 
+						SamplingService.CALLBACK_DEFAULT );
 			} catch( DeadObjectException ex ) {
 				Log.e( LOG_TAG, "DeadObjectException",ex );
 			} catch( RemoteException ex ) {
@@ -177,7 +182,7 @@ public class GyroAccelActivity extends Activity
 			Log.e( LOG_TAG, "releaseCallbackOnService: Service not available" );
 		else {
 			try {
-				samplingService.removeCallback();
+				samplingService.removeCallback( iSteps.asBinder() );
 			} catch( DeadObjectException ex ) {
 				Log.e( LOG_TAG, "DeadObjectException",ex );
 			} catch( RemoteException ex ) {
@@ -254,17 +259,43 @@ public class GyroAccelActivity extends Activity
     private IGyroAccel.Stub iSteps 
 				= new IGyroAccel.Stub() {
 
+// The service lives in this process, so the callbacks come straight from
+// its processing thread; the views are updated on the UI thread
 		@Override
 		public void sampleCounter(int count) throws RemoteException {
 			Log.d( LOG_TAG, "sample count: "+count );
-			sampleCounterText = Integer.toString( count );
-			sampleCounterTV.setText( sampleCounterText );			
+			pendingSampleCounter = count;
+			uiHandler.post( updateSampleCounter );
 		}
 		
 		public void statusMessage( int newState ) {
-			state = newState;
+			pendingState = newState;
+			uiHandler.post( updateState );
+		}
+
+// Only stores the diff, the render thread of BallPanel draws it
+		@Override
+		public void diff(double x, double y, double z) throws RemoteException {
+			latestDiff.set( x, y, z );
+		}
+
+// The ball follows the throttled diff(), batching is not requested
+		public void samples( int count, long timeStamps[], byte channels[], float values[] ) {
+		}
+    };
+
+	private final Runnable updateSampleCounter = new Runnable() {
+		public void run() {
+			sampleCounterText = Integer.toString( pendingSampleCounter );
+			sampleCounterTV.setText( sampleCounterText );			
+		}
+	};
+
+	private final Runnable updateState = new Runnable() {
+		public void run() {
+			state = pendingState;
 			if( statusMessageTV  != null ) {
-				statusMessageTV.setText( getStateName( newState ) );
+				statusMessageTV.setText( getStateName( state ) );
 			}
 			switch( state ) {
 			case SamplingService.ENGINESTATES_CALIBRATING:
@@ -277,21 +308,12 @@ public class GyroAccelActivity extends Activity
 				break;				
 			}
 		}
-
-		@Override
-		public void diff(double x, double y, double z) throws RemoteException {
-			if( ballPanel != null ) {
-				SurfaceHolder holder = ballPanel.getHolder();
-				Canvas c = holder.lockCanvas();
-				if( c != null ) {
-					ballPanel.drawBall(c, true, (float)x, (float)y, (float)z);
-					holder.unlockCanvasAndPost(c);
-				}
-			}
-		}
-    };
+	};
 
     private Handler uiHandler;
+    private volatile int pendingSampleCounter;
+    private volatile int pendingState;
+    private final LatestValueSlot latestDiff = new LatestValueSlot();
     private int state = SamplingService.ENGINESTATES_IDLE;
     private ISamplingService samplingService = null;
     private SamplingServiceConnection samplingServiceConnection = null;
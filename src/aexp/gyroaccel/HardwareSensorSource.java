@@ -0,0 +1,89 @@
+package aexp.gyroaccel;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.util.Log;
+import aexp.gyroaccel.engine.FusionEngine;
+import aexp.gyroaccel.engine.SampleRing;
+import aexp.gyroaccel.engine.SensorSource;
+import java.util.List;
+
+/**
+ * Feeds the sample ring from the first accelerometer and gyroscope of the
+ * SensorManager. Samples are put into the ring on the sensor callback
+ * thread, which therefore returns immediately.
+ */
+class HardwareSensorSource implements SensorSource, SensorEventListener {
+	HardwareSensorSource( SensorManager sensorManager, int rate ) {
+		this.sensorManager = sensorManager;
+		this.rate = rate;
+       	List<Sensor> sensors = sensorManager.getSensorList( Sensor.TYPE_ACCELEROMETER  );
+      	accelSensor = sensors.size() == 0 ? null : sensors.get( 0 );
+       	sensors = sensorManager.getSensorList( Sensor.TYPE_GYROSCOPE );
+      	gyroSensor = sensors.size() == 0 ? null : sensors.get( 0 );
+	}
+
+	Sensor getAccelSensor() {
+		return accelSensor;
+	}
+
+	Sensor getGyroSensor() {
+		return gyroSensor;
+	}
+
+	public void start( SampleRing ring ) {
+		this.ring = ring;
+      	if( ( accelSensor != null ) && ( gyroSensor != null ) ) {
+			Log.d( SamplingService.LOG_TAG, "registerListener/SamplingService" );
+           	sensorManager.registerListener(
+                            this,
+                            accelSensor,
+                            rate );
+           	sensorManager.registerListener(
+                    this,
+                    gyroSensor,
+                    rate );
+		} else {
+			Log.d( SamplingService.LOG_TAG,
+				"Sensor(s) missing: accelSensor: "+
+				accelSensor+
+				"; gyroSensor: "+
+				gyroSensor);
+		}
+	}
+
+	public void stop() {
+		Log.d( SamplingService.LOG_TAG, "unregisterListener/SamplingService" );
+		sensorManager.unregisterListener( this );
+	}
+
+// SensorEventListener
+    public void onAccuracyChanged (Sensor sensor, int accuracy) {
+    }
+
+    public void onSensorChanged(SensorEvent sensorEvent) {
+		float values[] = sensorEvent.values;
+		if( values.length < 3 )
+				return;
+		int sensorType = FusionEngine.SENSORTYPE_NA;
+		if( sensorEvent.sensor == accelSensor )
+			sensorType = FusionEngine.SENSORTYPE_ACCEL;
+		else
+		if( sensorEvent.sensor == gyroSensor )
+			sensorType = FusionEngine.SENSORTYPE_GYRO;
+		ring.put(
+				sensorEvent.timestamp,
+				sensorType,
+				values[0],
+				values[1],
+				values[2] );
+    }
+
+	private final SensorManager sensorManager;
+	private final int rate;
+	private final Sensor accelSensor;
+	private final Sensor gyroSensor;
+	private SampleRing ring;
+}
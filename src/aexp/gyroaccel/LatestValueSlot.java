@@ -0,0 +1,65 @@
+package aexp.gyroaccel;
+
+/**
+ * Holds the latest of a stream of vectors for a consumer that only cares
+ * about the most recent one, like a display refreshed once per frame. The
+ * producer overwrites the slot without ever waiting; the consumer takes
+ * the vector if it changed since it last looked. Values overwritten before
+ * they were taken are simply lost.
+ * <p>
+ * The slot is a sequence lock: the version is odd while the producer
+ * writes, and a consumer retries if the version moved while it copied.
+ * There must be a single producer thread.
+ */
+class LatestValueSlot {
+	void set( double x, double y, double z ) {
+		int v = version;
+		version = v + 1;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		version = v + 2;
+	}
+
+/**
+ * Copies the vector into xyz and returns true if it was set since the last
+ * call, otherwise returns false and leaves xyz alone.
+ */
+	boolean take( double xyz[] ) {
+		while( true ) {
+			int v = version;
+			if( v == takenVersion )
+				return false;
+			if( ( v & 1 ) != 0 ) {
+				Thread.yield();
+				continue;
+			}
+			double cx = x;
+			double cy = y;
+			double cz = z;
+			if( version != v )
+				continue;
+			xyz[0] = cx;
+			xyz[1] = cy;
+			xyz[2] = cz;
+			takenVersion = v;
+			return true;
+		}
+	}
+
+/**
+ * The number of vectors set so far.
+ */
+	int getSetCount() {
+		return version >>> 1;
+	}
+
+// The fields are volatile so that the copy cannot be reordered around the
+// version checks
+	private volatile int version = 0;
+	private volatile double x;
+	private volatile double y;
+	private volatile double z;
+// Consumer state
+	private int takenVersion = 0;
+}
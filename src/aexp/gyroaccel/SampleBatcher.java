@@ -0,0 +1,113 @@
+package aexp.gyroaccel;
+
+/**
+ * Collects samples for IGyroAccel.samples() so that a client receives every
+ * sample of a stream in one oneway transaction per batch instead of one
+ * transaction per sample. A batch is sent when it is full or when its
+ * oldest sample has waited maxLatencyMillis, whichever comes first.
+ * CallbackRegistry shares a batcher between the clients asking for the
+ * same stream, batch size and latency; its batches go to those clients
+ * only.
+ * <p>
+ * Sample i of a batch is timeStamps[i], channels[i] (a CaptureFormat
+ * CHANNEL_ constant) and values[3*i .. 3*i+2]. A binder transaction
+ * carries the arrays whole, so they always hold exactly count samples: a
+ * full batch is sent from the arrays samples are collected in, a batch
+ * cut short by the latency is copied into arrays of its size. Those are
+ * kept for the next short batch, which with a steady sample rate mostly
+ * has the same size. Used only on the processing thread.
+ */
+class SampleBatcher {
+	SampleBatcher( int stream, int batchSize, long maxLatencyMillis ) {
+		this.stream = stream;
+		this.maxLatencyMillis = maxLatencyMillis;
+		timeStamps = new long[batchSize];
+		channels = new byte[batchSize];
+		values = new float[batchSize*3];
+	}
+
+	int getStream() {
+		return stream;
+	}
+
+	int getBatchSize() {
+		return timeStamps.length;
+	}
+
+	long getMaxLatencyMillis() {
+		return maxLatencyMillis;
+	}
+
+	void add( CallbackRegistry callbacks, long timeStamp, int channel, float x, float y, float z ) {
+		if( count == 0 )
+			firstSampleTime = System.currentTimeMillis();
+		timeStamps[count] = timeStamp;
+		channels[count] = (byte)channel;
+		int base = count * 3;
+		values[base] = x;
+		values[base+1] = y;
+		values[base+2] = z;
+		if( ++count == timeStamps.length )
+			flush( callbacks );
+	}
+
+	void flushIfDue( CallbackRegistry callbacks ) {
+		if( ( count > 0 ) &&
+				( System.currentTimeMillis() - firstSampleTime >= maxLatencyMillis ) )
+			flush( callbacks );
+	}
+
+// Samples of a batch that no client takes are discarded
+	void flush( CallbackRegistry callbacks ) {
+		if( count == 0 )
+			return;
+		int sent;
+		if( count == timeStamps.length )
+			sent = callbacks.sendSamples( this, count, timeStamps, channels, values );
+		else {
+			if( ( shortTimeStamps == null ) || ( shortTimeStamps.length != count ) ) {
+				shortTimeStamps = new long[count];
+				shortChannels = new byte[count];
+				shortValues = new float[count*3];
+			}
+			System.arraycopy( timeStamps, 0, shortTimeStamps, 0, count );
+			System.arraycopy( channels, 0, shortChannels, 0, count );
+			System.arraycopy( values, 0, shortValues, 0, count*3 );
+			sent = callbacks.sendSamples( this, count, shortTimeStamps, shortChannels, shortValues );
+		}
+		if( sent == 0 )
+			samplesDiscarded += count;
+		else {
+			++batchesSent;
+			samplesSent += count;
+		}
+		count = 0;
+	}
+
+	long getBatchesSent() {
+		return batchesSent;
+	}
+
+	long getSamplesSent() {
+		return samplesSent;
+	}
+
+	long getSamplesDiscarded() {
+		return samplesDiscarded;
+	}
+
+	private final int stream;
+	private final long maxLatencyMillis;
+	private final long timeStamps[];
+	private final byte channels[];
+	private final float values[];
+// Arrays of the last batch sent before it was full
+	private long shortTimeStamps[] = null;
+	private byte shortChannels[] = null;
+	private float shortValues[] = null;
+	private int count = 0;
+	private long firstSampleTime;
+	private long batchesSent = 0L;
+	private long samplesSent = 0L;
+	private long samplesDiscarded = 0L;
+}
@@ -7,46 +7,125 @@ import android.content.SharedPreferences;
 import android.content.IntentFilter;
 import android.content.BroadcastReceiver;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.os.Environment;
 import android.os.PowerManager;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
-import android.os.DeadObjectException;
 import android.hardware.SensorManager;
 import android.util.Log;
 import android.util.LogPrinter;
-import java.io.PrintWriter;
+import aexp.gyroaccel.engine.FusionEngine;
+import aexp.gyroaccel.engine.FusionListener;
+import aexp.gyroaccel.engine.SampleBlockProcessor;
+import aexp.gyroaccel.engine.SampleRing;
+import aexp.gyroaccel.engine.SensorSource;
+import aexp.gyroaccel.engine.SharedSampleRing;
+import aexp.gyroaccel.engine.SyntheticSensorSource;
+import aexp.gyroaccel.capture.AsyncCaptureSink;
+import aexp.gyroaccel.capture.CaptureFiles;
+import aexp.gyroaccel.capture.CaptureFormat;
+import aexp.gyroaccel.capture.CapturePlayer;
+import aexp.gyroaccel.capture.CaptureSource;
+import aexp.gyroaccel.capture.CaptureSink;
+import aexp.gyroaccel.capture.CaptureSinkFactory;
+import aexp.gyroaccel.capture.CaptureWriter;
+import aexp.gyroaccel.capture.CompressedCaptureWriter;
+import aexp.gyroaccel.capture.SampleStreamWriter;
+import aexp.gyroaccel.capture.SensorInfo;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.List;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
-public class SamplingService extends Service implements SensorEventListener {
+public class SamplingService extends Service {
 	static final String LOG_TAG = "GYROCAPTURE";
 	static final boolean DEBUG = false;
-	static final int SAMPLECTR_MOD = 1000;
-	static final int CALIBRATING_LIMIT = 3000;
-	static final double ACCEL_DEVIATION_LIMIT = 0.05;
-	static final int ACCEL_DEVIATION_LENGTH = 5;
-	static final double GYRO_NOISE_LIMIT = 0.06;
+	static final String CAPTURE_FILE_NAME = "capture.bin";
+	static final String CAPTURE_FILE_PREFIX = "capture-";
+	static final String CAPTURE_FILE_SUFFIX = ".bin";
+	public static final String EXTRA_CAPTURE = "aexp.gyroaccel.capture";
+	public static final String EXTRA_CAPTURE_COMPRESSED = "aexp.gyroaccel.captureCompressed";
+// Rotation limits of the capture file (long bytes, int seconds), 0 disables
+	public static final String EXTRA_CAPTURE_MAX_BYTES = "aexp.gyroaccel.captureMaxBytes";
+	public static final String EXTRA_CAPTURE_MAX_SECONDS = "aexp.gyroaccel.captureMaxSeconds";
+// One of the AsyncCaptureSink POLICY_ constants
+	public static final String EXTRA_CAPTURE_POLICY = "aexp.gyroaccel.capturePolicy";
+// Durability interval in milliseconds (long): captured data older than this
+// is on stable storage
+	public static final String EXTRA_CAPTURE_SYNC_INTERVAL = "aexp.gyroaccel.captureSyncInterval";
+// Path of a capture played back instead of sampling the sensors
+	public static final String EXTRA_PLAYBACK_FILE = "aexp.gyroaccel.playbackFile";
+// Playback speed factor (float), 1 plays at the recorded timing,
+// CapturePlayer.SPEED_MAX as fast as processing allows
+	public static final String EXTRA_PLAYBACK_SPEED = "aexp.gyroaccel.playbackSpeed";
+	static final float DEFAULT_PLAYBACK_SPEED = 1.0f;
+// Motion profile name of a SyntheticSensorSource sampled instead of the
+// sensors, and its rate per sensor in Hz (float)
+	public static final String EXTRA_SYNTHETIC_PROFILE = "aexp.gyroaccel.syntheticProfile";
+	public static final String EXTRA_SYNTHETIC_RATE = "aexp.gyroaccel.syntheticRate";
+	static final float DEFAULT_SYNTHETIC_RATE = 200.0f;
 	static final long DIFF_UPDATE_TIMEOUT = 100L;
-	public static final int  ENGINESTATES_IDLE = 0;
-	public static final int ENGINESTATES_CALIBRATING = 1;
-	public static final int ENGINESTATES_MEASURING = 2;
-	public static final int SENSORTYPE_NA = 0;
-	public static final int SENSORTYPE_ACCEL = 1;
-	public static final int SENSORTYPE_GYRO = 0;
-	public static final int IDX_X = 0;
-	public static final int IDX_Y = 1;
-	public static final int IDX_Z = 2;
+// IGyroAccel callbacks a client registers for
+	public static final int CALLBACK_STATE = 1;
+	public static final int CALLBACK_SAMPLE_COUNTER = 2;
+	public static final int CALLBACK_DIFF = 4;
+	public static final int CALLBACK_SAMPLES = 8;
+	public static final int CALLBACK_DEFAULT = CALLBACK_STATE | CALLBACK_SAMPLE_COUNTER | CALLBACK_DIFF;
+// Streams delivered by IGyroAccel.samples(), see setBatching()
+	public static final int BATCH_STREAM_NONE = 0;
+	public static final int BATCH_STREAM_RAW = 1;
+	public static final int BATCH_STREAM_EARTH = 2;
+	public static final int MAX_BATCH_SIZE = 2048;
+	static final String SHARED_RING_FILE_PREFIX = "samples";
+	static final String SHARED_RING_FILE_SUFFIX = ".ring";
+	static final int SHARED_RING_CAPACITY = 16384;
+	static final int STREAM_BUFFER_SIZE = SampleStreamWriter.DEFAULT_BUFFER_SIZE;
+	static final int STREAM_CHANNEL_MASK = 
+			SampleStreamWriter.channelBit( CaptureFormat.CHANNEL_ACCEL ) |
+			SampleStreamWriter.channelBit( CaptureFormat.CHANNEL_GYRO ) |
+			SampleStreamWriter.channelBit( CaptureFormat.CHANNEL_VECDIFF ) |
+			SampleStreamWriter.channelBit( CaptureFormat.CHANNEL_ROTATEDDIFF ) |
+			SampleStreamWriter.channelBit( CaptureFormat.CHANNEL_SIMUL );
+	static final int SAMPLE_RING_CAPACITY = 8192;
+	static final int SAMPLE_BLOCK_SIZE = 256;
+	static final long PROCESSING_WAIT_TIMEOUT = 100L;
+	public static final int  ENGINESTATES_IDLE = FusionEngine.ENGINESTATES_IDLE;
+	public static final int ENGINESTATES_CALIBRATING = FusionEngine.ENGINESTATES_CALIBRATING;
+	public static final int ENGINESTATES_MEASURING = FusionEngine.ENGINESTATES_MEASURING;
+	public static final int SENSORTYPE_NA = FusionEngine.SENSORTYPE_NA;
+	public static final int SENSORTYPE_ACCEL = FusionEngine.SENSORTYPE_ACCEL;
+	public static final int SENSORTYPE_GYRO = FusionEngine.SENSORTYPE_GYRO;
+	public static final int IDX_X = FusionEngine.IDX_X;
+	public static final int IDX_Y = FusionEngine.IDX_Y;
+	public static final int IDX_Z = FusionEngine.IDX_Z;
 		
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		super.onStartCommand( intent, flags, startId );
 		Log.d( LOG_TAG, "onStartCommand" );
 		stopSampling();		// just in case the activity-level service management fails
+		captureEnabled = DEBUG || 
+				( ( intent != null ) && intent.getBooleanExtra( EXTRA_CAPTURE, false ) );
+		captureCompressed = 
+				( intent != null ) && intent.getBooleanExtra( EXTRA_CAPTURE_COMPRESSED, false );
+		captureMaxBytes = intent == null ? 0L : intent.getLongExtra( EXTRA_CAPTURE_MAX_BYTES, 0L );
+		captureMaxSeconds = intent == null ? 0 : intent.getIntExtra( EXTRA_CAPTURE_MAX_SECONDS, 0 );
+		capturePolicy = intent == null ? 
+				AsyncCaptureSink.POLICY_DROP_NEWEST : 
+				intent.getIntExtra( EXTRA_CAPTURE_POLICY, AsyncCaptureSink.POLICY_DROP_NEWEST );
+		captureSyncInterval = intent == null ? 
+				CaptureWriter.DEFAULT_SYNC_INTERVAL : 
+				intent.getLongExtra( EXTRA_CAPTURE_SYNC_INTERVAL, CaptureWriter.DEFAULT_SYNC_INTERVAL );
+		playbackFile = intent == null ? null : intent.getStringExtra( EXTRA_PLAYBACK_FILE );
+		playbackSpeed = intent == null ? 
+				DEFAULT_PLAYBACK_SPEED : 
+				intent.getFloatExtra( EXTRA_PLAYBACK_SPEED, DEFAULT_PLAYBACK_SPEED );
+		syntheticProfile = intent == null ? null : intent.getStringExtra( EXTRA_SYNTHETIC_PROFILE );
+		syntheticRate = intent == null ? 
+				DEFAULT_SYNTHETIC_RATE : 
+				intent.getFloatExtra( EXTRA_SYNTHETIC_RATE, DEFAULT_SYNTHETIC_RATE );
         rate = SensorManager.SENSOR_DELAY_FASTEST;
 		sensorManager = (SensorManager)getSystemService( SENSOR_SERVICE  );
 		startSampling();
@@ -58,420 +137,724 @@ public class SamplingService extends Service implements SensorEventListener {
 		super.onDestroy();
 		Log.d( LOG_TAG, "onDestroy" );
 		stopSampling();
+		closeStreams();
+		releaseSharedRings();
+		callbacks.kill();
 	}
 
 	public IBinder onBind(Intent intent) {
 		return serviceBinder;	// cannot bind
 	}
 
-// SensorEventListener
-    public void onAccuracyChanged (Sensor sensor, int accuracy) {
-    }
-
-    public void onSensorChanged(SensorEvent sensorEvent) {
-		processSample( sensorEvent );
-    }
-
-
 	private void stopSampling() {
 		if( !samplingStarted )
 			return;
-        if( sensorManager != null ) {
-			Log.d( LOG_TAG, "unregisterListener/SamplingService" );
-            sensorManager.unregisterListener( this );
-		}
-        if( captureFile != null ) {
-            captureFile.close();
-			captureFile = null;
-        }
+		stopSensorSource();
+		stopProcessing();
+		if( sampleRing.getDropped() > 0L )
+			Log.d( LOG_TAG, "Sample ring overflow, dropped "+sampleRing.getDropped()+" samples" );
+		if( processingErrors > 0 )
+			Log.e( LOG_TAG, "Sample processing failed for "+processingErrors+" blocks" );
+		processingErrors = 0;
+		closeCapture();
 		samplingStarted = false;
-		setState( ENGINESTATES_IDLE);
+		fusionEngine.stop();
 	}
 
 	private void startSampling() {
 		if( samplingStarted )
 			return;
-       	List<Sensor> sensors = sensorManager.getSensorList( Sensor.TYPE_ACCELEROMETER  );
-      	accelSensor = sensors.size() == 0 ? null : sensors.get( 0 );
-       	sensors = sensorManager.getSensorList( Sensor.TYPE_GYROSCOPE );
-      	gyroSensor = sensors.size() == 0 ? null : sensors.get( 0 );
+		HardwareSensorSource hardwareSource = new HardwareSensorSource( sensorManager, rate );
+		accelSensor = hardwareSource.getAccelSensor();
+		gyroSensor = hardwareSource.getGyroSensor();
       	initSampling();
-       	
-      	if( ( accelSensor != null ) && ( gyroSensor != null ) ) {
-			Log.d( LOG_TAG, "registerListener/SamplingService" );
-           	sensorManager.registerListener( 
-                            this, 
-                            accelSensor,
-                            rate );
-           	sensorManager.registerListener( 
-                    this, 
-                    gyroSensor,
-                    rate );
-		} else {
-			Log.d( LOG_TAG, 
-				"Sensor(s) missing: accelSensor: "+
-				accelSensor+
-				"; gyroSensor: "+
-				gyroSensor);
-		}
       	captureFile = null;
-      	if( DEBUG ) {
-      		File captureFileName = new File( 
-      				Environment.getExternalStorageDirectory(), 
-      				"capture.csv" );
+      	if( captureEnabled ) {
       		try {
-      			captureFile = new PrintWriter( new FileWriter( captureFileName, false ) );
+      			captureFile = new AsyncCaptureSink( 
+      					captureSinkFactory, 
+      					capturePolicy, 
+      					captureMaxBytes, 
+      					captureMaxSeconds * 1000L );
       		} catch( IOException ex ) {
       			Log.e( LOG_TAG, ex.getMessage(), ex );
       		}
       	}
+      	startProcessing();
+      	sensorSource = hardwareSource;
+      	if( playbackFile != null )
+      		sensorSource = openPlayback();
+      	else
+      	if( syntheticProfile != null )
+      		sensorSource = openSynthetic();
+      	if( sensorSource != null )
+      		sensorSource.start( sampleRing );
       	samplingStarted = true;
 	}
 
 	private void initSampling() {
-		sampleCounter = 0;
-		previousTimeStamp = -1L;
-// Values related to calibrating state
-		calibratingAccelCounter = 0;
-		calibratingLimit = CALIBRATING_LIMIT;
-		simulatedGravity[IDX_X] = 0.0;
-		simulatedGravity[IDX_Y] = 0.0;
-		simulatedGravity[IDX_Z] = 0.0;
-		diffTimeStamp = -1L;
-		gravityAccelLimitLen = -1;
-		setState( ENGINESTATES_CALIBRATING );
-
-	}
-
-	private void setState( int newState ) {
-		Log.d( LOG_TAG, "Transitioning from "+getStateName( state )+
-				" to "+getStateName( newState )+
-				" at sample counter "+sampleCounter );
-		if( state != newState ) {
-			state = newState;
-			if( iGyroAccel != null ) {
-				try {
-					iGyroAccel.statusMessage( state );
-				} catch( DeadObjectException ex ) {
-					Log.e( LOG_TAG,"step() callback", ex );
-				} catch( RemoteException ex ) {
-					Log.e( LOG_TAG, "RemoteException",ex );
-				}
-			} else
-				Log.d( LOG_TAG, "setState: cannot call back activity");
+// Per-sample log lines are only built when the tag is loggable so that the
+// sample path does not allocate strings in steady state
+		logSamples = Log.isLoggable( LOG_TAG, Log.DEBUG );
+		fusionEngine.reset();
+	}
+
+	private SensorInfo getSensorInfo( Sensor sensor ) {
+		if( sensor == null )
+			return null;
+		return new SensorInfo( 
+				sensor.getName(), 
+				sensor.getVendor(), 
+				sensor.getResolution(), 
+				sensor.getMaximumRange(), 
+				sensor.getMinDelay() );
+	}
+
+	private void closeCapture() {
+		CaptureSink writer = captureFile;
+		if( writer == null )
+			return;
+		captureFile = null;
+		try {
+			writer.close();
+		} catch( IOException ex ) {
+			Log.e( LOG_TAG, ex.getMessage(), ex );
 		}
+		if( writer instanceof AsyncCaptureSink ) {
+			AsyncCaptureSink asyncWriter = (AsyncCaptureSink)writer;
+			Log.d( LOG_TAG, "Capture closed, "+
+					asyncWriter.getRecordsWritten()+" records, "+
+					asyncWriter.getBytesWritten()+" bytes in "+
+					asyncWriter.getFileCount()+" files, "+
+					asyncWriter.getRecordsDropped()+" records dropped" );
+		} else
+			Log.d( LOG_TAG, "Capture closed, "+writer.getRecordCount()+" records" );
 	}
 
-	private String getStateName( int state ) {
-		String stateName = null;
-		switch( state ) {
-		case ENGINESTATES_IDLE:
-			stateName = "Idle";
-			break;
-		
-		case ENGINESTATES_CALIBRATING:
-			stateName = "Calibrating";
-			break;
-			
-		case ENGINESTATES_MEASURING:
-			stateName = "Measuring";
-			break;
-			
-		default:
-			stateName = "N/A";
-			break;
-		}
-		return stateName;
-	}
-	
-	private void updateSampleCounter() {		
-		++sampleCounter;
-		if( ( sampleCounter % SAMPLECTR_MOD ) == 0 ) {
-			if( iGyroAccel == null )
-				Log.d( 
-					LOG_TAG, 
-					"updateSampleCounter() callback: cannot call back (sampleCounter: "+
-					sampleCounter+
-					")" );
-			else {
-				Log.d( 
-					LOG_TAG, 
-					"updateSampleCounter() callback: sampleCounter: "+
-					sampleCounter );
-				try {
-					iGyroAccel.sampleCounter( sampleCounter );
-				} catch( DeadObjectException ex ) {
-					Log.e( LOG_TAG,"step() callback", ex );
-				} catch( RemoteException ex ) {
-					Log.e( LOG_TAG, "RemoteException",ex );
+// The first file keeps the plain name, rotated ones are numbered
+	private File getCaptureFile( int sequence ) {
+		return new File( 
+				Environment.getExternalStorageDirectory(), 
+				sequence == 0 ? 
+					CAPTURE_FILE_NAME : 
+					CAPTURE_FILE_PREFIX+sequence+CAPTURE_FILE_SUFFIX );
+	}
+
+// A failing capture is abandoned so that it does not disturb sampling
+	private void captureFailed( IOException ex ) {
+		Log.e( LOG_TAG, "Capture write failed", ex );
+		closeCapture();
+	}
+
+	private void captureRaw( long timeStamp, int sensorType, float x, float y, float z ) {
+		CaptureSink writer = captureFile;
+		if( writer == null )
+			return;
+		try {
+			writer.writeRaw( 
+					timeStamp, 
+					CaptureFormat.channelOfSensorType( sensorType ), 
+					x, 
+					y, 
+					z );
+		} catch( IOException ex ) {
+			captureFailed( ex );
+		}
+	}
+
+	private void captureDerived( long timeStamp, int channel, double v[] ) {
+		CaptureSink writer = captureFile;
+		if( writer == null )
+			return;
+		try {
+			writer.writeDerived( timeStamp, channel, v );
+		} catch( IOException ex ) {
+			captureFailed( ex );
+		}
+	}
+
+// The player takes the place of the sensors as the producer of the sample
+// ring, everything downstream runs as in a live session
+	private SensorSource openPlayback() {
+		CaptureSource source;
+		try {
+			source = CaptureFiles.openSource( new File( playbackFile ) );
+		} catch( IOException ex ) {
+			Log.e( LOG_TAG, "Cannot open playback file "+playbackFile, ex );
+			return null;
+		}
+		Log.d( LOG_TAG, "Playing back "+playbackFile+" at speed "+playbackSpeed );
+		return new CapturePlayer( source, playbackSpeed );
+	}
+
+	private SensorSource openSynthetic() {
+		int profile = SyntheticSensorSource.getProfile( syntheticProfile );
+		if( profile < 0 ) {
+			Log.e( LOG_TAG, "Unknown synthetic profile "+syntheticProfile );
+			return null;
+		}
+		Log.d( LOG_TAG, "Sampling synthetic "+syntheticProfile+" motion at "+syntheticRate+" Hz" );
+		return new SyntheticSensorSource( profile, syntheticRate, syntheticRate );
+	}
+
+	private void stopSensorSource() {
+		SensorSource source = sensorSource;
+		if( source == null )
+			return;
+		sensorSource = null;
+		source.stop();
+		if( source instanceof CapturePlayer ) {
+			CapturePlayer player = (CapturePlayer)source;
+			if( player.getError() != null )
+				Log.e( LOG_TAG, "Playback failed", player.getError() );
+			Log.d( LOG_TAG, "Playback "+
+					( player.isFinished() ? "finished, " : "stopped, " )+
+					player.getSamplesPlayed()+" samples played, "+
+					player.getSamplesDropped()+" dropped, max lag "+
+					( player.getMaxLagNanos() / 1000L )+" us" );
+		} else
+		if( source instanceof SyntheticSensorSource ) {
+			SyntheticSensorSource synthetic = (SyntheticSensorSource)source;
+			Log.d( LOG_TAG, "Synthetic source stopped, "+
+					synthetic.getSamplesGenerated()+" samples generated, "+
+					synthetic.getSamplesDropped()+" dropped, max lag "+
+					( synthetic.getMaxLagNanos() / 1000L )+" us" );
+		}
+	}
+
+// The ring is written while some client holds it; its death releases it
+	private synchronized File acquireSharedRing( final IBinder client ) throws IOException, RemoteException {
+		if( !sharedRingClients.containsKey( client ) ) {
+			IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+				public void binderDied() {
+					Log.d( LOG_TAG, "Shared ring client died" );
+					releaseSharedRing( client );
 				}
+			};
+			client.linkToDeath( recipient, 0 );
+			sharedRingClients.put( client, recipient );
+		}
+		if( sharedRing == null ) {
+			try {
+				openSharedRing();
+			} catch( IOException ex ) {
+				releaseSharedRing( client );
+				throw ex;
+			}
+		}
+		return sharedRingFile;
+	}
+
+	private synchronized void releaseSharedRing( IBinder client ) {
+		IBinder.DeathRecipient recipient = sharedRingClients.remove( client );
+		if( recipient == null )
+			return;
+		client.unlinkToDeath( recipient, 0 );
+		if( sharedRingClients.isEmpty() )
+			closeSharedRing();
+	}
+
+	private synchronized void releaseSharedRings() {
+		for( Iterator<Map.Entry<IBinder, IBinder.DeathRecipient>> it = sharedRingClients.entrySet().iterator() ; it.hasNext() ; ) {
+			Map.Entry<IBinder, IBinder.DeathRecipient> entry = it.next();
+			entry.getKey().unlinkToDeath( entry.getValue(), 0 );
+		}
+		sharedRingClients.clear();
+		closeSharedRing();
+	}
+
+// Every writer gets a file of its own. A file is never truncated or
+// written again once its writer is closed, so the mappings of its readers
+// stay valid and keep showing it closed. The files of earlier writers,
+// including those of a killed process, are unlinked; mapped readers keep
+// them until they unmap.
+	private void openSharedRing() throws IOException {
+		File cacheDir = getCacheDir();
+		File files[] = cacheDir.listFiles();
+		if( files != null )
+			for( int i = 0 ; i < files.length ; ++i ) {
+				String name = files[i].getName();
+				if( name.startsWith( SHARED_RING_FILE_PREFIX ) && name.endsWith( SHARED_RING_FILE_SUFFIX ) )
+					files[i].delete();
 			}
+		File file = File.createTempFile( SHARED_RING_FILE_PREFIX, SHARED_RING_FILE_SUFFIX, cacheDir );
+		Log.d( LOG_TAG, "Creating shared ring "+file );
+		sharedRing = new SharedSampleRing.Writer( 
+				SharedSampleRing.mapForWriting( file, SHARED_RING_CAPACITY ), 
+				SHARED_RING_CAPACITY );
+		sharedRingFile = file;
+	}
+
+	private void closeSharedRing() {
+		SharedSampleRing.Writer ring = sharedRing;
+		if( ring == null )
+			return;
+		sharedRing = null;
+		ring.close();
+		Log.d( LOG_TAG, "Closed shared ring "+sharedRingFile+" at sequence "+ring.getSequence() );
+		sharedRingFile.delete();
+		sharedRingFile = null;
+	}
+
+	private void addStream( SampleStreamWriter stream ) {
+		synchronized( streamLock ) {
+			SampleStreamWriter streams[] = new SampleStreamWriter[sampleStreams.length + 1];
+			System.arraycopy( sampleStreams, 0, streams, 0, sampleStreams.length );
+			streams[sampleStreams.length] = stream;
+			setStreams( streams );
 		}
 	}
 
-	private void processSample( SensorEvent sensorEvent ) {
-		float values[] = sensorEvent.values;
-		if( values.length < 3 )
+// Called by the processing thread once the reader is gone
+	private void removeStream( SampleStreamWriter stream ) {
+		synchronized( streamLock ) {
+			int index = -1;
+			for( int i = 0 ; i < sampleStreams.length ; ++i )
+				if( sampleStreams[i] == stream )
+					index = i;
+			if( index < 0 )
 				return;
-		String sensorName = "n/a";
-		int sensorType = SENSORTYPE_NA;
-		if( sensorEvent.sensor == accelSensor ) {
-			sensorName="accel";
-			sensorType = SENSORTYPE_ACCEL;
-		} else
-		if( sensorEvent.sensor == gyroSensor ) {
-			sensorName = "gyro";
-			sensorType = SENSORTYPE_GYRO;
-		}
-		if( captureFile != null ) {
-			captureFile.println( sensorEvent.timestamp+
-					","+
-					sensorName+
-					","+
-					values[0]+
-					","+
-					values[1]+
-					","+
-					values[2]);
-		}
-		updateSampleCounter();
-		switch( state ) {
-		case ENGINESTATES_CALIBRATING:
-			processCalibrating( sensorEvent.timestamp, sensorType, values );
-			break;
-			
-		case ENGINESTATES_MEASURING:
-			processMeasuring( sensorEvent.timestamp, sensorType, values );
-			break;
-		}
-	}
-	
-	private void processCalibrating( long timeStamp, int sensorType, float values [] ) {
-		if( sensorType == SENSORTYPE_ACCEL ) {
-			simulatedGravity[IDX_X] += (double)values[IDX_X];
-			simulatedGravity[IDX_Y] += (double)values[IDX_Y];
-			simulatedGravity[IDX_Z] += (double)values[IDX_Z];
-			++calibratingAccelCounter;
-		}
-		if( sensorType == SENSORTYPE_GYRO )
-			previousTimeStamp = timeStamp;
-		if( sampleCounter >= calibratingLimit ) {
-			if( calibratingAccelCounter == 0 ) { // This shouldn't happen
-				calibratingLimit += CALIBRATING_LIMIT;
-				Log.d( LOG_TAG, "Increasing calibrating limit to "+calibratingLimit+" samples");
-			} else {
-				double avgDiv = (double)calibratingAccelCounter;
-				simulatedGravity[IDX_X] /= avgDiv;
-				simulatedGravity[IDX_Y] /= avgDiv;
-				simulatedGravity[IDX_Z] /= avgDiv;
-				gravityAccelLen = Math.sqrt(
-						simulatedGravity[IDX_X]*simulatedGravity[IDX_X] + 
-						simulatedGravity[IDX_Y]*simulatedGravity[IDX_Y] + 
-						simulatedGravity[IDX_Z]*simulatedGravity[IDX_Z]);
-				gravityAccelHighLimit = gravityAccelLen * ( 1.0 + ACCEL_DEVIATION_LIMIT );
-				gravityAccelLowLimit = gravityAccelLen * ( 1.0 - ACCEL_DEVIATION_LIMIT );
-				Log.d( LOG_TAG, 
-						"Simulated gravity vector: x: "+
-							simulatedGravity[IDX_X]+
-							"; y: "+simulatedGravity[IDX_Y]+
-							"; z: "+simulatedGravity[IDX_Z]+
-							"; len: "+gravityAccelLen );
-				setState( ENGINESTATES_MEASURING );
+			SampleStreamWriter streams[] = new SampleStreamWriter[sampleStreams.length - 1];
+			System.arraycopy( sampleStreams, 0, streams, 0, index );
+			System.arraycopy( sampleStreams, index + 1, streams, index, streams.length - index );
+			setStreams( streams );
+		}
+		closeStream( stream );
+	}
+
+	private void closeStreams() {
+		SampleStreamWriter streams[];
+		synchronized( streamLock ) {
+			streams = sampleStreams;
+			setStreams( new SampleStreamWriter[0] );
+		}
+		for( int i = 0 ; i < streams.length ; ++i )
+			closeStream( streams[i] );
+	}
+
+	private void setStreams( SampleStreamWriter streams[] ) {
+		boolean wantDiffs = false;
+		for( int i = 0 ; i < streams.length ; ++i )
+			wantDiffs |= streams[i].wantsChannel( CaptureFormat.CHANNEL_VECDIFF ) ||
+					streams[i].wantsChannel( CaptureFormat.CHANNEL_ROTATEDDIFF );
+		streamsWantDiffs = wantDiffs;
+		sampleStreams = streams;
+	}
+
+	private void closeStream( SampleStreamWriter stream ) {
+		stream.close();
+		Log.d( LOG_TAG, "Stream closed, "+
+				stream.getRecordsQueued()+" records, "+
+				stream.getBytesWritten()+" bytes, "+
+				stream.getRecordsDropped()+" dropped"+
+				( stream.getError() == null ? "" : ", "+stream.getError().getMessage() ) );
+	}
+
+	private void streamDerived( SampleStreamWriter stream, long timeStamp, int channel, double v[] ) {
+		if( stream.wantsChannel( channel ) )
+			stream.write( timeStamp, channel, (float)v[IDX_X], (float)v[IDX_Y], (float)v[IDX_Z] );
+	}
+
+	private void startProcessing() {
+		sampleRing.clear();
+		activeBatchers = new SampleBatcher[0];
+		earthBatching = false;
+		processingThread = new ProcessingThread();
+		processingThread.start();
+	}
+
+	private void stopProcessing() {
+		if( processingThread == null )
+			return;
+		processingThread.shutdown();
+		try {
+			processingThread.join();
+		} catch( InterruptedException ex ) {
+			Log.e( LOG_TAG, "stopProcessing interrupted", ex );
+		}
+		processingThread = null;
+		SampleBatcher batchers[] = activeBatchers;
+		for( int i = 0 ; i < batchers.length ; ++i )
+			retireBatcher( batchers[i] );
+		activeBatchers = new SampleBatcher[0];
+		earthBatching = false;
+	}
+
+// Picks up the batchers of the clients as setBatching() and the client
+// registrations change them, called by the processing thread once per
+// block. Batchers no client uses any more are retired.
+	private SampleBatcher[] updateBatchers() {
+		SampleBatcher batchers[] = callbacks.getBatchers();
+		if( batchers == activeBatchers )
+			return batchers;
+		SampleBatcher previous[] = activeBatchers;
+		for( int i = 0 ; i < previous.length ; ++i ) {
+			boolean kept = false;
+			for( int k = 0 ; k < batchers.length ; ++k )
+				kept |= batchers[k] == previous[i];
+			if( !kept )
+				retireBatcher( previous[i] );
+		}
+		boolean earth = false;
+		for( int k = 0 ; k < batchers.length ; ++k )
+			earth |= batchers[k].getStream() == BATCH_STREAM_EARTH;
+		activeBatchers = batchers;
+		earthBatching = earth;
+		return batchers;
+	}
+
+	private void retireBatcher( SampleBatcher batcher ) {
+		batcher.flush( callbacks );
+		Log.d( LOG_TAG, "Batching of stream "+batcher.getStream()+
+				", batch size "+batcher.getBatchSize()+" ended, "+
+				batcher.getSamplesSent()+" samples in "+
+				batcher.getBatchesSent()+" batches, "+
+				batcher.getSamplesDiscarded()+" discarded" );
+	}
+
+// Runs on the capture writer thread, including the rotations
+	private final CaptureSinkFactory captureSinkFactory = new CaptureSinkFactory() {
+		public CaptureSink create( int sequence ) throws IOException {
+			File file = getCaptureFile( sequence );
+			Log.d( LOG_TAG, "Opening capture file "+file );
+			if( captureCompressed )
+				return new CompressedCaptureWriter( 
+						file, 
+						getSensorInfo( accelSensor ), 
+						getSensorInfo( gyroSensor ) );
+			return new CaptureWriter( 
+					file, 
+					getSensorInfo( accelSensor ), 
+					getSensorInfo( gyroSensor ),
+					captureSyncInterval );
+		}
+	};
+
+	private final SampleBlockProcessor sampleProcessor = new SampleBlockProcessor() {
+		public void processBlock(
+				long timeStamps[],
+				byte sensorTypes[],
+				float xs[],
+				float ys[],
+				float zs[],
+				int offset,
+				int length ) {
+			try {
+				processSamples( timeStamps, sensorTypes, xs, ys, zs, offset, length );
+			} catch( RuntimeException ex ) {
+// The block is lost, the ring moves on regardless so that a failure cannot
+// stall sampling
+				if( processingErrors++ == 0 )
+					Log.e( LOG_TAG, "Sample processing failed", ex );
 			}
 		}
+	};
+
+	private void processSamples(
+			long timeStamps[],
+			byte sensorTypes[],
+			float xs[],
+			float ys[],
+			float zs[],
+			int offset,
+			int length ) {
+		SharedSampleRing.Writer ring = sharedRing;
+		if( ring != null )
+			for( int i = offset ; i < offset + length ; ++i )
+				ring.put( 
+						timeStamps[i], 
+						CaptureFormat.channelOfSensorType( sensorTypes[i] ), 
+						xs[i], 
+						ys[i], 
+						zs[i] );
+		SampleStreamWriter streams[] = sampleStreams;
+		for( int k = 0 ; k < streams.length ; ++k ) {
+			SampleStreamWriter stream = streams[k];
+			for( int i = offset ; i < offset + length ; ++i )
+				stream.write( 
+						timeStamps[i], 
+						CaptureFormat.channelOfSensorType( sensorTypes[i] ), 
+						xs[i], 
+						ys[i], 
+						zs[i] );
+			if( stream.isClosed() )
+				removeStream( stream );
+		}
+		SampleBatcher batchers[] = updateBatchers();
+		for( int k = 0 ; k < batchers.length ; ++k ) {
+			SampleBatcher batcher = batchers[k];
+			if( batcher.getStream() != BATCH_STREAM_RAW )
+				continue;
+			for( int i = offset ; i < offset + length ; ++i )
+				batcher.add( 
+						callbacks, 
+						timeStamps[i], 
+						CaptureFormat.channelOfSensorType( sensorTypes[i] ), 
+						xs[i], 
+						ys[i], 
+						zs[i] );
+		}
+		if( captureFile == null ) {
+			fusionEngine.processBlock( timeStamps, sensorTypes, xs, ys, zs, offset, length );
+			return;
+		}
+		int end = offset + length;
+		for( int i = offset ; i < end ; ++i ) {
+			if( captureFile != null )
+				captureRaw( timeStamps[i], sensorTypes[i], xs[i], ys[i], zs[i] );
+			fusionEngine.processBlock( timeStamps, sensorTypes, xs, ys, zs, i, 1 );
+		}
 	}
 
-	private void processMeasuring( long timeStamp, int sensorType, float values [] ) {
-		double dv[] = new double[3];
-		dv[IDX_X] = (double)values[0];
-		dv[IDX_Y] = (double)values[1];
-		dv[IDX_Z] = (double)values[2];
-		if( sensorType == SENSORTYPE_ACCEL ) {
-			double accelLen = Math.sqrt( 
-					dv[IDX_X]*dv[IDX_X] + 
-					dv[IDX_Y]*dv[IDX_Y] + 
-					dv[IDX_Z]*dv[IDX_Z] );
-			if( ( accelLen < gravityAccelHighLimit ) && 
-				( accelLen > gravityAccelLowLimit ) ) {
-				if( gravityAccelLimitLen < 0 )
-					gravityAccelLimitLen = ACCEL_DEVIATION_LENGTH;
-				--gravityAccelLimitLen;
-				if( gravityAccelLimitLen <= 0 ) {
-					gravityAccelLimitLen = 0;
-					simulatedGravity[IDX_X] = dv[IDX_X];
-					simulatedGravity[IDX_Y] = dv[IDX_Y];
-					simulatedGravity[IDX_Z] = dv[IDX_Z];
+// Drains the sample ring in blocks so that sensor callbacks return
+// immediately and bursts are absorbed by the ring
+	class ProcessingThread extends Thread {
+		ProcessingThread() {
+			super( "SamplingService.processing" );
+		}
+
+		public void run() {
+			try {
+				while( running ) {
+					if( sampleRing.drain( sampleProcessor, SAMPLE_BLOCK_SIZE ) == 0 )
+						sampleRing.await( getWaitTimeout() );
+					flushCaptureIfDue();
+					SampleBatcher batchers[] = updateBatchers();
+					for( int k = 0 ; k < batchers.length ; ++k )
+						batchers[k].flushIfDue( callbacks );
 				}
-			} else
-				gravityAccelLimitLen = -1;
-			double[] diff = vecdiff( dv,simulatedGravity );
-			double[] rotatedDiff = rotateToEarth( diff );
-			if( captureFile != null ) {
-				captureFile.println( timeStamp+
-						","+
-						"vecdiff"+
-						","+
-						diff[IDX_X]+
-						","+
-						diff[IDX_Y]+
-						","+
-						diff[IDX_Z]);
-				captureFile.println( timeStamp+
-						","+
-						"rotateddiff"+
-						","+
-						rotatedDiff[IDX_X]+
-						","+
-						rotatedDiff[IDX_Y]+
-						","+
-						rotatedDiff[IDX_Z]);
+			} catch( InterruptedException ex ) {
+				Log.d( LOG_TAG, "ProcessingThread interrupted" );
 			}
-			sendDiff( rotatedDiff );
-		} else
-		if( sensorType == SENSORTYPE_GYRO ) {
-			if( previousTimeStamp >= 0L ) {
-				double dt = (double)(timeStamp - previousTimeStamp) / 1000000000.0;
-				double dx = gyroNoiseLimiter( dv[IDX_X]*dt );
-				double dy = gyroNoiseLimiter( dv[IDX_Y]*dt );
-				double dz = gyroNoiseLimiter( dv[IDX_Z]*dt );
-				rotx( simulatedGravity,-dx);
-				roty( simulatedGravity,-dy);
-				rotz( simulatedGravity,-dz);
-				if( captureFile != null ) {
-					if( difflimit())
-						captureFile.println( timeStamp+
-							","+
-							"simul"+
-							","+
-							simulatedGravity[IDX_X]+
-							","+
-							simulatedGravity[IDX_Y]+
-							","+
-							simulatedGravity[IDX_Z]);
-				}
+		}
+
+		void shutdown() {
+			running = false;
+			interrupt();
+		}
+
+// A partial batch must not wait longer than its latency for the next sample
+		private long getWaitTimeout() {
+			SampleBatcher batchers[] = activeBatchers;
+			long timeout = PROCESSING_WAIT_TIMEOUT;
+			for( int k = 0 ; k < batchers.length ; ++k )
+				timeout = Math.min( timeout, Math.max( batchers[k].getMaxLatencyMillis(), 1L ) );
+			return timeout;
+		}
+
+// Pushes the capture to the writer once per durability interval so that
+// it gets synced even if its buffers do not fill up
+		private void flushCaptureIfDue() {
+			CaptureSink writer = captureFile;
+			if( writer == null )
+				return;
+			long currentTime = System.currentTimeMillis();
+			if( currentTime - lastCaptureFlush < captureSyncInterval )
+				return;
+			lastCaptureFlush = currentTime;
+			try {
+				writer.flush();
+			} catch( IOException ex ) {
+				captureFailed( ex );
 			}
-			previousTimeStamp = timeStamp;
 		}
+
+		private volatile boolean running = true;
+		private long lastCaptureFlush = System.currentTimeMillis();
 	}
-		
-	private double gyroNoiseLimiter( double gyroValue ) {
-		double v = gyroValue;
-		if( Math.abs( v ) < GYRO_NOISE_LIMIT )
-			v = 0.0;
-		return v;			
-	}
-
-	private void copySimulatedGravity() {
-		previousSimulatedGravity[IDX_X] = simulatedGravity[IDX_X];
-		previousSimulatedGravity[IDX_Y] = simulatedGravity[IDX_Y];
-		previousSimulatedGravity[IDX_Z] = simulatedGravity[IDX_Z];
-	}
-	
-	private boolean difflimit() {
-		if( previousSimulatedGravity == null ) {
-			previousSimulatedGravity = new double[3];
-			copySimulatedGravity();
-			return true;
-		} else
-		if( ( Math.abs( previousSimulatedGravity[IDX_X]-simulatedGravity[ IDX_X ]) > 0.1) ||
-			( Math.abs( previousSimulatedGravity[IDX_Y]-simulatedGravity[ IDX_Y ]) > 0.1) ||
-			( Math.abs( previousSimulatedGravity[IDX_Z]-simulatedGravity[ IDX_Z ]) > 0.1) ) {
-				copySimulatedGravity();
-				return true;
-			}
-		return false;
-	}
-	
-	private void rotz( double vec[], double dz ) {
-		double x = vec[IDX_X];
-		double y = vec[IDX_Y];
-		double z = vec[IDX_Z];
-		vec[IDX_X] = x*Math.cos(dz)-y*Math.sin(dz);
-		vec[IDX_Y] = x*Math.sin(dz)+y*Math.cos(dz);
-	}
-
-	private void rotx( double vec[], double dx ) {
-		double x = vec[IDX_X];
-		double y = vec[IDX_Y];
-		double z = vec[IDX_Z];
-		vec[IDX_Y] = y*Math.cos(dx)-z*Math.sin(dx);
-		vec[IDX_Z] = y*Math.sin(dx)+z*Math.cos(dx);
-	}
-				
-	private void roty( double vec[], double dy ) {
-		double x = vec[IDX_X];
-		double y = vec[IDX_Y];
-		double z = vec[IDX_Z];
-		vec[IDX_Z] = z*Math.cos(dy)-x*Math.sin(dy);
-		vec[IDX_X] = z*Math.sin(dy)+x*Math.cos(dy);
-	}
-
-	private double[] vecdiff( double v1[], double v2[] ) {
-		double diff[] = new double[3];
-		diff[IDX_X] = v1[IDX_X] - v2[IDX_X];
-		diff[IDX_Y] = v1[IDX_Y] - v2[IDX_Y];
-		diff[IDX_Z] = v1[IDX_Z] - v2[IDX_Z];
-		return diff;
-	}
-
-	private double fixAtanDegree( double deg, double y, double x ) {
-		double rdeg = deg;
-		if( ( x < 0.0 ) && ( y > 0.0 ) )
-			rdeg = Math.PI - deg;
-		if( ( x < 0.0 ) && ( y < 0.0 ) )
-			rdeg = Math.PI + deg;
-		return rdeg;
-	}
-	
-	private double[] rotateToEarth( double diff[] ) {
-		double rotatedDiff[] = new double[3];
-		rotatedDiff[IDX_X] = diff[IDX_X];
-		rotatedDiff[IDX_Y] = diff[IDX_Y];
-		rotatedDiff[IDX_Z] = diff[IDX_Z];
-		double gravity[] = new double[3];
-		gravity[ IDX_X ] = simulatedGravity[ IDX_X ];
-		gravity[ IDX_Y ] = simulatedGravity[ IDX_Y ];
-		gravity[ IDX_Z ] = simulatedGravity[ IDX_Z ];
-		double dz = Math.atan2( gravity[IDX_Y], gravity[IDX_X]);
-		dz = fixAtanDegree( dz, gravity[IDX_Y], gravity[IDX_X] );
-		rotz( rotatedDiff, -dz );
-		rotz( gravity, -dz );
-		double dy = Math.atan2( gravity[IDX_X], gravity[IDX_Z]);
-		dy = fixAtanDegree( dy, gravity[IDX_X], gravity[IDX_Z]);
-		roty( rotatedDiff, -dy );
-		return rotatedDiff;
-	}
-	
+
 	private void sendDiff( double v[] ) {
-		long currentTime = System.currentTimeMillis();
-		long tdiff =  currentTime - diffTimeStamp;
-		if( ( diffTimeStamp < 0L ) || ( tdiff > DIFF_UPDATE_TIMEOUT )) {
-			diffTimeStamp = currentTime;
+		if( logSamples )
 			Log.d( LOG_TAG, "sendDiff: "+v[IDX_X]+","+v[IDX_Y]+","+v[IDX_Z]);
-			if( iGyroAccel != null ) {
+		callbacks.sendDiff( v[IDX_X], v[IDX_Y], v[IDX_Z] );
+	}
+
+	private final FusionListener fusionListener = new FusionListener() {
+		public void stateChanged( int oldState, int newState, int sampleCounter ) {
+			Log.d( LOG_TAG, "Transitioning from "+FusionEngine.getStateName( oldState )+
+					" to "+FusionEngine.getStateName( newState )+
+					" at sample counter "+sampleCounter );
+			callbacks.sendState( newState );
+		}
+
+		public void sampleCounter( int sampleCounter ) {
+			Log.d( 
+				LOG_TAG, 
+				"updateSampleCounter() callback: sampleCounter: "+
+				sampleCounter+
+				", clients: "+
+				callbacks.getClientCount() );
+			callbacks.sendSampleCounter( sampleCounter );
+		}
+
+		public void calibratingLimitExtended( int calibratingLimit ) {
+			Log.d( LOG_TAG, "Increasing calibrating limit to "+calibratingLimit+" samples");
+		}
+
+		public void calibrated( double gravity[], double gravityLen ) {
+			Log.d( LOG_TAG, 
+					"Simulated gravity vector: x: "+
+						gravity[IDX_X]+
+						"; y: "+gravity[IDX_Y]+
+						"; z: "+gravity[IDX_Z]+
+						"; len: "+gravityLen );
+			if( captureFile != null ) {
 				try {
-					iGyroAccel.diff( v[IDX_X], v[IDX_Y], v[IDX_Z] );
-				} catch( DeadObjectException ex ) {
-					Log.e( LOG_TAG,"step() callback", ex );
-				} catch( RemoteException ex ) {
-					Log.e( LOG_TAG, "RemoteException",ex );
+					captureFile.writeCalibration( gravity, gravityLen );
+				} catch( IOException ex ) {
+					captureFailed( ex );
 				}
-			} else
-					Log.d(LOG_TAG, "sendDiff: cannot call back main activity");
+			}
 		}
-	}
-	
-    private IGyroAccel iGyroAccel = null;
+
+		public boolean diffRequested( long timeStamp ) {
+			boolean diffSendDue = callbacks.diffDue();
+			return diffSendDue || 
+					( captureFile != null ) || 
+					( sharedRing != null ) || 
+					streamsWantDiffs || 
+					earthBatching;
+		}
+
+		public void diff( long timeStamp, double diff[], double rotatedDiff[] ) {
+			SharedSampleRing.Writer ring = sharedRing;
+			if( ring != null )
+				ring.put( 
+						timeStamp, 
+						CaptureFormat.CHANNEL_ROTATEDDIFF, 
+						(float)rotatedDiff[IDX_X], 
+						(float)rotatedDiff[IDX_Y], 
+						(float)rotatedDiff[IDX_Z] );
+			SampleStreamWriter streams[] = sampleStreams;
+			for( int k = 0 ; k < streams.length ; ++k ) {
+				streamDerived( streams[k], timeStamp, CaptureFormat.CHANNEL_VECDIFF, diff );
+				streamDerived( streams[k], timeStamp, CaptureFormat.CHANNEL_ROTATEDDIFF, rotatedDiff );
+			}
+			SampleBatcher batchers[] = activeBatchers;
+			for( int k = 0 ; k < batchers.length ; ++k )
+				if( batchers[k].getStream() == BATCH_STREAM_EARTH )
+					batchers[k].add( 
+							callbacks, 
+							timeStamp, 
+							CaptureFormat.CHANNEL_ROTATEDDIFF, 
+							(float)rotatedDiff[IDX_X], 
+							(float)rotatedDiff[IDX_Y], 
+							(float)rotatedDiff[IDX_Z] );
+			if( captureFile != null ) {
+				captureDerived( timeStamp, CaptureFormat.CHANNEL_VECDIFF, diff );
+				captureDerived( timeStamp, CaptureFormat.CHANNEL_ROTATEDDIFF, rotatedDiff );
+			}
+			sendDiff( rotatedDiff );
+		}
+
+		public void simulatedGravity( long timeStamp, double gravity[] ) {
+			if( captureFile != null )
+				captureDerived( timeStamp, CaptureFormat.CHANNEL_SIMUL, gravity );
+			SampleStreamWriter streams[] = sampleStreams;
+			for( int k = 0 ; k < streams.length ; ++k )
+				streamDerived( streams[k], timeStamp, CaptureFormat.CHANNEL_SIMUL, gravity );
+		}
+	};
+
+    private final CallbackRegistry callbacks = new CallbackRegistry();
     private final ISamplingService.Stub serviceBinder = 
 			new ISamplingService.Stub() {
+/**
+ * Registers a client for the CALLBACK_DEFAULT callbacks with diff() updates
+ * every DIFF_UPDATE_TIMEOUT milliseconds.
+ */
 		public void setCallback( IBinder binder ) {
 			Log.d( LOG_TAG,"setCallback" );
-			iGyroAccel = IGyroAccel.Stub.asInterface( binder );
+			callbacks.register( binder, DIFF_UPDATE_TIMEOUT, CALLBACK_DEFAULT );
       	}
 
-		public void removeCallback() {
+/**
+ * Registers a client for a mask of CALLBACK_ constants, with diff() updates
+ * at most every diffIntervalMillis. Registering again replaces the options.
+ */
+		public void registerCallback( IBinder binder, int diffIntervalMillis, int callbackMask ) {
+			Log.d( LOG_TAG, "registerCallback: callbacks "+callbackMask+
+					", diff interval "+diffIntervalMillis+" ms" );
+			if( diffIntervalMillis < 0 )
+				throw new IllegalArgumentException( "Negative diff interval: "+diffIntervalMillis );
+			callbacks.register( binder, diffIntervalMillis, callbackMask );
+		}
+
+		public void removeCallback( IBinder binder ) {
 			Log.d( LOG_TAG, "removeCallback" );
-			iGyroAccel = null;
+			callbacks.unregister( binder );
+		}
+
+/**
+ * Delivers every sample of a stream through samples() to a client
+ * registered for CALLBACK_SAMPLES, in batches of up to batchSize samples
+ * that are sent at the latest maxLatencyMillis after their first sample.
+ * BATCH_STREAM_RAW delivers the accelerometer and gyroscope samples,
+ * BATCH_STREAM_EARTH the earth-frame diffs that diff() reports throttled.
+ * BATCH_STREAM_NONE turns batching off for the client; so do its removal
+ * and its death. The setting belongs to the client and survives
+ * registering it again.
+ */
+		public void setBatching( IBinder binder, int stream, int batchSize, int maxLatencyMillis ) {
+			Log.d( LOG_TAG, "setBatching: stream "+stream+", batch size "+batchSize+
+					", max latency "+maxLatencyMillis+" ms" );
+			if( stream != BATCH_STREAM_NONE ) {
+				if( ( stream != BATCH_STREAM_RAW ) && ( stream != BATCH_STREAM_EARTH ) )
+					throw new IllegalArgumentException( "Unknown stream "+stream );
+				if( ( batchSize < 1 ) || ( batchSize > MAX_BATCH_SIZE ) )
+					throw new IllegalArgumentException( "Batch size out of range: "+batchSize );
+				if( maxLatencyMillis < 0 )
+					throw new IllegalArgumentException( "Negative latency: "+maxLatencyMillis );
+			}
+			if( !callbacks.setBatching( binder, stream, batchSize, maxLatencyMillis ) )
+				throw new IllegalArgumentException( "setBatching: client not registered" );
+		}
+
+/**
+ * Returns a read-only descriptor of a SharedSampleRing that receives the
+ * accelerometer and gyroscope samples and the earth-frame diffs of every
+ * session from now on. Map it with SharedSampleRing.mapForReading().
+ * The ring is written until the last client holding it calls
+ * releaseSharedRing() or dies, or the service is destroyed; then it is
+ * marked closed and a later call returns a new ring.
+ */
+		public ParcelFileDescriptor getSharedRing( IBinder client ) throws RemoteException {
+			try {
+				return ParcelFileDescriptor.open( 
+						acquireSharedRing( client ), 
+						ParcelFileDescriptor.MODE_READ_ONLY );
+			} catch( IOException ex ) {
+				Log.e( LOG_TAG, "Cannot open shared ring", ex );
+				return null;
+			}
+		}
+
+		public void releaseSharedRing( IBinder client ) {
+			SamplingService.this.releaseSharedRing( client );
+		}
+
+/**
+ * Returns the read end of a pipe that streams the selected channels in the
+ * SampleStreamWriter layout, starting with its header. channelMask holds
+ * SampleStreamWriter.channelBit() of CaptureFormat channels. The stream
+ * lasts until the reader closes the pipe or the service is destroyed.
+ */
+		public ParcelFileDescriptor openStream( int channelMask ) throws RemoteException {
+			Log.d( LOG_TAG, "openStream: channel mask "+channelMask );
+			if( ( channelMask == 0 ) || ( ( channelMask & ~STREAM_CHANNEL_MASK ) != 0 ) )
+				throw new IllegalArgumentException( "Invalid channel mask "+channelMask );
+			ParcelFileDescriptor pipe[];
+			try {
+				pipe = ParcelFileDescriptor.createPipe();
+			} catch( IOException ex ) {
+				Log.e( LOG_TAG, "Cannot create stream pipe", ex );
+				return null;
+			}
+			addStream( new SampleStreamWriter( 
+					new ParcelFileDescriptor.AutoCloseOutputStream( pipe[1] ), 
+					channelMask, 
+					STREAM_BUFFER_SIZE ) );
+			return pipe[0];
 		}
 
 		public boolean isSampling() {
@@ -486,29 +869,43 @@ public class SamplingService extends Service implements SensorEventListener {
 
 		@Override
 		public int getState() throws RemoteException {
-			return state;
+			return fusionEngine.getState();
 		}
 
     };
 
 
-    private int calibratingLimit;
-    private int calibratingAccelCounter;
-    private double gravityAccelLen;
-    private double gravityAccelHighLimit;
-    private double gravityAccelLowLimit;
-    private int gravityAccelLimitLen;
-    private double simulatedGravity[] = new double[3];
-    private double previousSimulatedGravity[] = null;
-    private int sampleCounter;
-    private long previousTimeStamp;
-    private long diffTimeStamp;
+    private boolean logSamples;
     private int rate;
     private SensorManager sensorManager;
-    private PrintWriter captureFile = null;
+    private volatile CaptureSink captureFile = null;
+    private boolean captureEnabled = false;
+    private boolean captureCompressed = false;
+    private long captureMaxBytes = 0L;
+    private int captureMaxSeconds = 0;
+    private int capturePolicy = AsyncCaptureSink.POLICY_DROP_NEWEST;
+    private long captureSyncInterval = CaptureWriter.DEFAULT_SYNC_INTERVAL;
+    private String playbackFile = null;
+    private float playbackSpeed = DEFAULT_PLAYBACK_SPEED;
+    private String syntheticProfile = null;
+    private float syntheticRate = DEFAULT_SYNTHETIC_RATE;
+    private SensorSource sensorSource = null;
 	private Sensor accelSensor;
 	private Sensor gyroSensor;
 	private boolean samplingStarted = false;
-	private int state;
+	private final FusionEngine fusionEngine = new FusionEngine( fusionListener );
+	private final SampleRing sampleRing = new SampleRing( SAMPLE_RING_CAPACITY );
+	private ProcessingThread processingThread = null;
+	private volatile SharedSampleRing.Writer sharedRing = null;
+	private File sharedRingFile = null;
+	private final HashMap<IBinder, IBinder.DeathRecipient> sharedRingClients = 
+			new HashMap<IBinder, IBinder.DeathRecipient>();
+	private final Object streamLock = new Object();
+	private volatile SampleStreamWriter sampleStreams[] = new SampleStreamWriter[0];
+	private volatile boolean streamsWantDiffs = false;
+// Processing thread state
+	private SampleBatcher activeBatchers[] = new SampleBatcher[0];
+	private boolean earthBatching = false;
+	private int processingErrors = 0;
 }
 
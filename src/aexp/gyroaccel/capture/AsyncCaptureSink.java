@@ -0,0 +1,379 @@
+package aexp.gyroaccel.capture;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Moves capture I/O off the sampling thread. Records are collected in a
+ * batch of primitive columns; full batches are handed to a writer thread
+ * that feeds them into the underlying CaptureSink while the producer fills
+ * the next one. Memory is bounded by a fixed pool of batches. When the
+ * writer falls behind and no batch is free, the overflow policy decides
+ * whether the producer blocks, the oldest queued batch is discarded, or
+ * the incoming record is dropped; discarded records are counted.
+ * <p>
+ * The writer rotates to a new file from the CaptureSinkFactory when the
+ * current one exceeds the size or age limit, and writes the calibration to
+ * every file of the session.
+ * <p>
+ * Once the writer thread fails, the write methods and flush() throw its
+ * error so that the producer can abandon the capture.
+ * <p>
+ * The write methods must be called from a single producer thread.
+ */
+public class AsyncCaptureSink implements CaptureSink {
+	public static final int POLICY_BLOCK = 0;
+	public static final int POLICY_DROP_OLDEST = 1;
+	public static final int POLICY_DROP_NEWEST = 2;
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+	public static final int DEFAULT_BATCH_COUNT = 4;
+
+	public AsyncCaptureSink(
+			CaptureSinkFactory factory,
+			int policy,
+			long maxFileBytes,
+			long maxFileMillis ) throws IOException {
+		this( factory, policy, maxFileBytes, maxFileMillis, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_COUNT );
+	}
+
+/**
+ * A <code>maxFileBytes</code> or <code>maxFileMillis</code> of 0 disables
+ * that rotation limit.
+ */
+	public AsyncCaptureSink(
+			CaptureSinkFactory factory,
+			int policy,
+			long maxFileBytes,
+			long maxFileMillis,
+			int batchSize,
+			int batchCount ) throws IOException {
+		if( batchCount < 2 )
+			throw new IllegalArgumentException( "At least two batches are needed: "+batchCount );
+		this.factory = factory;
+		this.policy = policy;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFileMillis = maxFileMillis;
+		freeBatches = new ArrayBlockingQueue<Batch>( batchCount );
+		fullBatches = new ArrayBlockingQueue<Batch>( batchCount );
+		for( int i = 1 ; i < batchCount ; ++i )
+			freeBatches.add( new Batch( batchSize ) );
+		current = new Batch( batchSize );
+		openSink();
+		writerThread = new WriterThread();
+		writerThread.start();
+	}
+
+	public void writeRaw( long timeStamp, int channel, float x, float y, float z ) throws IOException {
+		if( !reserve() )
+			return;
+		current.add( timeStamp, channel, x, y, z );
+		++recordCount;
+	}
+
+	public void writeDerived( long timeStamp, int channel, double v[] ) throws IOException {
+		if( !reserve() )
+			return;
+		current.add( timeStamp, channel, v[0], v[1], v[2] );
+		++recordCount;
+	}
+
+	public void writeCalibration( double gravity[], double gravityLen ) {
+		synchronized( calibrationLock ) {
+			calibration[0] = gravity[0];
+			calibration[1] = gravity[1];
+			calibration[2] = gravity[2];
+			calibrationLen = gravityLen;
+			calibrated = true;
+			calibrationPending = true;
+		}
+	}
+
+/**
+ * Hands the records collected so far to the writer thread, which flushes
+ * the underlying sink once they are written.
+ */
+	public void flush() throws IOException {
+		checkError();
+		if( current.size > 0 ) {
+			current.flushRequested = true;
+			handOver( current );
+		}
+	}
+
+	public void close() throws IOException {
+		if( current.size > 0 ) {
+			try {
+				fullBatches.put( current );
+			} catch( InterruptedException ex ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		current = null;
+		writerThread.shutdown();
+		try {
+			writerThread.join();
+		} catch( InterruptedException ex ) {
+			Thread.currentThread().interrupt();
+		}
+		if( sink != null ) {
+			sink.close();
+			sink = null;
+		}
+		if( error != null )
+			throw error;
+	}
+
+/**
+ * Returns the number of records accepted from the producer, including the
+ * ones dropped later on.
+ */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+/**
+ * Returns the records the underlying sinks kept, which leaves out the ones
+ * a sink discards by design, such as the derived channels of a
+ * CompressedCaptureWriter.
+ */
+	public long getRecordsWritten() {
+		return recordsWritten;
+	}
+
+/**
+ * Returns the records discarded by the overflow policy or lost to a write
+ * error.
+ */
+	public long getRecordsDropped() {
+		return recordsDropped + recordsLost;
+	}
+
+	public int getFileCount() {
+		return fileSequence;
+	}
+
+/**
+ * Returns the error that stopped the writer thread, or null.
+ */
+	public IOException getError() {
+		return error;
+	}
+
+	private boolean reserve() throws IOException {
+		checkError();
+		if( current.isFull() && !handOver( current ) ) {
+			++recordsDropped;
+			return false;
+		}
+		return true;
+	}
+
+	private void checkError() throws IOException {
+		IOException e = error;
+		if( e != null )
+			throw e;
+	}
+
+// Queues the current batch and takes a free one, applying the overflow
+// policy when none is free. Returns false if the batch has to be kept
+// because the incoming record is to be dropped.
+	private boolean handOver( Batch batch ) throws IOException {
+		Batch next = freeBatches.poll();
+		if( next == null ) {
+			switch( policy ) {
+			case POLICY_BLOCK:
+				try {
+					next = freeBatches.take();
+				} catch( InterruptedException ex ) {
+					Thread.currentThread().interrupt();
+					throw new IOException( "Interrupted while waiting for the capture writer" );
+				}
+				break;
+
+			case POLICY_DROP_OLDEST:
+				next = fullBatches.poll();
+				if( next != null ) {
+					recordsDropped += next.size;
+					next.clear();
+				}
+				break;
+			}
+			if( next == null )
+				return false;
+		}
+		fullBatches.offer( batch );
+		current = next;
+		return true;
+	}
+
+	private void openSink() throws IOException {
+		sink = factory.create( fileSequence++ );
+		sinkOpened = System.currentTimeMillis();
+		sinkBaseBytes = bytesWritten;
+		sinkBaseRecords = recordsWritten;
+		synchronized( calibrationLock ) {
+			if( calibrated )
+				calibrationPending = true;
+		}
+	}
+
+	private void writeBatch( Batch batch ) throws IOException {
+		applyCalibration();
+		for( int i = 0 ; i < batch.size ; ++i ) {
+			int channel = batch.channels[i];
+			if( CaptureFormat.hasRawLayout( channel ) )
+				sink.writeRaw(
+						batch.timeStamps[i],
+						channel,
+						(float)batch.xs[i],
+						(float)batch.ys[i],
+						(float)batch.zs[i] );
+			else {
+				derived[0] = batch.xs[i];
+				derived[1] = batch.ys[i];
+				derived[2] = batch.zs[i];
+				sink.writeDerived( batch.timeStamps[i], channel, derived );
+			}
+		}
+		recordsWritten = sinkBaseRecords + sink.getRecordCount();
+		bytesWritten = sinkBaseBytes + sink.getBytesWritten();
+		if( ( ( maxFileBytes > 0L ) && ( sink.getBytesWritten() >= maxFileBytes ) ) ||
+			( ( maxFileMillis > 0L ) && ( System.currentTimeMillis() - sinkOpened >= maxFileMillis ) ) ) {
+			sink.close();
+			bytesWritten = sinkBaseBytes + sink.getBytesWritten();
+			sink = null;
+			openSink();
+		}
+	}
+
+	private void applyCalibration() throws IOException {
+		synchronized( calibrationLock ) {
+			if( !calibrationPending )
+				return;
+			calibrationPending = false;
+			sink.writeCalibration( calibration, calibrationLen );
+		}
+	}
+
+	class WriterThread extends Thread {
+		WriterThread() {
+			super( "AsyncCaptureSink.writer" );
+		}
+
+		public void run() {
+			try {
+				while( true ) {
+					Batch batch = fullBatches.take();
+					if( batch == SHUTDOWN )
+						break;
+					try {
+						if( error != null )
+							recordsLost += batch.size;
+						else {
+							writeBatch( batch );
+							if( batch.flushRequested ) {
+								sink.flush();
+								bytesWritten = sinkBaseBytes + sink.getBytesWritten();
+							}
+						}
+					} catch( IOException ex ) {
+						error = ex;
+						recordsLost += batch.size;
+					}
+					batch.clear();
+					freeBatches.offer( batch );
+				}
+				if( error == null ) {
+					applyCalibration();
+					sink.flush();
+					bytesWritten = sinkBaseBytes + sink.getBytesWritten();
+				}
+			} catch( InterruptedException ex ) {
+				error = new IOException( "Capture writer interrupted" );
+			} catch( IOException ex ) {
+				error = ex;
+			}
+		}
+
+		void shutdown() {
+			try {
+				fullBatches.put( SHUTDOWN );
+			} catch( InterruptedException ex ) {
+				interrupt();
+			}
+		}
+	}
+
+// Records are stored as doubles; raw floats widen exactly and are narrowed
+// back by the writer thread
+	static class Batch {
+		Batch( int capacity ) {
+			this.capacity = capacity;
+			timeStamps = new long[capacity];
+			channels = new byte[capacity];
+			xs = new double[capacity];
+			ys = new double[capacity];
+			zs = new double[capacity];
+		}
+
+		boolean isFull() {
+			return size >= capacity;
+		}
+
+		void add( long timeStamp, int channel, double x, double y, double z ) {
+			timeStamps[size] = timeStamp;
+			channels[size] = (byte)channel;
+			xs[size] = x;
+			ys[size] = y;
+			zs[size] = z;
+			++size;
+		}
+
+		void clear() {
+			size = 0;
+			flushRequested = false;
+		}
+
+		final int capacity;
+		final long timeStamps[];
+		final byte channels[];
+		final double xs[];
+		final double ys[];
+		final double zs[];
+		int size;
+		boolean flushRequested;
+	}
+
+	private static final Batch SHUTDOWN = new Batch( 0 );
+
+	private final CaptureSinkFactory factory;
+	private final int policy;
+	private final long maxFileBytes;
+	private final long maxFileMillis;
+	private final ArrayBlockingQueue<Batch> freeBatches;
+	private final ArrayBlockingQueue<Batch> fullBatches;
+	private final WriterThread writerThread;
+	private final double derived[] = new double[3];
+	private final Object calibrationLock = new Object();
+	private final double calibration[] = new double[3];
+	private double calibrationLen;
+	private boolean calibrated = false;
+	private boolean calibrationPending = false;
+	private Batch current;
+	private CaptureSink sink;
+	private int fileSequence = 0;
+	private long sinkOpened;
+	private long sinkBaseBytes;
+	private long sinkBaseRecords;
+	private long recordCount = 0L;
+	private volatile long recordsWritten = 0L;
+// recordsDropped is updated by the producer, recordsLost by the writer
+	private volatile long recordsDropped = 0L;
+	private volatile long recordsLost = 0L;
+	private volatile long bytesWritten = 0L;
+	private volatile IOException error = null;
+}
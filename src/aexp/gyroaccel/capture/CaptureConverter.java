@@ -0,0 +1,45 @@
+package aexp.gyroaccel.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts a binary or compressed capture back to the CSV layout
+ * SamplingService used to write: one "timestamp,channel,x,y,z" line per
+ * record. Lines are formatted by CsvFormatter.
+ */
+public class CaptureConverter {
+	static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	public static void main( String args[] ) throws IOException {
+		if( args.length != 2 ) {
+			System.err.println( "Usage: CaptureConverter <capture.bin> <capture.csv>" );
+			System.exit( 1 );
+		}
+		long records = toCsv( new File( args[0] ), new File( args[1] ) );
+		System.out.println( "Converted "+records+" records" );
+	}
+
+	public static long toCsv( File captureFile, File csvFile ) throws IOException {
+		CaptureSource reader = CaptureFiles.openSource( captureFile );
+		CsvFormatter formatter = new CsvFormatter();
+		OutputStream out = null;
+		long records = 0L;
+		try {
+			out = new BufferedOutputStream( new FileOutputStream( csvFile, false ), OUTPUT_BUFFER_SIZE );
+			while( reader.next() ) {
+				formatter.format( reader );
+				formatter.writeTo( out );
+				++records;
+			}
+		} finally {
+			if( out != null )
+				out.close();
+			reader.close();
+		}
+		return records;
+	}
+}
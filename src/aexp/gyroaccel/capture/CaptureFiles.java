@@ -0,0 +1,37 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Opens captures independently of their encoding. Files not starting with
+ * the capture magic are taken as CSV captures.
+ */
+public class CaptureFiles {
+	public static CaptureSource openSource( File file ) throws IOException {
+		boolean compressed;
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			if( !isBinary( raf ) )
+				return new CsvCaptureReader( file );
+			compressed = CaptureHeader.read( raf.getChannel() ).isCompressed();
+		} finally {
+			raf.close();
+		}
+		if( compressed )
+			return new CompressedCaptureReader( file );
+		return new CaptureReader( file );
+	}
+
+	private static boolean isBinary( RandomAccessFile raf ) throws IOException {
+		byte magic[] = new byte[4];
+		if( raf.read( magic ) < magic.length )
+			return false;
+		ByteBuffer b = ByteBuffer.wrap( magic );
+		b.order( ByteOrder.LITTLE_ENDIAN );
+		return b.getInt( 0 ) == CaptureFormat.MAGIC;
+	}
+}
@@ -0,0 +1,231 @@
+package aexp.gyroaccel.capture;
+
+import aexp.gyroaccel.engine.FusionEngine;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the binary capture file. All values are little endian.
+ * <pre>
+ * header (HEADER_SIZE bytes)
+ *   0  int     MAGIC
+ *   4  short   VERSION
+ *   6  short   HEADER_SIZE
+ *   8  int     flags, FLAG_CALIBRATED once the calibration fields are valid,
+ *              FLAG_COMPRESSED if frames of compressed blocks follow
+ *              instead of records, FLAG_JOURNALED if the records are
+ *              grouped into journal blocks
+ *  12  double  calibrated gravity x, y, z and length
+ *  44  sensor  accelerometer
+ * 184  sensor  gyroscope
+ * sensor (SENSOR_INFO_SIZE bytes)
+ *   0  string  name (one length byte and up to 63 bytes of UTF-8)
+ *  64  string  vendor
+ * 128  float   resolution
+ * 132  float   maximum range
+ * 136  int     minimum delay in microseconds
+ * records, appended after the header
+ *   byte channel, long timestamp in nanoseconds, then three floats for the
+ *   raw sensor channels or three doubles for the derived channels
+ * journal blocks, appended after the header
+ *   byte JOURNAL_MARKER, int payload length, int record count, int CRC32
+ *   of the payload length, the record count and the payload, then the
+ *   records; a block is only valid if it is complete, its checksum matches
+ *   and its records fill the payload exactly
+ * compressed frames, appended after the header
+ *   byte FRAME_MARKER, byte block count, then the blocks; a frame holds one
+ *   block per raw channel covering the same span of time
+ * compressed block
+ *   byte channel, int sample count, int data length, data bits as written
+ *   by SampleBlockEncoder
+ * </pre>
+ * Journal payloads and compressed block data are at most MAX_BLOCK_LENGTH
+ * bytes; readers take a longer length field for a torn or corrupt tail.
+ */
+public class CaptureFormat {
+	public static final int MAGIC = 0x43525947;	// "GYRC"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 512;
+	public static final int FLAG_CALIBRATED = 1;
+	public static final int FLAG_COMPRESSED = 2;
+	public static final int FLAG_JOURNALED = 4;
+	public static final int FRAME_MARKER = 0x46;	// 'F'
+	public static final int FRAME_HEADER_SIZE = 2;
+	public static final int BLOCK_HEADER_SIZE = 1 + 4 + 4;
+	public static final int JOURNAL_MARKER = 0x42;	// 'B'
+	public static final int JOURNAL_HEADER_SIZE = 1 + 4 + 4 + 4;
+	public static final int MAX_BLOCK_LENGTH = 16 * 1024 * 1024;
+	public static final int OFFSET_FLAGS = 8;
+	public static final int OFFSET_CALIBRATION = 12;
+	public static final int OFFSET_ACCEL_INFO = 44;
+	public static final int OFFSET_GYRO_INFO = 184;
+	public static final int SENSOR_INFO_SIZE = 140;
+	public static final int STRING_FIELD_SIZE = 64;
+
+	public static final int CHANNEL_NA = 0;
+	public static final int CHANNEL_ACCEL = 1;
+	public static final int CHANNEL_GYRO = 2;
+	public static final int CHANNEL_VECDIFF = 3;
+	public static final int CHANNEL_ROTATEDDIFF = 4;
+	public static final int CHANNEL_SIMUL = 5;
+	public static final int CHANNEL_COUNT = 6;
+
+	public static final int RAW_RECORD_SIZE = 1 + 8 + 3*4;
+	public static final int DERIVED_RECORD_SIZE = 1 + 8 + 3*8;
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+	static final String CHANNEL_NAMES[] = {
+		"n/a", "accel", "gyro", "vecdiff", "rotateddiff", "simul"
+	};
+
+/**
+ * True for the sensor channels.
+ */
+	public static boolean isRawChannel( int channel ) {
+		return ( channel == CHANNEL_ACCEL ) || ( channel == CHANNEL_GYRO );
+	}
+
+/**
+ * True for the channels stored with three floats: the sensor channels and
+ * CHANNEL_NA, which samples of an unknown sensor type are recorded as.
+ */
+	public static boolean hasRawLayout( int channel ) {
+		return channel <= CHANNEL_GYRO;
+	}
+
+	public static boolean isValidChannel( int channel ) {
+		return ( channel > CHANNEL_NA ) && ( channel < CHANNEL_COUNT );
+	}
+
+	public static int getRecordSize( int channel ) {
+		return hasRawLayout( channel ) ? RAW_RECORD_SIZE : DERIVED_RECORD_SIZE;
+	}
+
+/**
+ * Returns the number of records that fill length bytes of buffer at
+ * position exactly, or -1 if a record carries an unknown channel or runs
+ * past the end.
+ */
+	static int countRecords( ByteBuffer buffer, int position, int length ) {
+		int end = position + length;
+		int records = 0;
+		while( position < end ) {
+			int channel = buffer.get( position ) & 0xFF;
+			if( channel >= CHANNEL_COUNT )
+				return -1;
+			position += getRecordSize( channel );
+			++records;
+		}
+		return position == end ? records : -1;
+	}
+
+/**
+ * Resets crc and feeds it the length and record count fields of a journal
+ * block in their stored byte order; the payload follows.
+ */
+	static void startJournalChecksum( CRC32 crc, int payloadLength, int records ) {
+		crc.reset();
+		updateInt( crc, payloadLength );
+		updateInt( crc, records );
+	}
+
+/**
+ * Returns the name the channel has in the CSV capture layout.
+ */
+	public static String getChannelName( int channel ) {
+		if( ( channel < 0 ) || ( channel >= CHANNEL_COUNT ) )
+			return CHANNEL_NAMES[CHANNEL_NA];
+		return CHANNEL_NAMES[channel];
+	}
+
+	public static int getChannel( String channelName ) {
+		for( int i = 0 ; i < CHANNEL_COUNT ; ++i )
+			if( CHANNEL_NAMES[i].equals( channelName ) )
+				return i;
+		return -1;
+	}
+
+	public static int channelOfSensorType( int sensorType ) {
+		int channel = CHANNEL_NA;
+		if( sensorType == FusionEngine.SENSORTYPE_ACCEL )
+			channel = CHANNEL_ACCEL;
+		else
+		if( sensorType == FusionEngine.SENSORTYPE_GYRO )
+			channel = CHANNEL_GYRO;
+		return channel;
+	}
+
+	public static int sensorTypeOfChannel( int channel ) {
+		int sensorType = FusionEngine.SENSORTYPE_NA;
+		if( channel == CHANNEL_ACCEL )
+			sensorType = FusionEngine.SENSORTYPE_ACCEL;
+		else
+		if( channel == CHANNEL_GYRO )
+			sensorType = FusionEngine.SENSORTYPE_GYRO;
+		return sensorType;
+	}
+
+	static ByteBuffer newHeader( SensorInfo accelInfo, SensorInfo gyroInfo, int flags ) {
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+		header.order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC );
+		header.putShort( (short)VERSION );
+		header.putShort( (short)HEADER_SIZE );
+		header.putInt( flags );
+		putSensorInfo( header, OFFSET_ACCEL_INFO, accelInfo );
+		putSensorInfo( header, OFFSET_GYRO_INFO, gyroInfo );
+		header.position( 0 );
+		return header;
+	}
+
+	static SensorInfo getSensorInfo( ByteBuffer header, int offset ) {
+		String name = getString( header, offset );
+		if( name == null )
+			return null;
+		String vendor = getString( header, offset + STRING_FIELD_SIZE );
+		return new SensorInfo(
+				name,
+				vendor,
+				header.getFloat( offset + 2*STRING_FIELD_SIZE ),
+				header.getFloat( offset + 2*STRING_FIELD_SIZE + 4 ),
+				header.getInt( offset + 2*STRING_FIELD_SIZE + 8 ) );
+	}
+
+	private static void updateInt( CRC32 crc, int value ) {
+		crc.update( value );
+		crc.update( value >>> 8 );
+		crc.update( value >>> 16 );
+		crc.update( value >>> 24 );
+	}
+
+	private static void putSensorInfo( ByteBuffer header, int offset, SensorInfo info ) {
+		if( info == null )
+			return;
+		putString( header, offset, info.getName() );
+		putString( header, offset + STRING_FIELD_SIZE, info.getVendor() );
+		header.putFloat( offset + 2*STRING_FIELD_SIZE, info.getResolution() );
+		header.putFloat( offset + 2*STRING_FIELD_SIZE + 4, info.getMaximumRange() );
+		header.putInt( offset + 2*STRING_FIELD_SIZE + 8, info.getMinDelay() );
+	}
+
+// Strings are stored as length+1 so that a zero length byte means "absent"
+	private static void putString( ByteBuffer header, int offset, String s ) {
+		byte bytes[] = s == null ? new byte[0] : s.getBytes( UTF8 );
+		int len = Math.min( bytes.length, STRING_FIELD_SIZE - 2 );
+		header.put( offset, (byte)( len + 1 ) );
+		for( int i = 0 ; i < len ; ++i )
+			header.put( offset + 1 + i, bytes[i] );
+	}
+
+	private static String getString( ByteBuffer header, int offset ) {
+		int len = ( header.get( offset ) & 0xFF ) - 1;
+		if( len < 0 )
+			return null;
+		byte bytes[] = new byte[len];
+		for( int i = 0 ; i < len ; ++i )
+			bytes[i] = header.get( offset + 1 + i );
+		return new String( bytes, UTF8 );
+	}
+}
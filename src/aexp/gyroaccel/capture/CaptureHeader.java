@@ -0,0 +1,108 @@
+package aexp.gyroaccel.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Parsed capture header, see CaptureFormat for the layout.
+ */
+public class CaptureHeader {
+	public static CaptureHeader read( FileChannel channel ) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate( CaptureFormat.HEADER_SIZE );
+		header.order( ByteOrder.LITTLE_ENDIAN );
+		long position = 0L;
+		while( header.hasRemaining() ) {
+			int n = channel.read( header, position );
+			if( n < 0 )
+				break;
+			position += n;
+		}
+		if( ( header.position() < CaptureFormat.HEADER_SIZE ) ||
+			( header.getInt( 0 ) != CaptureFormat.MAGIC ) )
+			throw new IOException( "Not a capture file" );
+		return new CaptureHeader( header );
+	}
+
+/**
+ * Writes the calibration fields and flags of an existing header in place.
+ */
+	static void writeCalibration(
+			FileChannel channel,
+			ByteBuffer scratch,
+			int flags,
+			double gravity[],
+			double gravityLen ) throws IOException {
+		scratch.clear();
+		scratch.order( ByteOrder.LITTLE_ENDIAN );
+		scratch.putInt( flags | CaptureFormat.FLAG_CALIBRATED );
+		scratch.putDouble( gravity[0] );
+		scratch.putDouble( gravity[1] );
+		scratch.putDouble( gravity[2] );
+		scratch.putDouble( gravityLen );
+		scratch.flip();
+		long position = CaptureFormat.OFFSET_FLAGS;
+		while( scratch.hasRemaining() )
+			position += channel.write( scratch, position );
+	}
+
+	private CaptureHeader( ByteBuffer header ) {
+		version = header.getShort( 4 );
+		headerSize = header.getShort( 6 );
+		flags = header.getInt( CaptureFormat.OFFSET_FLAGS );
+		for( int i = 0 ; i < 3 ; ++i )
+			calibratedGravity[i] = header.getDouble( CaptureFormat.OFFSET_CALIBRATION + 8*i );
+		calibratedGravityLen = header.getDouble( CaptureFormat.OFFSET_CALIBRATION + 24 );
+		accelInfo = CaptureFormat.getSensorInfo( header, CaptureFormat.OFFSET_ACCEL_INFO );
+		gyroInfo = CaptureFormat.getSensorInfo( header, CaptureFormat.OFFSET_GYRO_INFO );
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getHeaderSize() {
+		return headerSize;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean isCalibrated() {
+		return ( flags & CaptureFormat.FLAG_CALIBRATED ) != 0;
+	}
+
+	public boolean isCompressed() {
+		return ( flags & CaptureFormat.FLAG_COMPRESSED ) != 0;
+	}
+
+	public boolean isJournaled() {
+		return ( flags & CaptureFormat.FLAG_JOURNALED ) != 0;
+	}
+
+	public double[] getCalibratedGravity() {
+		return calibratedGravity;
+	}
+
+	public double getCalibratedGravityLen() {
+		return calibratedGravityLen;
+	}
+
+	public SensorInfo getAccelInfo() {
+		return accelInfo;
+	}
+
+	public SensorInfo getGyroInfo() {
+		return gyroInfo;
+	}
+
+	private final int version;
+	private final int headerSize;
+	private final int flags;
+	private final double calibratedGravity[] = new double[3];
+	private final double calibratedGravityLen;
+	private final SensorInfo accelInfo;
+	private final SensorInfo gyroInfo;
+}
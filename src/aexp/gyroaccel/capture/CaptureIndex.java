@@ -0,0 +1,270 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sparse time index of a capture. There is one entry per block of
+ * records (a drained buffer, a journal block or a compressed frame) giving
+ * the span of the block in the file, its record count and the range of
+ * timestamps in it. For record captures the span covers the records only,
+ * for compressed captures the whole frame.
+ * <p>
+ * Writers keep the index while they write and store it next to the
+ * capture on close. A capture without a current index file, e.g. one
+ * left by a crash, is indexed by scanning it. The index file layout is,
+ * little endian:
+ * <pre>
+ *   int   INDEX_MAGIC
+ *   int   INDEX_VERSION
+ *   long  length of the indexed capture
+ *   int   entry count
+ *   entries (ENTRY_SIZE bytes each)
+ *     long offset, int length, int record count,
+ *     long lowest timestamp, long highest timestamp
+ * </pre>
+ */
+public class CaptureIndex {
+	public static final int INDEX_MAGIC = 0x58445947;	// "GYDX"
+	public static final int INDEX_VERSION = 1;
+	public static final String INDEX_SUFFIX = ".idx";
+	public static final int INDEX_HEADER_SIZE = 4 + 4 + 8 + 4;
+	public static final int ENTRY_SIZE = 8 + 4 + 4 + 8 + 8;
+// Plain captures written before the index existed are indexed in spans of
+// this many records
+	public static final int SCAN_SPAN_RECORDS = 4096;
+	static final int INITIAL_CAPACITY = 64;
+
+	public CaptureIndex() {
+		this( INITIAL_CAPACITY );
+	}
+
+	public CaptureIndex( int capacity ) {
+		offsets = new long[capacity];
+		lengths = new int[capacity];
+		recordCounts = new int[capacity];
+		minTimeStamps = new long[capacity];
+		maxTimeStamps = new long[capacity];
+	}
+
+	public static File getIndexFile( File captureFile ) {
+		return new File( captureFile.getPath()+INDEX_SUFFIX );
+	}
+
+/**
+ * Returns the index of the capture, from its index file if that is
+ * current, otherwise by scanning the capture. A scanned index is stored
+ * if possible.
+ */
+	public static CaptureIndex load( File captureFile ) throws IOException {
+		File indexFile = getIndexFile( captureFile );
+		CaptureIndex index = read( indexFile, captureFile.length() );
+		if( index != null )
+			return index;
+		index = build( captureFile );
+		try {
+			index.write( indexFile, captureFile.length() );
+		} catch( IOException ex ) {
+// A read-only location only costs the scan next time
+		}
+		return index;
+	}
+
+/**
+ * Indexes the intact part of a capture by scanning it.
+ */
+	public static CaptureIndex build( File captureFile ) throws IOException {
+		CaptureIndex index = new CaptureIndex();
+		CaptureRecovery.scan( captureFile, false, index );
+		return index;
+	}
+
+/**
+ * Reads an index file. Returns null if it does not exist or belongs to a
+ * capture of a different length.
+ */
+	public static CaptureIndex read( File indexFile, long captureLength ) throws IOException {
+		if( !indexFile.exists() )
+			return null;
+		RandomAccessFile raf = new RandomAccessFile( indexFile, "r" );
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate( (int)channel.size() );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			while( buffer.hasRemaining() )
+				if( channel.read( buffer ) < 0 )
+					return null;
+			buffer.flip();
+			if( ( buffer.remaining() < INDEX_HEADER_SIZE ) ||
+				( buffer.getInt() != INDEX_MAGIC ) ||
+				( buffer.getInt() != INDEX_VERSION ) ||
+				( buffer.getLong() != captureLength ) )
+				return null;
+			int size = buffer.getInt();
+			if( ( size < 0 ) || ( buffer.remaining() != size * ENTRY_SIZE ) )
+				return null;
+			CaptureIndex index = new CaptureIndex( Math.max( size, 1 ) );
+			for( int i = 0 ; i < size ; ++i ) {
+				long offset = buffer.getLong();
+				int length = buffer.getInt();
+				int records = buffer.getInt();
+				long minTimeStamp = buffer.getLong();
+				long maxTimeStamp = buffer.getLong();
+				index.add( offset, length, records, minTimeStamp, maxTimeStamp );
+			}
+			return index;
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void write( File indexFile, long captureLength ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate( INDEX_HEADER_SIZE + size * ENTRY_SIZE );
+		buffer.order( ByteOrder.LITTLE_ENDIAN );
+		buffer.putInt( INDEX_MAGIC );
+		buffer.putInt( INDEX_VERSION );
+		buffer.putLong( captureLength );
+		buffer.putInt( size );
+		for( int i = 0 ; i < size ; ++i ) {
+			buffer.putLong( offsets[i] );
+			buffer.putInt( lengths[i] );
+			buffer.putInt( recordCounts[i] );
+			buffer.putLong( minTimeStamps[i] );
+			buffer.putLong( maxTimeStamps[i] );
+		}
+		buffer.flip();
+		RandomAccessFile raf = new RandomAccessFile( indexFile, "rw" );
+		try {
+			raf.setLength( 0L );
+			FileChannel channel = raf.getChannel();
+			while( buffer.hasRemaining() )
+				channel.write( buffer );
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void add( long offset, int length, int records, long minTimeStamp, long maxTimeStamp ) {
+		if( size == offsets.length )
+			grow();
+		offsets[size] = offset;
+		lengths[size] = length;
+		recordCounts[size] = records;
+		minTimeStamps[size] = minTimeStamp;
+		maxTimeStamps[size] = maxTimeStamp;
+		recordTotal += records;
+		++size;
+		boundsValid = false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getOffset( int entry ) {
+		return offsets[entry];
+	}
+
+	public int getLength( int entry ) {
+		return lengths[entry];
+	}
+
+	public int getRecordCount( int entry ) {
+		return recordCounts[entry];
+	}
+
+	public long getMinTimeStamp( int entry ) {
+		return minTimeStamps[entry];
+	}
+
+	public long getMaxTimeStamp( int entry ) {
+		return maxTimeStamps[entry];
+	}
+
+	public long getRecordTotal() {
+		return recordTotal;
+	}
+
+/**
+ * Returns the first entry that may hold a record at or after
+ * <code>timeStamp</code>, or size() if there is none. Sensor timestamps
+ * are not strictly ordered across channels, so the search runs on the
+ * running maximum of the entries' highest timestamps.
+ */
+	public int findFirst( long timeStamp ) {
+		updateBounds();
+		int low = 0;
+		int high = size;
+		while( low < high ) {
+			int mid = ( low + high ) >>> 1;
+			if( runningMax[mid] < timeStamp )
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+/**
+ * Returns true if neither <code>entry</code> nor any entry after it holds
+ * a record at or before <code>timeStamp</code>.
+ */
+	public boolean startsAfter( int entry, long timeStamp ) {
+		updateBounds();
+		return trailingMin[entry] > timeStamp;
+	}
+
+	private void updateBounds() {
+		if( boundsValid )
+			return;
+		if( ( runningMax == null ) || ( runningMax.length < size ) ) {
+			runningMax = new long[offsets.length];
+			trailingMin = new long[offsets.length];
+		}
+		long max = Long.MIN_VALUE;
+		for( int i = 0 ; i < size ; ++i ) {
+			max = Math.max( max, maxTimeStamps[i] );
+			runningMax[i] = max;
+		}
+		long min = Long.MAX_VALUE;
+		for( int i = size - 1 ; i >= 0 ; --i ) {
+			min = Math.min( min, minTimeStamps[i] );
+			trailingMin[i] = min;
+		}
+		boundsValid = true;
+	}
+
+	private void grow() {
+		int capacity = Math.max( INITIAL_CAPACITY, offsets.length * 2 );
+		offsets = copyOf( offsets, capacity );
+		minTimeStamps = copyOf( minTimeStamps, capacity );
+		maxTimeStamps = copyOf( maxTimeStamps, capacity );
+		int newLengths[] = new int[capacity];
+		System.arraycopy( lengths, 0, newLengths, 0, size );
+		lengths = newLengths;
+		int newRecordCounts[] = new int[capacity];
+		System.arraycopy( recordCounts, 0, newRecordCounts, 0, size );
+		recordCounts = newRecordCounts;
+	}
+
+	private long[] copyOf( long a[], int capacity ) {
+		long b[] = new long[capacity];
+		System.arraycopy( a, 0, b, 0, size );
+		return b;
+	}
+
+	private long offsets[];
+	private int lengths[];
+	private int recordCounts[];
+	private long minTimeStamps[];
+	private long maxTimeStamps[];
+	private long runningMax[];
+	private long trailingMin[];
+	private boolean boundsValid = false;
+	private int size = 0;
+	private long recordTotal = 0L;
+}
@@ -0,0 +1,162 @@
+package aexp.gyroaccel.capture;
+
+import java.io.IOException;
+
+import aexp.gyroaccel.engine.FusionEngine;
+import aexp.gyroaccel.engine.SampleRing;
+import aexp.gyroaccel.engine.SensorSource;
+
+/**
+ * Plays the sensor records of a capture into a SampleRing, standing in for
+ * the sensor callbacks. Records are released at their recorded timing
+ * divided by the speed factor; the schedule is kept against the start of
+ * the playback, so a late wakeup releases everything that fell due at once
+ * instead of shifting the rest of the session. The next record is read
+ * ahead of its due time so that parsing stays off the schedule.
+ * <p>
+ * Paced playback drops samples on a full ring like the sensor callbacks
+ * do. Playback at SPEED_MAX waits for the consumer instead, so it runs as
+ * fast as processing allows without losing samples. Derived records of the
+ * capture are skipped, they are recomputed by the consumer. The recorded
+ * timestamps are passed on unchanged.
+ */
+public class CapturePlayer implements SensorSource {
+	public static final float SPEED_MAX = 0.0f;
+	static final long FULL_RING_WAIT = 1L;
+
+/**
+ * A speed of SPEED_MAX or below plays without pacing. The player owns the
+ * source and closes it when it ends.
+ */
+	public CapturePlayer( CaptureSource source, float speed ) {
+		this.source = source;
+		this.speed = speed;
+	}
+
+	public void start( SampleRing ring ) {
+		this.ring = ring;
+		playerThread = new PlayerThread();
+		playerThread.start();
+	}
+
+	public void stop() {
+		PlayerThread thread = playerThread;
+		if( thread == null )
+			return;
+		playerThread = null;
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch( InterruptedException ex ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+/**
+ * Returns true once the whole capture has been played.
+ */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public long getSamplesPlayed() {
+		return samplesPlayed;
+	}
+
+/**
+ * Samples lost because the ring was full in paced playback.
+ */
+	public long getSamplesDropped() {
+		return samplesDropped;
+	}
+
+/**
+ * The largest delay between the due time of a sample and its release.
+ */
+	public long getMaxLagNanos() {
+		return maxLagNanos;
+	}
+
+	public IOException getError() {
+		return error;
+	}
+
+	class PlayerThread extends Thread {
+		PlayerThread() {
+			super( "CapturePlayer" );
+		}
+
+		public void run() {
+			try {
+				play();
+			} catch( InterruptedException ex ) {
+// Stopped
+			} catch( IOException ex ) {
+				error = ex;
+			} finally {
+				try {
+					source.close();
+				} catch( IOException ex ) {
+					if( error == null )
+						error = ex;
+				}
+			}
+		}
+	}
+
+	private void play() throws IOException, InterruptedException {
+		boolean paced = speed > SPEED_MAX;
+		long firstTimeStamp = 0L;
+		long startNanos = 0L;
+		boolean started = false;
+		while( running && source.next() ) {
+			int channel = source.getChannel();
+			if( !CaptureFormat.isRawChannel( channel ) )
+				continue;
+			long timeStamp = source.getTimeStamp();
+			if( paced ) {
+				if( !started ) {
+					firstTimeStamp = timeStamp;
+					startNanos = System.nanoTime();
+					started = true;
+				}
+				long dueNanos = startNanos + (long)( ( timeStamp - firstTimeStamp ) / speed );
+				long wait = dueNanos - System.nanoTime();
+				if( wait > 0L ) {
+					Thread.sleep( wait / 1000000L, (int)( wait % 1000000L ) );
+					wait = dueNanos - System.nanoTime();
+				}
+				if( -wait > maxLagNanos )
+					maxLagNanos = -wait;
+			} else
+				while( ring.size() >= ring.getCapacity() ) {
+					if( !running )
+						return;
+					Thread.sleep( FULL_RING_WAIT );
+				}
+			float v[] = source.getRawValues();
+			if( ring.put(
+					timeStamp,
+					CaptureFormat.sensorTypeOfChannel( channel ),
+					v[FusionEngine.IDX_X],
+					v[FusionEngine.IDX_Y],
+					v[FusionEngine.IDX_Z] ) )
+				++samplesPlayed;
+			else
+				++samplesDropped;
+		}
+		finished = running;
+	}
+
+	private final CaptureSource source;
+	private SampleRing ring;
+	private PlayerThread playerThread;
+	private final float speed;
+	private volatile boolean running = true;
+	private volatile boolean finished = false;
+	private volatile long samplesPlayed = 0L;
+	private volatile long samplesDropped = 0L;
+	private volatile long maxLagNanos = 0L;
+	private volatile IOException error = null;
+}
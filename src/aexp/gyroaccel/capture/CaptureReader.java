@@ -0,0 +1,158 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a binary capture record by record. A truncated record at the end
+ * of the file, as left by an interrupted session, ends the capture. In a
+ * journaled capture an incomplete block or a block failing its checksum
+ * ends the capture as well, and so does a block whose length field is
+ * beyond CaptureFormat.MAX_BLOCK_LENGTH or the end of the file.
+ */
+public class CaptureReader implements CaptureSource {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	public CaptureReader( File file ) throws IOException {
+		raf = new RandomAccessFile( file, "r" );
+		channel = raf.getChannel();
+		try {
+			header = CaptureHeader.read( channel );
+			if( header.isCompressed() )
+				throw new IOException( "Compressed capture, use CompressedCaptureReader: "+file );
+		} catch( IOException ex ) {
+			raf.close();
+			throw ex;
+		}
+		channel.position( header.getHeaderSize() );
+		journaled = header.isJournaled();
+		crc = journaled ? new CRC32() : null;
+		buffer = allocateBuffer( DEFAULT_BUFFER_SIZE );
+		buffer.limit( 0 );
+	}
+
+	public CaptureHeader getHeader() {
+		return header;
+	}
+
+	public boolean next() throws IOException {
+		if( journaled && ( blockRecords == 0 ) && !nextBlock() )
+			return false;
+		if( !fill( 1 ) )
+			return false;
+		int ch = buffer.get( buffer.position() ) & 0xFF;
+		int recordSize = CaptureFormat.getRecordSize( ch );
+		if( !fill( recordSize ) )
+			return false;
+		buffer.get();
+		--blockRecords;
+		recordChannel = ch;
+		timeStamp = buffer.getLong();
+		if( CaptureFormat.hasRawLayout( ch ) ) {
+			rawValues[0] = buffer.getFloat();
+			rawValues[1] = buffer.getFloat();
+			rawValues[2] = buffer.getFloat();
+			values[0] = rawValues[0];
+			values[1] = rawValues[1];
+			values[2] = rawValues[2];
+		} else {
+			values[0] = buffer.getDouble();
+			values[1] = buffer.getDouble();
+			values[2] = buffer.getDouble();
+		}
+		return true;
+	}
+
+	public int getChannel() {
+		return recordChannel;
+	}
+
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+
+	public float[] getRawValues() {
+		return rawValues;
+	}
+
+	public void close() throws IOException {
+		raf.close();
+	}
+
+// Positions the buffer at the payload of the next valid journal block
+	private boolean nextBlock() throws IOException {
+		do {
+			if( !fill( CaptureFormat.JOURNAL_HEADER_SIZE ) )
+				return false;
+			if( ( buffer.get() & 0xFF ) != CaptureFormat.JOURNAL_MARKER )
+				return false;
+			int payloadLength = buffer.getInt();
+			int records = buffer.getInt();
+			int checksum = buffer.getInt();
+			if( ( payloadLength < 0 ) ||
+				( payloadLength > CaptureFormat.MAX_BLOCK_LENGTH ) ||
+				( payloadLength > buffer.remaining() + channel.size() - channel.position() ) ||
+				( records < 0 ) ||
+				( records > payloadLength / CaptureFormat.RAW_RECORD_SIZE ) )
+				return false;
+			if( payloadLength > buffer.capacity() ) {
+				ByteBuffer larger = allocateBuffer( payloadLength );
+				larger.put( buffer );
+				larger.flip();
+				buffer = larger;
+			}
+			if( !fill( payloadLength ) )
+				return false;
+			CaptureFormat.startJournalChecksum( crc, payloadLength, records );
+			crc.update( buffer.array(), buffer.arrayOffset() + buffer.position(), payloadLength );
+			if( (int)crc.getValue() != checksum )
+				return false;
+			if( CaptureFormat.countRecords( buffer, buffer.position(), payloadLength ) != records )
+				return false;
+			blockRecords = records;
+		} while( blockRecords == 0 );
+		return true;
+	}
+
+// Journaled captures are checksummed over the backing array
+	private ByteBuffer allocateBuffer( int size ) {
+		ByteBuffer b = journaled ? ByteBuffer.allocate( size ) : ByteBuffer.allocateDirect( size );
+		b.order( ByteOrder.LITTLE_ENDIAN );
+		return b;
+	}
+
+	private boolean fill( int needed ) throws IOException {
+		if( buffer.remaining() >= needed )
+			return true;
+		buffer.compact();
+		while( buffer.position() < needed ) {
+			if( channel.read( buffer ) < 0 ) {
+				buffer.flip();
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final CaptureHeader header;
+	private final boolean journaled;
+	private final CRC32 crc;
+	private ByteBuffer buffer;
+	private int blockRecords = 0;
+	private final double values[] = new double[3];
+	private final float rawValues[] = new float[3];
+	private int recordChannel;
+	private long timeStamp;
+}
@@ -0,0 +1,343 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Repairs a capture left behind by a session that did not close it. The
+ * capture is scanned from the header on and cut back to the end of the
+ * last intact unit: journal blocks must be complete, match their checksum
+ * and be filled exactly by their records, plain records must be complete
+ * and carry a sensor or derived channel (so that zero-filled space past the
+ * data ends the scan) and compressed frames must be complete and every
+ * block must decode. A length field
+ * beyond CaptureFormat.MAX_BLOCK_LENGTH or the end of the file marks a torn
+ * unit as well; nothing is read or allocated for it.
+ */
+public class CaptureRecovery {
+	public static final int FORMAT_PLAIN = 0;
+	public static final int FORMAT_JOURNALED = 1;
+	public static final int FORMAT_COMPRESSED = 2;
+	static final int SCAN_BUFFER_SIZE = 64 * 1024;
+	static final String FORMAT_NAMES[] = { "plain", "journaled", "compressed" };
+
+	public static void main( String args[] ) throws IOException {
+		if( ( args.length < 1 ) || ( args.length > 2 ) ||
+			( ( args.length == 2 ) && !args[0].equals( "-n" ) ) ) {
+			System.err.println( "Usage: CaptureRecovery [-n] <capture.bin>" );
+			System.exit( 1 );
+		}
+		boolean truncate = args.length == 1;
+		Result result = recover( new File( args[args.length - 1] ), truncate );
+		System.out.println( result );
+	}
+
+/**
+ * Truncates the torn tail of the capture and returns what survived.
+ */
+	public static Result recover( File file ) throws IOException {
+		return recover( file, true );
+	}
+
+	public static Result recover( File file, boolean truncate ) throws IOException {
+		return scan( file, truncate, null );
+	}
+
+// Adds the intact units to index if it is not null
+	static Result scan( File file, boolean truncate, CaptureIndex index ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, truncate ? "rw" : "r" );
+		try {
+			FileChannel channel = raf.getChannel();
+			CaptureHeader header = CaptureHeader.read( channel );
+			Result result = new Result();
+			result.originalLength = channel.size();
+			Scanner scanner = new Scanner( channel, header.getHeaderSize() );
+			if( header.isCompressed() ) {
+				result.format = FORMAT_COMPRESSED;
+				scanFrames( scanner, result, index );
+			} else
+			if( header.isJournaled() ) {
+				result.format = FORMAT_JOURNALED;
+				scanBlocks( scanner, result, index );
+			} else {
+				result.format = FORMAT_PLAIN;
+				scanRecords( scanner, result, index );
+			}
+			result.validLength = scanner.unitStart;
+			if( truncate && ( result.validLength < result.originalLength ) ) {
+				channel.truncate( result.validLength );
+				channel.force( true );
+				result.truncated = true;
+			}
+			return result;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void scanRecords( Scanner scanner, Result result, CaptureIndex index ) throws IOException {
+		long spanStart = scanner.unitStart;
+		int spanRecords = 0;
+		long minTimeStamp = Long.MAX_VALUE;
+		long maxTimeStamp = Long.MIN_VALUE;
+		while( scanner.fill( 1 ) ) {
+			ByteBuffer buffer = scanner.buffer;
+			int channel = buffer.get( buffer.position() ) & 0xFF;
+			if( !CaptureFormat.isValidChannel( channel ) )
+				break;
+			int recordSize = CaptureFormat.getRecordSize( channel );
+			if( !scanner.fill( recordSize ) )
+				break;
+			buffer = scanner.buffer;
+			long timeStamp = buffer.getLong( buffer.position() + 1 );
+			minTimeStamp = Math.min( minTimeStamp, timeStamp );
+			maxTimeStamp = Math.max( maxTimeStamp, timeStamp );
+			scanner.skip( recordSize );
+			scanner.commit();
+			++result.records;
+			++result.units;
+			if( ( index != null ) && ( ++spanRecords == CaptureIndex.SCAN_SPAN_RECORDS ) ) {
+				index.add(
+						spanStart,
+						(int)( scanner.unitStart - spanStart ),
+						spanRecords,
+						minTimeStamp,
+						maxTimeStamp );
+				spanStart = scanner.unitStart;
+				spanRecords = 0;
+				minTimeStamp = Long.MAX_VALUE;
+				maxTimeStamp = Long.MIN_VALUE;
+			}
+		}
+		if( ( index != null ) && ( spanRecords > 0 ) )
+			index.add(
+					spanStart,
+					(int)( scanner.unitStart - spanStart ),
+					spanRecords,
+					minTimeStamp,
+					maxTimeStamp );
+	}
+
+	private static void scanBlocks( Scanner scanner, Result result, CaptureIndex index ) throws IOException {
+		CRC32 crc = new CRC32();
+		while( scanner.fill( CaptureFormat.JOURNAL_HEADER_SIZE ) ) {
+			ByteBuffer buffer = scanner.buffer;
+			if( ( buffer.get() & 0xFF ) != CaptureFormat.JOURNAL_MARKER )
+				return;
+			int payloadLength = buffer.getInt();
+			int records = buffer.getInt();
+			int checksum = buffer.getInt();
+			if( ( payloadLength < 0 ) ||
+				( payloadLength > CaptureFormat.MAX_BLOCK_LENGTH ) ||
+				( records < 0 ) ||
+				( records > payloadLength / CaptureFormat.RAW_RECORD_SIZE ) )
+				return;
+			if( !scanner.fill( payloadLength ) )
+				return;
+			buffer = scanner.buffer;
+			CaptureFormat.startJournalChecksum( crc, payloadLength, records );
+			crc.update( buffer.array(), buffer.arrayOffset() + buffer.position(), payloadLength );
+			if( (int)crc.getValue() != checksum )
+				return;
+			if( CaptureFormat.countRecords( buffer, buffer.position(), payloadLength ) != records )
+				return;
+			if( index != null )
+				indexRecords(
+						buffer,
+						payloadLength,
+						records,
+						scanner.unitStart + CaptureFormat.JOURNAL_HEADER_SIZE,
+						index );
+			scanner.skip( payloadLength );
+			scanner.commit();
+			result.records += records;
+			++result.units;
+		}
+	}
+
+	private static void scanFrames( Scanner scanner, Result result, CaptureIndex index ) throws IOException {
+		SampleBlockDecoder decoder = new SampleBlockDecoder();
+		byte blockData[] = new byte[0];
+		while( scanner.fill( CaptureFormat.FRAME_HEADER_SIZE ) ) {
+			ByteBuffer buffer = scanner.buffer;
+			if( ( buffer.get() & 0xFF ) != CaptureFormat.FRAME_MARKER )
+				return;
+			int blocks = buffer.get() & 0xFF;
+			if( ( blocks == 0 ) || ( blocks > CompressedCaptureWriter.RAW_CHANNELS ) )
+				return;
+			long samples = 0L;
+			long minTimeStamp = Long.MAX_VALUE;
+			long maxTimeStamp = Long.MIN_VALUE;
+			for( int i = 0 ; i < blocks ; ++i ) {
+				if( !scanner.fill( CaptureFormat.BLOCK_HEADER_SIZE ) )
+					return;
+				buffer = scanner.buffer;
+				int channel = buffer.get() & 0xFF;
+				int count = buffer.getInt();
+				int length = buffer.getInt();
+				if( ( channel >= CompressedCaptureWriter.RAW_CHANNELS ) ||
+					( count < 0 ) ||
+					( length < 0 ) ||
+					( length > CaptureFormat.MAX_BLOCK_LENGTH ) )
+					return;
+				if( !scanner.fill( length ) )
+					return;
+				buffer = scanner.buffer;
+				if( blockData.length < length )
+					blockData = new byte[length];
+				buffer.get( blockData, 0, length );
+				decoder.init( blockData, 0, length, count );
+				try {
+					while( decoder.hasNext() ) {
+						decoder.next();
+						minTimeStamp = Math.min( minTimeStamp, decoder.getTimeStamp() );
+						maxTimeStamp = Math.max( maxTimeStamp, decoder.getTimeStamp() );
+					}
+				} catch( IllegalStateException ex ) {
+					return;
+				}
+				samples += count;
+			}
+			long frameStart = scanner.unitStart;
+			scanner.commit();
+			result.records += samples;
+			++result.units;
+			if( ( index != null ) && ( samples > 0L ) )
+				index.add(
+						frameStart,
+						(int)( scanner.unitStart - frameStart ),
+						(int)samples,
+						minTimeStamp,
+						maxTimeStamp );
+		}
+	}
+
+// Adds an entry for the records of a journal block at the buffer position;
+// the records must have been checked to fill the payload
+	private static void indexRecords(
+			ByteBuffer buffer,
+			int payloadLength,
+			int records,
+			long offset,
+			CaptureIndex index ) {
+		long minTimeStamp = Long.MAX_VALUE;
+		long maxTimeStamp = Long.MIN_VALUE;
+		int position = buffer.position();
+		int end = position + payloadLength;
+		while( position < end ) {
+			long timeStamp = buffer.getLong( position + 1 );
+			minTimeStamp = Math.min( minTimeStamp, timeStamp );
+			maxTimeStamp = Math.max( maxTimeStamp, timeStamp );
+			position += CaptureFormat.getRecordSize( buffer.get( position ) & 0xFF );
+		}
+		if( records > 0 )
+			index.add( offset, payloadLength, records, minTimeStamp, maxTimeStamp );
+	}
+
+/**
+ * Outcome of a recovery. Units are journal blocks, compressed frames or,
+ * in a plain capture, single records.
+ */
+	public static class Result {
+		public int getFormat() {
+			return format;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+
+		public long getUnits() {
+			return units;
+		}
+
+		public long getOriginalLength() {
+			return originalLength;
+		}
+
+		public long getValidLength() {
+			return validLength;
+		}
+
+		public long getTornBytes() {
+			return originalLength - validLength;
+		}
+
+		public boolean isTruncated() {
+			return truncated;
+		}
+
+		public String toString() {
+			return FORMAT_NAMES[format]+
+					" capture, "+
+					records+
+					" records in "+
+					units+
+					" units survived, "+
+					getTornBytes()+
+					" torn bytes"+
+					( truncated ? " truncated" : "" );
+		}
+
+		int format;
+		long records = 0L;
+		long units = 0L;
+		long originalLength;
+		long validLength;
+		boolean truncated = false;
+	}
+
+// Sequential reader that remembers where the current unit started
+	static class Scanner {
+		Scanner( FileChannel channel, long start ) throws IOException {
+			this.channel = channel;
+			channel.position( start );
+			unitStart = start;
+			buffer = ByteBuffer.allocate( SCAN_BUFFER_SIZE );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			buffer.limit( 0 );
+		}
+
+// Returns false without reading if the file ends before needed bytes
+		boolean fill( int needed ) throws IOException {
+			if( buffer.remaining() >= needed )
+				return true;
+			if( needed - buffer.remaining() > channel.size() - channel.position() )
+				return false;
+			if( needed > buffer.capacity() ) {
+				ByteBuffer larger = ByteBuffer.allocate( needed );
+				larger.order( ByteOrder.LITTLE_ENDIAN );
+				larger.put( buffer );
+				larger.flip();
+				buffer = larger;
+			}
+			buffer.compact();
+			while( buffer.position() < needed ) {
+				if( channel.read( buffer ) < 0 ) {
+					buffer.flip();
+					return false;
+				}
+			}
+			buffer.flip();
+			return true;
+		}
+
+		void skip( int n ) {
+			buffer.position( buffer.position() + n );
+		}
+
+// Marks everything read so far as belonging to intact units
+		void commit() throws IOException {
+			unitStart = channel.position() - buffer.remaining();
+		}
+
+		final FileChannel channel;
+		ByteBuffer buffer;
+		long unitStart;
+	}
+}
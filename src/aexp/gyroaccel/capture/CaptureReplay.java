@@ -0,0 +1,279 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+
+import aexp.gyroaccel.engine.FusionEngine;
+import aexp.gyroaccel.engine.FusionListener;
+
+/**
+ * Replays the sensor records of a capture through the calibration and
+ * measuring logic on a plain JVM, as fast as the CPU allows. The engine
+ * sees the recorded timestamps only, wall-clock pacing is ignored. The
+ * derived records are produced the way SamplingService produces them
+ * while capturing: the calibration, then a vecdiff and rotateddiff record
+ * for every accelerometer sample in measuring state and a simul record
+ * whenever a gyroscope sample moves the gravity estimate past the diff
+ * limit. Derived records of the input are skipped, and so are records
+ * without a sensor channel.
+ */
+public class CaptureReplay {
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+	public static final String CSV_SUFFIX = ".csv";
+
+	public static void main( String args[] ) throws IOException {
+		if( ( args.length < 1 ) || ( args.length > 2 ) ) {
+			System.err.println( "Usage: CaptureReplay <capture> [<output.bin>|<output.csv>]" );
+			System.exit( 1 );
+		}
+		CaptureSource source = CaptureFiles.openSource( new File( args[0] ) );
+		CaptureSink output = null;
+		Result result;
+		try {
+			if( args.length == 2 )
+				output = openOutput( new File( args[1] ), source.getHeader() );
+			result = new CaptureReplay( output, true ).replay( source );
+		} finally {
+			if( output != null )
+				output.close();
+			source.close();
+		}
+		System.out.println( result );
+	}
+
+/**
+ * Opens a CSV output if the file name ends with CSV_SUFFIX, a binary
+ * capture carrying the sensor information of header otherwise.
+ */
+	public static CaptureSink openOutput( File file, CaptureHeader header ) throws IOException {
+		if( file.getName().endsWith( CSV_SUFFIX ) )
+			return new CsvCaptureWriter( file );
+		SensorInfo accelInfo = header == null ? null : header.getAccelInfo();
+		SensorInfo gyroInfo = header == null ? null : header.getGyroInfo();
+		return new CaptureWriter( file, accelInfo, gyroInfo );
+	}
+
+/**
+ * Derived records go to output, which may be null if only the counts and
+ * the throughput are of interest. If includeRaw is set the sensor records
+ * are copied to output as well, each ahead of the records it produces.
+ */
+	public CaptureReplay( CaptureSink output, boolean includeRaw ) {
+		this( output, includeRaw, DEFAULT_BLOCK_SIZE );
+	}
+
+	public CaptureReplay( CaptureSink output, boolean includeRaw, int blockSize ) {
+		this.output = output;
+		this.includeRaw = includeRaw && ( output != null );
+		engine = new FusionEngine( replayListener );
+		timeStamps = new long[blockSize];
+		sensorTypes = new byte[blockSize];
+		xs = new float[blockSize];
+		ys = new float[blockSize];
+		zs = new float[blockSize];
+	}
+
+	public FusionEngine getEngine() {
+		return engine;
+	}
+
+/**
+ * Replays the remaining records of the source from a freshly reset engine.
+ */
+	public Result replay( CaptureSource source ) throws IOException {
+		result = new Result();
+		error = null;
+		engine.reset();
+		long start = System.nanoTime();
+		int count = 0;
+		while( source.next() ) {
+			int channel = source.getChannel();
+			if( !CaptureFormat.isRawChannel( channel ) ) {
+				++result.skipped;
+				continue;
+			}
+			float v[] = source.getRawValues();
+			timeStamps[count] = source.getTimeStamp();
+			sensorTypes[count] = (byte)CaptureFormat.sensorTypeOfChannel( channel );
+			xs[count] = v[FusionEngine.IDX_X];
+			ys[count] = v[FusionEngine.IDX_Y];
+			zs[count] = v[FusionEngine.IDX_Z];
+			if( channel == CaptureFormat.CHANNEL_ACCEL )
+				++result.accelSamples;
+			else
+				++result.gyroSamples;
+			if( ++count == timeStamps.length ) {
+				processBlock( count );
+				count = 0;
+			}
+		}
+		if( count > 0 )
+			processBlock( count );
+		if( output != null )
+			output.flush();
+		result.elapsedNanos = System.nanoTime() - start;
+		result.finalState = engine.getState();
+		return result;
+	}
+
+	private void processBlock( int count ) throws IOException {
+		if( !includeRaw )
+			engine.processBlock( timeStamps, sensorTypes, xs, ys, zs, 0, count );
+		else
+			for( int i = 0 ; i < count ; ++i ) {
+				output.writeRaw(
+						timeStamps[i],
+						CaptureFormat.channelOfSensorType( sensorTypes[i] ),
+						xs[i],
+						ys[i],
+						zs[i] );
+				engine.processBlock( timeStamps, sensorTypes, xs, ys, zs, i, 1 );
+			}
+// The listener cannot throw, it parks the first output failure instead
+		if( error != null )
+			throw error;
+	}
+
+	private void writeDerived( long timeStamp, int channel, double v[] ) {
+		if( ( output == null ) || ( error != null ) )
+			return;
+		try {
+			output.writeDerived( timeStamp, channel, v );
+		} catch( IOException ex ) {
+			error = ex;
+		}
+	}
+
+	public static class Result {
+		public long getSamples() {
+			return accelSamples + gyroSamples;
+		}
+
+		public long getAccelSamples() {
+			return accelSamples;
+		}
+
+		public long getGyroSamples() {
+			return gyroSamples;
+		}
+
+		public long getSkipped() {
+			return skipped;
+		}
+
+		public boolean isCalibrated() {
+			return calibrated;
+		}
+
+		public double[] getCalibratedGravity() {
+			return calibratedGravity;
+		}
+
+		public double getCalibratedGravityLen() {
+			return calibratedGravityLen;
+		}
+
+		public long getDiffs() {
+			return diffs;
+		}
+
+		public long getSimulatedGravities() {
+			return simulatedGravities;
+		}
+
+		public int getFinalState() {
+			return finalState;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public double getSamplesPerSecond() {
+			if( elapsedNanos <= 0L )
+				return 0.0;
+			return getSamples() * 1e9 / elapsedNanos;
+		}
+
+		public String toString() {
+			return getSamples()+
+					" samples ("+
+					accelSamples+
+					" accel, "+
+					gyroSamples+
+					" gyro) replayed in "+
+					( elapsedNanos / 1000000L )+
+					" ms, "+
+					(long)getSamplesPerSecond()+
+					" samples/s; "+
+					( calibrated ? "calibrated, " : "not calibrated, " )+
+					diffs+
+					" diffs, "+
+					simulatedGravities+
+					" simulated gravities, final state "+
+					FusionEngine.getStateName( finalState );
+		}
+
+		long accelSamples = 0L;
+		long gyroSamples = 0L;
+		long skipped = 0L;
+		boolean calibrated = false;
+		final double calibratedGravity[] = new double[3];
+		double calibratedGravityLen;
+		long diffs = 0L;
+		long simulatedGravities = 0L;
+		int finalState;
+		long elapsedNanos;
+	}
+
+// Mirrors the capture side of the SamplingService listener
+	private final FusionListener replayListener = new FusionListener() {
+		public void stateChanged( int oldState, int newState, int sampleCounter ) {
+		}
+
+		public void sampleCounter( int sampleCounter ) {
+		}
+
+		public void calibratingLimitExtended( int calibratingLimit ) {
+		}
+
+		public void calibrated( double gravity[], double gravityLen ) {
+			result.calibrated = true;
+			System.arraycopy( gravity, 0, result.calibratedGravity, 0, 3 );
+			result.calibratedGravityLen = gravityLen;
+			if( ( output == null ) || ( error != null ) )
+				return;
+			try {
+				output.writeCalibration( gravity, gravityLen );
+			} catch( IOException ex ) {
+				error = ex;
+			}
+		}
+
+		public boolean diffRequested( long timeStamp ) {
+			return true;
+		}
+
+		public void diff( long timeStamp, double diff[], double rotatedDiff[] ) {
+			++result.diffs;
+			writeDerived( timeStamp, CaptureFormat.CHANNEL_VECDIFF, diff );
+			writeDerived( timeStamp, CaptureFormat.CHANNEL_ROTATEDDIFF, rotatedDiff );
+		}
+
+		public void simulatedGravity( long timeStamp, double gravity[] ) {
+			++result.simulatedGravities;
+			writeDerived( timeStamp, CaptureFormat.CHANNEL_SIMUL, gravity );
+		}
+	};
+
+	private final CaptureSink output;
+	private final boolean includeRaw;
+	private final FusionEngine engine;
+	private final long timeStamps[];
+	private final byte sensorTypes[];
+	private final float xs[];
+	private final float ys[];
+	private final float zs[];
+	private Result result;
+	private IOException error;
+}
@@ -0,0 +1,21 @@
+package aexp.gyroaccel.capture;
+
+import java.io.IOException;
+
+/**
+ * Destination of a capture session. Channels are the CaptureFormat
+ * CHANNEL_ constants.
+ */
+public interface CaptureSink {
+	void writeRaw( long timeStamp, int channel, float x, float y, float z ) throws IOException;
+	void writeDerived( long timeStamp, int channel, double v[] ) throws IOException;
+	void writeCalibration( double gravity[], double gravityLen ) throws IOException;
+	void flush() throws IOException;
+	void close() throws IOException;
+	long getRecordCount();
+
+/**
+ * Returns the size of the capture file including data still buffered.
+ */
+	long getBytesWritten();
+}
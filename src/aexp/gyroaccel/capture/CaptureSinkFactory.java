@@ -0,0 +1,11 @@
+package aexp.gyroaccel.capture;
+
+import java.io.IOException;
+
+/**
+ * Creates the capture files of a session; <code>sequence</code> counts the
+ * files from 0 as the capture is rotated.
+ */
+public interface CaptureSinkFactory {
+	CaptureSink create( int sequence ) throws IOException;
+}
@@ -0,0 +1,29 @@
+package aexp.gyroaccel.capture;
+
+import java.io.IOException;
+
+/**
+ * Sequential access to the records of a capture. The value arrays are
+ * owned by the source and overwritten by next().
+ */
+public interface CaptureSource {
+/**
+ * Returns the capture header, or null for CSV captures which have none.
+ */
+	CaptureHeader getHeader();
+
+/**
+ * Advances to the next record. Returns false at the end of the capture.
+ */
+	boolean next() throws IOException;
+	int getChannel();
+	long getTimeStamp();
+
+/**
+ * Values of the current record. For raw channels these are the recorded
+ * floats widened to double; getRawValues() returns them unwidened.
+ */
+	double[] getValues();
+	float[] getRawValues();
+	void close() throws IOException;
+}
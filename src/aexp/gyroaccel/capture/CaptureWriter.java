@@ -0,0 +1,221 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Appends fixed-width binary records to a capture file through a direct
+ * buffer, see CaptureFormat for the layout. Writing a record does not
+ * allocate; the buffer goes to the file channel when it is full, on
+ * flush() and on close(). Not thread safe.
+ * <p>
+ * A journaled writer stores every buffer as a checksummed journal block
+ * so that CaptureRecovery can cut a capture back to its last complete
+ * block after a crash. The file is synced group-commit style: a drain
+ * forces the channel if the sync interval has passed since the last
+ * force, so there is at most one sync per block and none per record.
+ * <p>
+ * Every drained buffer becomes an entry of the CaptureIndex that is
+ * stored next to the capture on close.
+ */
+public class CaptureWriter implements CaptureSink {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	public static final long DEFAULT_SYNC_INTERVAL = 1000L;
+
+	public CaptureWriter( File file, SensorInfo accelInfo, SensorInfo gyroInfo ) throws IOException {
+		this( file, accelInfo, gyroInfo, DEFAULT_BUFFER_SIZE, false, 0L );
+	}
+
+/**
+ * Creates a journaled writer that syncs at most every
+ * <code>syncIntervalMillis</code>; 0 syncs every block.
+ */
+	public CaptureWriter(
+			File file,
+			SensorInfo accelInfo,
+			SensorInfo gyroInfo,
+			long syncIntervalMillis ) throws IOException {
+		this( file, accelInfo, gyroInfo, DEFAULT_BUFFER_SIZE, true, syncIntervalMillis );
+	}
+
+	public CaptureWriter(
+			File file,
+			SensorInfo accelInfo,
+			SensorInfo gyroInfo,
+			int bufferSize,
+			boolean journaled,
+			long syncIntervalMillis ) throws IOException {
+		if( journaled && ( bufferSize - CaptureFormat.JOURNAL_HEADER_SIZE > CaptureFormat.MAX_BLOCK_LENGTH ) )
+			throw new IllegalArgumentException( "Journal buffer too large: "+bufferSize );
+		this.file = file;
+		this.journaled = journaled;
+		this.syncIntervalMillis = syncIntervalMillis;
+		flags = journaled ? CaptureFormat.FLAG_JOURNALED : 0;
+		raf = new RandomAccessFile( file, "rw" );
+		raf.setLength( 0L );
+		channel = raf.getChannel();
+		ByteBuffer header = CaptureFormat.newHeader( accelInfo, gyroInfo, flags );
+		while( header.hasRemaining() )
+			channel.write( header );
+// The checksum is computed over the backing array
+		if( journaled ) {
+			buffer = ByteBuffer.allocate( bufferSize );
+			crc = new CRC32();
+		} else {
+			buffer = ByteBuffer.allocateDirect( bufferSize );
+			crc = null;
+		}
+		buffer.order( ByteOrder.LITTLE_ENDIAN );
+		startBlock();
+		calibration = ByteBuffer.allocate( 4 + 4*8 );
+		if( journaled )
+			sync();
+	}
+
+	public void writeRaw( long timeStamp, int channel, float x, float y, float z ) throws IOException {
+		if( buffer.remaining() < CaptureFormat.RAW_RECORD_SIZE )
+			drain();
+		buffer.put( (byte)channel );
+		buffer.putLong( timeStamp );
+		if( timeStamp < blockMinTimeStamp )
+			blockMinTimeStamp = timeStamp;
+		if( timeStamp > blockMaxTimeStamp )
+			blockMaxTimeStamp = timeStamp;
+		buffer.putFloat( x );
+		buffer.putFloat( y );
+		buffer.putFloat( z );
+		++recordCount;
+	}
+
+	public void writeDerived( long timeStamp, int channel, double v[] ) throws IOException {
+		if( buffer.remaining() < CaptureFormat.DERIVED_RECORD_SIZE )
+			drain();
+		buffer.put( (byte)channel );
+		buffer.putLong( timeStamp );
+		if( timeStamp < blockMinTimeStamp )
+			blockMinTimeStamp = timeStamp;
+		if( timeStamp > blockMaxTimeStamp )
+			blockMaxTimeStamp = timeStamp;
+		buffer.putDouble( v[0] );
+		buffer.putDouble( v[1] );
+		buffer.putDouble( v[2] );
+		++recordCount;
+	}
+
+/**
+ * Stores the calibrated gravity in the header. The records written so far
+ * are not affected.
+ */
+	public void writeCalibration( double gravity[], double gravityLen ) throws IOException {
+		CaptureHeader.writeCalibration( channel, calibration, flags, gravity, gravityLen );
+	}
+
+	public void flush() throws IOException {
+		drain();
+	}
+
+	public void close() throws IOException {
+		try {
+			drain();
+			if( journaled )
+				sync();
+		} finally {
+			raf.close();
+		}
+		index.write( CaptureIndex.getIndexFile( file ), bytesDrained );
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public long getBytesWritten() {
+		int pending = buffer.position();
+		if( journaled && ( pending == CaptureFormat.JOURNAL_HEADER_SIZE ) )
+			pending = 0;
+		return bytesDrained + pending;
+	}
+
+	public CaptureIndex getIndex() {
+		return index;
+	}
+
+	public boolean isJournaled() {
+		return journaled;
+	}
+
+/**
+ * Returns the number of records that are known to be on stable storage.
+ */
+	public long getSyncedRecordCount() {
+		return syncedRecordCount;
+	}
+
+	private void startBlock() {
+		buffer.clear();
+		if( journaled )
+			buffer.position( CaptureFormat.JOURNAL_HEADER_SIZE );
+		blockStartCount = recordCount;
+		blockMinTimeStamp = Long.MAX_VALUE;
+		blockMaxTimeStamp = Long.MIN_VALUE;
+	}
+
+	private void drain() throws IOException {
+		int records = (int)( recordCount - blockStartCount );
+		if( records == 0 )
+			return;
+		int recordsOffset = 0;
+		if( journaled ) {
+			int payloadLength = buffer.position() - CaptureFormat.JOURNAL_HEADER_SIZE;
+			recordsOffset = CaptureFormat.JOURNAL_HEADER_SIZE;
+			CaptureFormat.startJournalChecksum( crc, payloadLength, records );
+			crc.update( buffer.array(), CaptureFormat.JOURNAL_HEADER_SIZE, payloadLength );
+			buffer.put( 0, (byte)CaptureFormat.JOURNAL_MARKER );
+			buffer.putInt( 1, payloadLength );
+			buffer.putInt( 5, records );
+			buffer.putInt( 9, (int)crc.getValue() );
+		}
+		index.add(
+				bytesDrained + recordsOffset,
+				buffer.position() - recordsOffset,
+				records,
+				blockMinTimeStamp,
+				blockMaxTimeStamp );
+		buffer.flip();
+		bytesDrained += buffer.remaining();
+		while( buffer.hasRemaining() )
+			channel.write( buffer );
+		startBlock();
+		if( journaled && ( System.currentTimeMillis() - lastSync >= syncIntervalMillis ) )
+			sync();
+	}
+
+	private void sync() throws IOException {
+		channel.force( false );
+		lastSync = System.currentTimeMillis();
+		syncedRecordCount = recordCount;
+	}
+
+	private final File file;
+	private final boolean journaled;
+	private final long syncIntervalMillis;
+	private final int flags;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final ByteBuffer calibration;
+	private final CRC32 crc;
+	private final CaptureIndex index = new CaptureIndex();
+	private long recordCount = 0L;
+	private long blockStartCount = 0L;
+	private long blockMinTimeStamp;
+	private long blockMaxTimeStamp;
+	private long syncedRecordCount = 0L;
+	private long lastSync = 0L;
+	private long bytesDrained = CaptureFormat.HEADER_SIZE;
+}
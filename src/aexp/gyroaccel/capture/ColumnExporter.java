@@ -0,0 +1,215 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Exports a capture into a directory of column files, one file per
+ * channel and field: &lt;channel&gt;.t holds the timestamps as longs,
+ * &lt;channel&gt;.x, .y and .z the values as floats for the sensor
+ * channels and as doubles for the derived channels, all little endian
+ * without any header. The manifest, written last, lists the exported
+ * channels with their sample counts together with the sensor names and
+ * the calibration, see ColumnStore for reading it back.
+ */
+public class ColumnExporter {
+	public static final String MANIFEST_NAME = "manifest.properties";
+	public static final int MANIFEST_VERSION = 1;
+	public static final String SUFFIX_TIMESTAMP = ".t";
+	public static final String SUFFIXES_AXIS[] = { ".x", ".y", ".z" };
+	static final int COLUMN_BUFFER_SIZE = 16 * 1024;
+
+	public static void main( String args[] ) throws IOException {
+		if( args.length != 2 ) {
+			System.err.println( "Usage: ColumnExporter <capture.bin> <directory>" );
+			System.exit( 1 );
+		}
+		long records = export( new File( args[0] ), new File( args[1] ) );
+		System.out.println( "Exported "+records+" records" );
+	}
+
+	public static long export( File captureFile, File directory ) throws IOException {
+		CaptureSource source = CaptureFiles.openSource( captureFile );
+		try {
+			return export( source, directory );
+		} finally {
+			source.close();
+		}
+	}
+
+/**
+ * Exports the remaining records of the source. Returns the number of
+ * records exported.
+ */
+	public static long export( CaptureSource source, File directory ) throws IOException {
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Cannot create "+directory );
+		File manifestFile = new File( directory, MANIFEST_NAME );
+		manifestFile.delete();
+		ChannelColumns columns[] = new ChannelColumns[CaptureFormat.CHANNEL_COUNT];
+		long records = 0L;
+		try {
+			while( source.next() ) {
+				int channel = source.getChannel();
+				if( !CaptureFormat.isValidChannel( channel ) )
+					continue;
+				ChannelColumns c = columns[channel];
+				if( c == null ) {
+					c = new ChannelColumns( directory, channel );
+					columns[channel] = c;
+				}
+				if( CaptureFormat.hasRawLayout( channel ) )
+					c.add( source.getTimeStamp(), source.getRawValues() );
+				else
+					c.add( source.getTimeStamp(), source.getValues() );
+				++records;
+			}
+		} finally {
+			for( int i = 0 ; i < CaptureFormat.CHANNEL_COUNT ; ++i )
+				if( columns[i] != null )
+					columns[i].close();
+		}
+		writeManifest( manifestFile, source.getHeader(), columns );
+		return records;
+	}
+
+	public static String getColumnName( int channel, int axis ) {
+		return CaptureFormat.getChannelName( channel )+
+				( axis < 0 ? SUFFIX_TIMESTAMP : SUFFIXES_AXIS[axis] );
+	}
+
+	private static void writeManifest(
+			File manifestFile,
+			CaptureHeader header,
+			ChannelColumns columns[] ) throws IOException {
+		Properties manifest = new Properties();
+		manifest.setProperty( "version", Integer.toString( MANIFEST_VERSION ) );
+		StringBuilder channels = new StringBuilder();
+		for( int i = 0 ; i < CaptureFormat.CHANNEL_COUNT ; ++i ) {
+			if( columns[i] == null )
+				continue;
+			String name = CaptureFormat.getChannelName( i );
+			if( channels.length() > 0 )
+				channels.append( ',' );
+			channels.append( name );
+			manifest.setProperty( name+".count", Long.toString( columns[i].count ) );
+			manifest.setProperty(
+					name+".type",
+					CaptureFormat.hasRawLayout( i ) ? ColumnStore.TYPE_FLOAT : ColumnStore.TYPE_DOUBLE );
+		}
+		manifest.setProperty( "channels", channels.toString() );
+		if( header == null ) {
+// CSV captures carry neither sensor information nor a calibration
+			manifest.setProperty( "calibrated", Boolean.FALSE.toString() );
+			store( manifestFile, manifest );
+			return;
+		}
+		putSensorInfo( manifest, "accel", header.getAccelInfo() );
+		putSensorInfo( manifest, "gyro", header.getGyroInfo() );
+		manifest.setProperty( "calibrated", Boolean.toString( header.isCalibrated() ) );
+		if( header.isCalibrated() ) {
+			double gravity[] = header.getCalibratedGravity();
+			manifest.setProperty( "gravity.x", Double.toString( gravity[0] ) );
+			manifest.setProperty( "gravity.y", Double.toString( gravity[1] ) );
+			manifest.setProperty( "gravity.z", Double.toString( gravity[2] ) );
+			manifest.setProperty( "gravity.length", Double.toString( header.getCalibratedGravityLen() ) );
+		}
+		store( manifestFile, manifest );
+	}
+
+	private static void store( File manifestFile, Properties manifest ) throws IOException {
+		OutputStream out = new FileOutputStream( manifestFile );
+		try {
+			manifest.store( out, "Column export of a sensor capture" );
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void putSensorInfo( Properties manifest, String prefix, SensorInfo info ) {
+		if( info == null )
+			return;
+		if( info.getName() != null )
+			manifest.setProperty( prefix+".name", info.getName() );
+		if( info.getVendor() != null )
+			manifest.setProperty( prefix+".vendor", info.getVendor() );
+		manifest.setProperty( prefix+".resolution", Float.toString( info.getResolution() ) );
+		manifest.setProperty( prefix+".maximumRange", Float.toString( info.getMaximumRange() ) );
+		manifest.setProperty( prefix+".minDelay", Integer.toString( info.getMinDelay() ) );
+	}
+
+// The four column files of one channel
+	static class ChannelColumns {
+		ChannelColumns( File directory, int channel ) throws IOException {
+			timeStamps = new Column( new File( directory, getColumnName( channel, -1 ) ) );
+			for( int i = 0 ; i < 3 ; ++i )
+				axes[i] = new Column( new File( directory, getColumnName( channel, i ) ) );
+		}
+
+		void add( long timeStamp, float v[] ) throws IOException {
+			timeStamps.reserve( 8 ).putLong( timeStamp );
+			for( int i = 0 ; i < 3 ; ++i )
+				axes[i].reserve( 4 ).putFloat( v[i] );
+			++count;
+		}
+
+		void add( long timeStamp, double v[] ) throws IOException {
+			timeStamps.reserve( 8 ).putLong( timeStamp );
+			for( int i = 0 ; i < 3 ; ++i )
+				axes[i].reserve( 8 ).putDouble( v[i] );
+			++count;
+		}
+
+		void close() throws IOException {
+			timeStamps.close();
+			for( int i = 0 ; i < 3 ; ++i )
+				axes[i].close();
+		}
+
+		final Column timeStamps;
+		final Column axes[] = new Column[3];
+		long count = 0L;
+	}
+
+	static class Column {
+		Column( File file ) throws IOException {
+			raf = new RandomAccessFile( file, "rw" );
+			raf.setLength( 0L );
+			channel = raf.getChannel();
+			buffer = ByteBuffer.allocateDirect( COLUMN_BUFFER_SIZE );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+		}
+
+		ByteBuffer reserve( int size ) throws IOException {
+			if( buffer.remaining() < size )
+				drain();
+			return buffer;
+		}
+
+		void close() throws IOException {
+			try {
+				drain();
+			} finally {
+				raf.close();
+			}
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			while( buffer.hasRemaining() )
+				channel.write( buffer );
+			buffer.clear();
+		}
+
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+	}
+}
@@ -0,0 +1,124 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Reads a directory written by ColumnExporter. Columns are memory mapped
+ * on request and returned as typed views, so a scan over one axis of one
+ * channel only touches that column file. A column is limited to 2 GB.
+ */
+public class ColumnStore {
+	public static final String TYPE_FLOAT = "float";
+	public static final String TYPE_DOUBLE = "double";
+	public static final int AXIS_X = 0;
+	public static final int AXIS_Y = 1;
+	public static final int AXIS_Z = 2;
+
+	public ColumnStore( File directory ) throws IOException {
+		this.directory = directory;
+		manifest = new Properties();
+		InputStream in = new FileInputStream( new File( directory, ColumnExporter.MANIFEST_NAME ) );
+		try {
+			manifest.load( in );
+		} finally {
+			in.close();
+		}
+		int version = Integer.parseInt( manifest.getProperty( "version", "0" ) );
+		if( version != ColumnExporter.MANIFEST_VERSION )
+			throw new IOException( "Unsupported column export version "+version );
+	}
+
+	public boolean hasChannel( int channel ) {
+		return getCount( channel ) > 0;
+	}
+
+	public int getCount( int channel ) {
+		String count = manifest.getProperty( CaptureFormat.getChannelName( channel )+".count" );
+		return count == null ? 0 : Integer.parseInt( count );
+	}
+
+/**
+ * Returns true if the values of the channel are stored as doubles.
+ */
+	public boolean isDoubleChannel( int channel ) {
+		return TYPE_DOUBLE.equals( manifest.getProperty( CaptureFormat.getChannelName( channel )+".type" ) );
+	}
+
+	public LongBuffer mapTimeStamps( int channel ) throws IOException {
+		return map( channel, -1, 8 ).asLongBuffer();
+	}
+
+	public FloatBuffer mapFloats( int channel, int axis ) throws IOException {
+		if( isDoubleChannel( channel ) )
+			throw new IOException( CaptureFormat.getChannelName( channel )+" is stored as doubles" );
+		return map( channel, axis, 4 ).asFloatBuffer();
+	}
+
+	public DoubleBuffer mapDoubles( int channel, int axis ) throws IOException {
+		if( !isDoubleChannel( channel ) )
+			throw new IOException( CaptureFormat.getChannelName( channel )+" is stored as floats" );
+		return map( channel, axis, 8 ).asDoubleBuffer();
+	}
+
+	public String getSensorName( int channel ) {
+		return manifest.getProperty( CaptureFormat.getChannelName( channel )+".name" );
+	}
+
+	public String getSensorVendor( int channel ) {
+		return manifest.getProperty( CaptureFormat.getChannelName( channel )+".vendor" );
+	}
+
+	public boolean isCalibrated() {
+		return Boolean.parseBoolean( manifest.getProperty( "calibrated" ) );
+	}
+
+/**
+ * Returns the calibrated gravity x, y, z and length, or null if the
+ * capture was not calibrated.
+ */
+	public double[] getCalibration() {
+		if( !isCalibrated() )
+			return null;
+		return new double[] {
+			Double.parseDouble( manifest.getProperty( "gravity.x" ) ),
+			Double.parseDouble( manifest.getProperty( "gravity.y" ) ),
+			Double.parseDouble( manifest.getProperty( "gravity.z" ) ),
+			Double.parseDouble( manifest.getProperty( "gravity.length" ) )
+		};
+	}
+
+	public Properties getManifest() {
+		return manifest;
+	}
+
+	private ByteBuffer map( int channel, int axis, int width ) throws IOException {
+		File file = new File( directory, ColumnExporter.getColumnName( channel, axis ) );
+		long length = (long)getCount( channel ) * width;
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			FileChannel fc = raf.getChannel();
+			if( fc.size() < length )
+				throw new IOException( "Column "+file+" is shorter than the manifest says" );
+			ByteBuffer buffer = fc.map( FileChannel.MapMode.READ_ONLY, 0L, length );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			return buffer;
+		} finally {
+// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	private final File directory;
+	private final Properties manifest;
+}
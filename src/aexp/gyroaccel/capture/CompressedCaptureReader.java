@@ -0,0 +1,180 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the samples of a compressed capture. The per-sensor blocks of a
+ * frame are decoded side by side and merged by timestamp, so samples come
+ * out in time order across sensors and in recorded order within a sensor.
+ * A truncated frame at the end of the file ends the capture.
+ */
+public class CompressedCaptureReader implements CaptureSource {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	static final int RAW_CHANNELS = CompressedCaptureWriter.RAW_CHANNELS;
+
+	public CompressedCaptureReader( File file ) throws IOException {
+		raf = new RandomAccessFile( file, "r" );
+		channel = raf.getChannel();
+		try {
+			header = CaptureHeader.read( channel );
+			if( !header.isCompressed() )
+				throw new IOException( "Not a compressed capture, use CaptureReader: "+file );
+		} catch( IOException ex ) {
+			raf.close();
+			throw ex;
+		}
+		channel.position( header.getHeaderSize() );
+		buffer = ByteBuffer.allocateDirect( DEFAULT_BUFFER_SIZE );
+		buffer.order( ByteOrder.LITTLE_ENDIAN );
+		buffer.limit( 0 );
+		for( int i = 0 ; i < RAW_CHANNELS ; ++i ) {
+			decoders[i] = new SampleBlockDecoder();
+			blockData[i] = new byte[0];
+		}
+	}
+
+	public CaptureHeader getHeader() {
+		return header;
+	}
+
+	public boolean next() throws IOException {
+		int selected = selectPending();
+		if( selected < 0 ) {
+			if( !readFrame() )
+				return false;
+			selected = selectPending();
+			if( selected < 0 )
+				return false;
+		}
+		SampleBlockDecoder decoder = decoders[selected];
+		float v[] = decoder.getValues();
+		recordChannel = selected;
+		timeStamp = decoder.getTimeStamp();
+		rawValues[0] = v[0];
+		rawValues[1] = v[1];
+		rawValues[2] = v[2];
+		values[0] = v[0];
+		values[1] = v[1];
+		values[2] = v[2];
+		advance( selected );
+		return true;
+	}
+
+	public int getChannel() {
+		return recordChannel;
+	}
+
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+
+	public float[] getRawValues() {
+		return rawValues;
+	}
+
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private int selectPending() {
+		int selected = -1;
+		long minTimeStamp = 0L;
+		for( int i = 0 ; i < RAW_CHANNELS ; ++i ) {
+			if( !pending[i] )
+				continue;
+			long ts = decoders[i].getTimeStamp();
+			if( ( selected < 0 ) || ( ts < minTimeStamp ) ) {
+				selected = i;
+				minTimeStamp = ts;
+			}
+		}
+		return selected;
+	}
+
+	private void advance( int ch ) {
+		SampleBlockDecoder decoder = decoders[ch];
+		if( decoder.hasNext() ) {
+			decoder.next();
+			pending[ch] = true;
+		} else
+			pending[ch] = false;
+	}
+
+	private boolean readFrame() throws IOException {
+		if( !fill( CaptureFormat.FRAME_HEADER_SIZE ) )
+			return false;
+		int marker = buffer.get() & 0xFF;
+		if( marker != CaptureFormat.FRAME_MARKER )
+			throw new IOException( "Corrupt capture: bad frame marker "+marker );
+		int blocks = buffer.get() & 0xFF;
+		for( int b = 0 ; b < blocks ; ++b ) {
+			if( !fill( CaptureFormat.BLOCK_HEADER_SIZE ) )
+				return false;
+			int ch = buffer.get() & 0xFF;
+			int count = buffer.getInt();
+			int length = buffer.getInt();
+			if( ( ch >= RAW_CHANNELS ) ||
+				( count < 0 ) ||
+				( length < 0 ) ||
+				( length > CaptureFormat.MAX_BLOCK_LENGTH ) )
+				throw new IOException( "Corrupt capture: bad block header" );
+// Block data past the end of the file is a torn tail
+			if( length > buffer.remaining() + channel.size() - channel.position() )
+				return false;
+			if( blockData[ch].length < length )
+				blockData[ch] = new byte[length];
+			if( !readFully( blockData[ch], length ) )
+				return false;
+			decoders[ch].init( blockData[ch], 0, length, count );
+			advance( ch );
+		}
+		return true;
+	}
+
+	private boolean readFully( byte dst[], int length ) throws IOException {
+		int done = 0;
+		while( done < length ) {
+			if( !buffer.hasRemaining() && !fill( 1 ) )
+				return false;
+			int n = Math.min( length - done, buffer.remaining() );
+			buffer.get( dst, done, n );
+			done += n;
+		}
+		return true;
+	}
+
+	private boolean fill( int needed ) throws IOException {
+		if( buffer.remaining() >= needed )
+			return true;
+		buffer.compact();
+		while( buffer.position() < needed ) {
+			if( channel.read( buffer ) < 0 ) {
+				buffer.flip();
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final CaptureHeader header;
+	private final SampleBlockDecoder decoders[] = new SampleBlockDecoder[RAW_CHANNELS];
+	private final byte blockData[][] = new byte[RAW_CHANNELS][];
+	private final boolean pending[] = new boolean[RAW_CHANNELS];
+	private final double values[] = new double[3];
+	private final float rawValues[] = new float[3];
+	private int recordChannel;
+	private long timeStamp;
+}
@@ -0,0 +1,154 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the raw sensor channels of a session into a compressed capture.
+ * Samples are collected per sensor in SampleBlockEncoders; when one of them
+ * fills up, the blocks of all sensors are written out together as a frame.
+ * Derived channels are not stored since replaying the raw channels through
+ * the engine reproduces them. Writing a sample does not allocate. Not
+ * thread safe. Every frame becomes an entry of the CaptureIndex that is
+ * stored next to the capture on close.
+ */
+public class CompressedCaptureWriter implements CaptureSink {
+	static final int RAW_CHANNELS = CaptureFormat.CHANNEL_GYRO + 1;
+
+	public CompressedCaptureWriter( File file, SensorInfo accelInfo, SensorInfo gyroInfo ) throws IOException {
+		this( file, accelInfo, gyroInfo, SampleBlockEncoder.DEFAULT_BLOCK_SAMPLES );
+	}
+
+	public CompressedCaptureWriter(
+			File file,
+			SensorInfo accelInfo,
+			SensorInfo gyroInfo,
+			int blockSamples ) throws IOException {
+		int maxBlockBytes = 0;
+		for( int i = 0 ; i < RAW_CHANNELS ; ++i ) {
+			encoders[i] = new SampleBlockEncoder( blockSamples );
+			maxBlockBytes = encoders[i].getData().length;
+		}
+		if( maxBlockBytes > CaptureFormat.MAX_BLOCK_LENGTH )
+			throw new IllegalArgumentException( "Block too large: "+blockSamples+" samples" );
+		this.file = file;
+		raf = new RandomAccessFile( file, "rw" );
+		raf.setLength( 0L );
+		channel = raf.getChannel();
+		ByteBuffer header = CaptureFormat.newHeader( accelInfo, gyroInfo, CaptureFormat.FLAG_COMPRESSED );
+		while( header.hasRemaining() )
+			channel.write( header );
+		frame = ByteBuffer.allocateDirect(
+				CaptureFormat.FRAME_HEADER_SIZE +
+				RAW_CHANNELS * ( CaptureFormat.BLOCK_HEADER_SIZE + maxBlockBytes ) );
+		frame.order( ByteOrder.LITTLE_ENDIAN );
+		calibration = ByteBuffer.allocate( 4 + 4*8 );
+	}
+
+	public void writeRaw( long timeStamp, int channel, float x, float y, float z ) throws IOException {
+		if( ( channel < 0 ) || ( channel >= RAW_CHANNELS ) )
+			return;
+		SampleBlockEncoder encoder = encoders[channel];
+		encoder.add( timeStamp, x, y, z );
+		++recordCount;
+		if( timeStamp < frameMinTimeStamp )
+			frameMinTimeStamp = timeStamp;
+		if( timeStamp > frameMaxTimeStamp )
+			frameMaxTimeStamp = timeStamp;
+		if( encoder.isFull() )
+			writeFrame();
+	}
+
+	public void writeDerived( long timeStamp, int channel, double v[] ) {
+	}
+
+	public void writeCalibration( double gravity[], double gravityLen ) throws IOException {
+		CaptureHeader.writeCalibration(
+				channel,
+				calibration,
+				CaptureFormat.FLAG_COMPRESSED,
+				gravity,
+				gravityLen );
+	}
+
+/**
+ * Writes the samples collected so far as a (possibly short) frame.
+ */
+	public void flush() throws IOException {
+		writeFrame();
+	}
+
+	public void close() throws IOException {
+		try {
+			writeFrame();
+		} finally {
+			raf.close();
+		}
+		index.write( CaptureIndex.getIndexFile( file ), bytesWritten );
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+/**
+ * Returns the size of the frames written so far; samples still collected
+ * in the encoders are not included.
+ */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public CaptureIndex getIndex() {
+		return index;
+	}
+
+	private void writeFrame() throws IOException {
+		int blocks = 0;
+		int samples = 0;
+		for( int i = 0 ; i < RAW_CHANNELS ; ++i )
+			if( encoders[i].getCount() > 0 ) {
+				++blocks;
+				samples += encoders[i].getCount();
+			}
+		if( blocks == 0 )
+			return;
+		frame.clear();
+		frame.put( (byte)CaptureFormat.FRAME_MARKER );
+		frame.put( (byte)blocks );
+		for( int i = 0 ; i < RAW_CHANNELS ; ++i ) {
+			SampleBlockEncoder encoder = encoders[i];
+			if( encoder.getCount() == 0 )
+				continue;
+			int length = encoder.getByteLength();
+			frame.put( (byte)i );
+			frame.putInt( encoder.getCount() );
+			frame.putInt( length );
+			frame.put( encoder.getData(), 0, length );
+			encoder.reset();
+		}
+		frame.flip();
+		index.add( bytesWritten, frame.remaining(), samples, frameMinTimeStamp, frameMaxTimeStamp );
+		frameMinTimeStamp = Long.MAX_VALUE;
+		frameMaxTimeStamp = Long.MIN_VALUE;
+		bytesWritten += frame.remaining();
+		while( frame.hasRemaining() )
+			channel.write( frame );
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final SampleBlockEncoder encoders[] = new SampleBlockEncoder[RAW_CHANNELS];
+	private final ByteBuffer frame;
+	private final ByteBuffer calibration;
+	private final CaptureIndex index = new CaptureIndex();
+	private long frameMinTimeStamp = Long.MAX_VALUE;
+	private long frameMaxTimeStamp = Long.MIN_VALUE;
+	private long recordCount = 0L;
+	private long bytesWritten = CaptureFormat.HEADER_SIZE;
+}
@@ -0,0 +1,100 @@
+package aexp.gyroaccel.capture;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Reads the CSV captures SamplingService wrote before the binary format,
+ * one "timestamp,channel,x,y,z" line per record. CSV captures have no
+ * header, getHeader() returns null. Lines that do not parse, such as a
+ * half-written last line, are skipped and counted.
+ */
+public class CsvCaptureReader implements CaptureSource {
+	static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	public CsvCaptureReader( File file ) throws IOException {
+		reader = new BufferedReader(
+				new InputStreamReader( new FileInputStream( file ), CaptureFormat.UTF8 ),
+				READ_BUFFER_SIZE );
+	}
+
+	public CaptureHeader getHeader() {
+		return null;
+	}
+
+	public boolean next() throws IOException {
+		String line;
+		while( ( line = reader.readLine() ) != null ) {
+			if( parse( line ) )
+				return true;
+			if( line.length() > 0 )
+				++skippedLines;
+		}
+		return false;
+	}
+
+	public int getChannel() {
+		return recordChannel;
+	}
+
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+
+	public float[] getRawValues() {
+		return rawValues;
+	}
+
+	public long getSkippedLines() {
+		return skippedLines;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private boolean parse( String line ) {
+		int c1 = line.indexOf( ',' );
+		int c2 = c1 < 0 ? -1 : line.indexOf( ',', c1 + 1 );
+		int c3 = c2 < 0 ? -1 : line.indexOf( ',', c2 + 1 );
+		int c4 = c3 < 0 ? -1 : line.indexOf( ',', c3 + 1 );
+		if( c4 < 0 )
+			return false;
+		int ch = CaptureFormat.getChannel( line.substring( c1 + 1, c2 ) );
+		if( ch < 0 )
+			return false;
+		try {
+			timeStamp = Long.parseLong( line.substring( 0, c1 ) );
+			if( CaptureFormat.hasRawLayout( ch ) ) {
+				rawValues[0] = Float.parseFloat( line.substring( c2 + 1, c3 ) );
+				rawValues[1] = Float.parseFloat( line.substring( c3 + 1, c4 ) );
+				rawValues[2] = Float.parseFloat( line.substring( c4 + 1 ) );
+				values[0] = rawValues[0];
+				values[1] = rawValues[1];
+				values[2] = rawValues[2];
+			} else {
+				values[0] = Double.parseDouble( line.substring( c2 + 1, c3 ) );
+				values[1] = Double.parseDouble( line.substring( c3 + 1, c4 ) );
+				values[2] = Double.parseDouble( line.substring( c4 + 1 ) );
+			}
+		} catch( NumberFormatException ex ) {
+			return false;
+		}
+		recordChannel = ch;
+		return true;
+	}
+
+	private final BufferedReader reader;
+	private final double values[] = new double[3];
+	private final float rawValues[] = new float[3];
+	private int recordChannel;
+	private long timeStamp;
+	private long skippedLines = 0L;
+}
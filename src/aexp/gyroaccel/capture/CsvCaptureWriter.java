@@ -0,0 +1,72 @@
+package aexp.gyroaccel.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes records in the CSV capture layout through CsvFormatter. The
+ * layout has no place for the calibration, writeCalibration() only
+ * remembers it.
+ */
+public class CsvCaptureWriter implements CaptureSink {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	public CsvCaptureWriter( File file ) throws IOException {
+		out = new BufferedOutputStream( new FileOutputStream( file, false ), DEFAULT_BUFFER_SIZE );
+	}
+
+	public void writeRaw( long timeStamp, int channel, float x, float y, float z ) throws IOException {
+		formatter.formatRaw( timeStamp, channel, x, y, z );
+		write();
+	}
+
+	public void writeDerived( long timeStamp, int channel, double v[] ) throws IOException {
+		formatter.formatDerived( timeStamp, channel, v );
+		write();
+	}
+
+	public void writeCalibration( double gravity[], double gravityLen ) {
+		System.arraycopy( gravity, 0, calibratedGravity, 0, 3 );
+		calibratedGravityLen = gravityLen;
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public double[] getCalibratedGravity() {
+		return calibratedGravity;
+	}
+
+	public double getCalibratedGravityLen() {
+		return calibratedGravityLen;
+	}
+
+	private void write() throws IOException {
+		formatter.writeTo( out );
+		bytesWritten += formatter.getLength();
+		++recordCount;
+	}
+
+	private final OutputStream out;
+	private final CsvFormatter formatter = new CsvFormatter();
+	private final double calibratedGravity[] = new double[3];
+	private double calibratedGravityLen;
+	private long recordCount = 0L;
+	private long bytesWritten = 0L;
+}
@@ -0,0 +1,658 @@
+package aexp.gyroaccel.capture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+
+/**
+ * Formats capture records as CSV lines ("timestamp,channel,x,y,z") into a
+ * reusable byte buffer. Numbers are converted without allocating: floats
+ * and doubles use the Ryu algorithm to find the shortest decimal that
+ * reads back as the same value and are laid out like Float.toString and
+ * Double.toString. Before Java 19, Float.toString prints some floats with
+ * more digits than needed: magnitudes of 2^25 and above, subnormals and
+ * some powers of two below 2^-26. These values, far outside any sensor
+ * range, go through Float.toString so that the output stays identical.
+ * Double.toString has the same flaw at scattered values of every range, so
+ * doubles are always written shortest; such a value reads back the same
+ * but may differ in the last digits from what Double.toString printed.
+ */
+public class CsvFormatter {
+	public static final int DEFAULT_CAPACITY = 256;
+	static final int FLOAT_MANTISSA_BITS = 23;
+	static final int FLOAT_EXPONENT_BITS = 8;
+	static final int FLOAT_BIAS = 127;
+	static final int SHORTEST_EXPONENT_MAX = FLOAT_BIAS + 24;
+	static final int SHORTEST_POWER_OF_TWO_MIN = FLOAT_BIAS - 26;
+	static final int POW5_INV_BITCOUNT = 59;
+	static final int POW5_BITCOUNT = 61;
+	static final int POW5_INV_TABLE_SIZE = 31;
+	static final int POW5_TABLE_SIZE = 48;
+	static final long POW5_INV_SPLIT[] = new long[POW5_INV_TABLE_SIZE];
+	static final long POW5_SPLIT[] = new long[POW5_TABLE_SIZE];
+	static final int DOUBLE_MANTISSA_BITS = 52;
+	static final int DOUBLE_EXPONENT_BITS = 11;
+	static final int DOUBLE_BIAS = 1023;
+// The double tables hold 5^i and its inverse in four 31 bit parts, most
+// significant first
+	static final int DOUBLE_POW5_INV_BITCOUNT = 122;
+	static final int DOUBLE_POW5_BITCOUNT = 121;
+	static final int DOUBLE_POW5_INV_TABLE_SIZE = 291;
+	static final int DOUBLE_POW5_TABLE_SIZE = 326;
+	static final int DOUBLE_POW5_INV_SPLIT[] = new int[DOUBLE_POW5_INV_TABLE_SIZE*4];
+	static final int DOUBLE_POW5_SPLIT[] = new int[DOUBLE_POW5_TABLE_SIZE*4];
+	static final byte CHANNEL_NAMES[][] = new byte[CaptureFormat.CHANNEL_COUNT][];
+	static final long INT_DIGITS_LIMIT = 1000000000L;
+	static final long DIGITS8_LIMIT = 100000000L;
+	static final byte DIGITS[] = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'
+	};
+	static final byte DIGIT_TENS[] = new byte[100];
+	static final byte DIGIT_ONES[] = new byte[100];
+
+	static {
+		BigInteger five = BigInteger.valueOf( 5L );
+		for( int i = 0 ; i < POW5_TABLE_SIZE ; ++i ) {
+			BigInteger pow = five.pow( i );
+			int shift = pow.bitLength() - POW5_BITCOUNT;
+			POW5_SPLIT[i] = ( shift >= 0 ? pow.shiftRight( shift ) : pow.shiftLeft( -shift ) ).longValue();
+			if( i < POW5_INV_TABLE_SIZE ) {
+				int j = pow.bitLength() - 1 + POW5_INV_BITCOUNT;
+				POW5_INV_SPLIT[i] = BigInteger.ONE.shiftLeft( j ).divide( pow ).longValue() + 1L;
+			}
+		}
+		BigInteger pow = BigInteger.ONE;
+		BigInteger partMask = BigInteger.ONE.shiftLeft( 31 ).subtract( BigInteger.ONE );
+		for( int i = 0 ; i < DOUBLE_POW5_TABLE_SIZE ; ++i ) {
+			int bitLength = pow.bitLength();
+			BigInteger split = pow.shiftRight( bitLength - DOUBLE_POW5_BITCOUNT );
+			BigInteger inv = null;
+			if( i < DOUBLE_POW5_INV_TABLE_SIZE )
+				inv = BigInteger.ONE.shiftLeft( bitLength - 1 + DOUBLE_POW5_INV_BITCOUNT ).divide( pow ).add( BigInteger.ONE );
+			for( int k = 0 ; k < 4 ; ++k ) {
+				int shift = ( 3 - k ) * 31;
+				DOUBLE_POW5_SPLIT[i*4 + k] = split.shiftRight( shift ).and( partMask ).intValue();
+				if( inv != null )
+					DOUBLE_POW5_INV_SPLIT[i*4 + k] = k == 0 ?
+							inv.shiftRight( shift ).intValue() :
+							inv.shiftRight( shift ).and( partMask ).intValue();
+			}
+			pow = pow.multiply( five );
+		}
+		for( int i = 0 ; i < 100 ; ++i ) {
+			DIGIT_TENS[i] = DIGITS[i / 10];
+			DIGIT_ONES[i] = DIGITS[i % 10];
+		}
+		for( int i = 0 ; i < CaptureFormat.CHANNEL_COUNT ; ++i )
+			CHANNEL_NAMES[i] = CaptureFormat.getChannelName( i ).getBytes( CaptureFormat.UTF8 );
+	}
+
+	public CsvFormatter() {
+		this( DEFAULT_CAPACITY );
+	}
+
+	public CsvFormatter( int capacity ) {
+		buffer = new byte[capacity];
+		lineSeparator = System.getProperty( "line.separator", "\n" ).getBytes( CaptureFormat.UTF8 );
+	}
+
+/**
+ * Replaces the buffer contents with the CSV line of a raw record.
+ */
+	public void formatRaw( long timeStamp, int channel, float x, float y, float z ) {
+		length = 0;
+		appendLong( timeStamp );
+		appendByte( ',' );
+		appendChannel( channel );
+		appendByte( ',' );
+		appendFloat( x );
+		appendByte( ',' );
+		appendFloat( y );
+		appendByte( ',' );
+		appendFloat( z );
+		appendLineSeparator();
+	}
+
+/**
+ * Replaces the buffer contents with the CSV line of a derived record.
+ */
+	public void formatDerived( long timeStamp, int channel, double v[] ) {
+		length = 0;
+		appendLong( timeStamp );
+		appendByte( ',' );
+		appendChannel( channel );
+		appendByte( ',' );
+		appendDouble( v[0] );
+		appendByte( ',' );
+		appendDouble( v[1] );
+		appendByte( ',' );
+		appendDouble( v[2] );
+		appendLineSeparator();
+	}
+
+	public void format( CaptureSource source ) {
+		int channel = source.getChannel();
+		if( CaptureFormat.hasRawLayout( channel ) ) {
+			float v[] = source.getRawValues();
+			formatRaw( source.getTimeStamp(), channel, v[0], v[1], v[2] );
+		} else
+			formatDerived( source.getTimeStamp(), channel, source.getValues() );
+	}
+
+	public void writeTo( OutputStream out ) throws IOException {
+		out.write( buffer, 0, length );
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public void clear() {
+		length = 0;
+	}
+
+	public void appendByte( int b ) {
+		ensure( 1 );
+		buffer[length++] = (byte)b;
+	}
+
+	public void appendChannel( int channel ) {
+		byte name[] = CHANNEL_NAMES[ ( channel < 0 ) || ( channel >= CaptureFormat.CHANNEL_COUNT ) ?
+				CaptureFormat.CHANNEL_NA :
+				channel ];
+		ensure( name.length );
+		System.arraycopy( name, 0, buffer, length, name.length );
+		length += name.length;
+	}
+
+	public void appendLineSeparator() {
+		ensure( lineSeparator.length );
+		System.arraycopy( lineSeparator, 0, buffer, length, lineSeparator.length );
+		length += lineSeparator.length;
+	}
+
+	public void appendLong( long value ) {
+		ensure( 20 );
+		if( value == Long.MIN_VALUE ) {
+			appendAscii( "-9223372036854775808" );
+			return;
+		}
+		if( value < 0L ) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+		if( value < INT_DIGITS_LIMIT ) {
+			int v = (int)value;
+			appendDigits( v, decimalLength( v ) );
+			return;
+		}
+// Longer values are written as an int head and 9 digit int chunks
+		long head = value / INT_DIGITS_LIMIT;
+		int tail = (int)( value - head * INT_DIGITS_LIMIT );
+		if( head < INT_DIGITS_LIMIT ) {
+			int h = (int)head;
+			appendDigits( h, decimalLength( h ) );
+		} else {
+			int h = (int)( head / INT_DIGITS_LIMIT );
+			appendDigits( h, decimalLength( h ) );
+			appendDigits( (int)( head - h * INT_DIGITS_LIMIT ), 9 );
+		}
+		appendDigits( tail, 9 );
+	}
+
+/**
+ * Appends the float laid out like Float.toString, with the digits of the
+ * shortest decimal that rounds back to it.
+ */
+	public void appendFloat( float f ) {
+		ensure( 16 );
+		int bits = Float.floatToRawIntBits( f );
+		int ieeeMantissa = bits & ( ( 1 << FLOAT_MANTISSA_BITS ) - 1 );
+		int ieeeExponent = ( bits >>> FLOAT_MANTISSA_BITS ) & ( ( 1 << FLOAT_EXPONENT_BITS ) - 1 );
+		if( ieeeExponent == ( 1 << FLOAT_EXPONENT_BITS ) - 1 ) {
+			if( ieeeMantissa != 0 )
+				appendAscii( "NaN" );
+			else
+				appendAscii( bits < 0 ? "-Infinity" : "Infinity" );
+			return;
+		}
+		if( ( ieeeExponent == 0 ) && ( ieeeMantissa == 0 ) ) {
+			appendAscii( bits < 0 ? "-0.0" : "0.0" );
+			return;
+		}
+		if( ( ieeeExponent == 0 ) ||
+			( ieeeExponent > SHORTEST_EXPONENT_MAX ) ||
+			( ( ieeeMantissa == 0 ) && ( ieeeExponent < SHORTEST_POWER_OF_TWO_MIN ) ) ) {
+			appendAscii( Float.toString( f ) );
+			return;
+		}
+		if( bits < 0 )
+			buffer[length++] = '-';
+		shortestDigits( ieeeMantissa, ieeeExponent );
+		layout( digits, digitsExponent );
+	}
+
+/**
+ * Appends the double laid out like Double.toString, with the digits of the
+ * shortest decimal that rounds back to it.
+ */
+	public void appendDouble( double d ) {
+		ensure( 25 );
+		long bits = Double.doubleToRawLongBits( d );
+		long ieeeMantissa = bits & ( ( 1L << DOUBLE_MANTISSA_BITS ) - 1L );
+		int ieeeExponent = (int)( bits >>> DOUBLE_MANTISSA_BITS ) & ( ( 1 << DOUBLE_EXPONENT_BITS ) - 1 );
+		if( ieeeExponent == ( 1 << DOUBLE_EXPONENT_BITS ) - 1 ) {
+			if( ieeeMantissa != 0L )
+				appendAscii( "NaN" );
+			else
+				appendAscii( bits < 0L ? "-Infinity" : "Infinity" );
+			return;
+		}
+		if( ( ieeeExponent == 0 ) && ( ieeeMantissa == 0L ) ) {
+			appendAscii( bits < 0L ? "-0.0" : "0.0" );
+			return;
+		}
+		if( bits < 0L )
+			buffer[length++] = '-';
+		shortestDoubleDigits( ieeeMantissa, ieeeExponent );
+		layout( digits, digitsExponent );
+	}
+
+	void appendAscii( String s ) {
+		int n = s.length();
+		ensure( n );
+		for( int i = 0 ; i < n ; ++i )
+			buffer[length++] = (byte)s.charAt( i );
+	}
+
+// Ryu float to shortest decimal, sets digits and digitsExponent so that
+// the value is digits * 10^digitsExponent
+	private void shortestDigits( int ieeeMantissa, int ieeeExponent ) {
+		int e2;
+		int m2;
+		if( ieeeExponent == 0 ) {
+			e2 = 1 - FLOAT_BIAS - FLOAT_MANTISSA_BITS - 2;
+			m2 = ieeeMantissa;
+		} else {
+			e2 = ieeeExponent - FLOAT_BIAS - FLOAT_MANTISSA_BITS - 2;
+			m2 = ( 1 << FLOAT_MANTISSA_BITS ) | ieeeMantissa;
+		}
+		boolean acceptBounds = ( m2 & 1 ) == 0;
+		int mv = 4 * m2;
+		int mp = 4 * m2 + 2;
+		int mmShift = ( ( ieeeMantissa != 0 ) || ( ieeeExponent <= 1 ) ) ? 1 : 0;
+		int mm = 4 * m2 - 1 - mmShift;
+		int vr;
+		int vp;
+		int vm;
+		int e10;
+		boolean vmIsTrailingZeros = false;
+		boolean vrIsTrailingZeros = false;
+		int lastRemovedDigit = 0;
+		if( e2 >= 0 ) {
+			int q = log10Pow2( e2 );
+			e10 = q;
+			int k = POW5_INV_BITCOUNT + pow5bits( q ) - 1;
+			int i = -e2 + q + k;
+			vr = mulShift( mv, POW5_INV_SPLIT[q], i );
+			vp = mulShift( mp, POW5_INV_SPLIT[q], i );
+			vm = mulShift( mm, POW5_INV_SPLIT[q], i );
+			if( ( q != 0 ) && ( ( vp - 1 ) / 10 <= vm / 10 ) ) {
+				int l = POW5_INV_BITCOUNT + pow5bits( q - 1 ) - 1;
+				lastRemovedDigit = mulShift( mv, POW5_INV_SPLIT[q - 1], -e2 + q - 1 + l ) % 10;
+			}
+			if( q <= 9 ) {
+				if( mv % 5 == 0 )
+					vrIsTrailingZeros = pow5Factor( mv ) >= q;
+				else
+				if( acceptBounds )
+					vmIsTrailingZeros = pow5Factor( mm ) >= q;
+				else
+				if( pow5Factor( mp ) >= q )
+					--vp;
+			}
+		} else {
+			int q = log10Pow5( -e2 );
+			e10 = q + e2;
+			int i = -e2 - q;
+			int k = pow5bits( i ) - POW5_BITCOUNT;
+			int j = q - k;
+			vr = mulShift( mv, POW5_SPLIT[i], j );
+			vp = mulShift( mp, POW5_SPLIT[i], j );
+			vm = mulShift( mm, POW5_SPLIT[i], j );
+			if( ( q != 0 ) && ( ( vp - 1 ) / 10 <= vm / 10 ) ) {
+				j = q - 1 - ( pow5bits( i + 1 ) - POW5_BITCOUNT );
+				lastRemovedDigit = mulShift( mv, POW5_SPLIT[i + 1], j ) % 10;
+			}
+			if( q <= 1 ) {
+				vrIsTrailingZeros = true;
+				if( acceptBounds )
+					vmIsTrailingZeros = mmShift == 1;
+				else
+					--vp;
+			} else
+			if( q < 31 )
+				vrIsTrailingZeros = ( mv & ( ( 1 << ( q - 1 ) ) - 1 ) ) == 0;
+		}
+		int removed = 0;
+		int output;
+		if( vmIsTrailingZeros || vrIsTrailingZeros ) {
+			while( vp / 10 > vm / 10 ) {
+				vmIsTrailingZeros &= vm % 10 == 0;
+				vrIsTrailingZeros &= lastRemovedDigit == 0;
+				lastRemovedDigit = vr % 10;
+				vr /= 10;
+				vp /= 10;
+				vm /= 10;
+				++removed;
+			}
+			if( vmIsTrailingZeros ) {
+				while( vm % 10 == 0 ) {
+					vrIsTrailingZeros &= lastRemovedDigit == 0;
+					lastRemovedDigit = vr % 10;
+					vr /= 10;
+					vp /= 10;
+					vm /= 10;
+					++removed;
+				}
+			}
+			if( vrIsTrailingZeros && ( lastRemovedDigit == 5 ) && ( vr % 2 == 0 ) )
+				lastRemovedDigit = 4;
+			output = vr +
+					( ( ( vr == vm ) && ( !acceptBounds || !vmIsTrailingZeros ) ) ||
+						( lastRemovedDigit >= 5 ) ? 1 : 0 );
+		} else {
+			while( vp / 10 > vm / 10 ) {
+				lastRemovedDigit = vr % 10;
+				vr /= 10;
+				vp /= 10;
+				vm /= 10;
+				++removed;
+			}
+			output = vr + ( ( vr == vm ) || ( lastRemovedDigit >= 5 ) ? 1 : 0 );
+		}
+		digits = output;
+		digitsExponent = e10 + removed;
+	}
+
+// Ryu double to shortest decimal, the 64 bit counterpart of shortestDigits.
+// q is taken one lower than needed so that at least one digit is removed,
+// which sets lastRemovedDigit.
+	private void shortestDoubleDigits( long ieeeMantissa, int ieeeExponent ) {
+		int e2;
+		long m2;
+		if( ieeeExponent == 0 ) {
+			e2 = 1 - DOUBLE_BIAS - DOUBLE_MANTISSA_BITS - 2;
+			m2 = ieeeMantissa;
+		} else {
+			e2 = ieeeExponent - DOUBLE_BIAS - DOUBLE_MANTISSA_BITS - 2;
+			m2 = ( 1L << DOUBLE_MANTISSA_BITS ) | ieeeMantissa;
+		}
+		boolean acceptBounds = ( m2 & 1L ) == 0L;
+		long mv = 4L * m2;
+		long mp = 4L * m2 + 2L;
+		int mmShift = ( ( ieeeMantissa != 0L ) || ( ieeeExponent <= 1 ) ) ? 1 : 0;
+		long mm = 4L * m2 - 1L - mmShift;
+		long vr;
+		long vp;
+		long vm;
+		int e10;
+		boolean vmIsTrailingZeros = false;
+		boolean vrIsTrailingZeros = false;
+		if( e2 >= 0 ) {
+			int q = Math.max( 0, log10Pow2( e2 ) - 1 );
+			e10 = q;
+			int k = DOUBLE_POW5_INV_BITCOUNT + pow5bits( q ) - 1;
+			int i = -e2 + q + k;
+			vr = mulPow5divPow2( mv, DOUBLE_POW5_INV_SPLIT, q, i );
+			vp = mulPow5divPow2( mp, DOUBLE_POW5_INV_SPLIT, q, i );
+			vm = mulPow5divPow2( mm, DOUBLE_POW5_INV_SPLIT, q, i );
+			if( q <= 21 ) {
+				if( mv % 5L == 0L )
+					vrIsTrailingZeros = pow5Factor( mv ) >= q;
+				else
+				if( acceptBounds )
+					vmIsTrailingZeros = pow5Factor( mm ) >= q;
+				else
+				if( pow5Factor( mp ) >= q )
+					--vp;
+			}
+		} else {
+			int q = Math.max( 0, log10Pow5( -e2 ) - 1 );
+			e10 = q + e2;
+			int i = -e2 - q;
+			int k = pow5bits( i ) - DOUBLE_POW5_BITCOUNT;
+			int j = q - k;
+			vr = mulPow5divPow2( mv, DOUBLE_POW5_SPLIT, i, j );
+			vp = mulPow5divPow2( mp, DOUBLE_POW5_SPLIT, i, j );
+			vm = mulPow5divPow2( mm, DOUBLE_POW5_SPLIT, i, j );
+			if( q <= 1 ) {
+				vrIsTrailingZeros = true;
+				if( acceptBounds )
+					vmIsTrailingZeros = mmShift == 1;
+				else
+					--vp;
+			} else
+			if( q < 63 )
+				vrIsTrailingZeros = ( mv & ( ( 1L << ( q - 1 ) ) - 1L ) ) == 0L;
+		}
+		int removed = 0;
+		int lastRemovedDigit = 0;
+		long output;
+		if( vmIsTrailingZeros || vrIsTrailingZeros ) {
+			while( vp / 10L > vm / 10L ) {
+				vmIsTrailingZeros &= vm % 10L == 0L;
+				vrIsTrailingZeros &= lastRemovedDigit == 0;
+				lastRemovedDigit = (int)( vr % 10L );
+				vr /= 10L;
+				vp /= 10L;
+				vm /= 10L;
+				++removed;
+			}
+			if( vmIsTrailingZeros ) {
+				while( vm % 10L == 0L ) {
+					vrIsTrailingZeros &= lastRemovedDigit == 0;
+					lastRemovedDigit = (int)( vr % 10L );
+					vr /= 10L;
+					vp /= 10L;
+					vm /= 10L;
+					++removed;
+				}
+			}
+			if( vrIsTrailingZeros && ( lastRemovedDigit == 5 ) && ( vr % 2L == 0L ) )
+				lastRemovedDigit = 4;
+			output = vr +
+					( ( ( vr == vm ) && ( !acceptBounds || !vmIsTrailingZeros ) ) ||
+						( lastRemovedDigit >= 5 ) ? 1L : 0L );
+		} else {
+			while( vp / 10L > vm / 10L ) {
+				lastRemovedDigit = (int)( vr % 10L );
+				vr /= 10L;
+				vp /= 10L;
+				vm /= 10L;
+				++removed;
+			}
+			output = vr + ( ( vr == vm ) || ( lastRemovedDigit >= 5 ) ? 1L : 0L );
+		}
+		digits = output;
+		digitsExponent = e10 + removed;
+	}
+
+// Float.toString layout: plain notation for 1e-3 <= |v| < 1e7, computerized
+// scientific notation otherwise, always with a fraction digit
+	private void layout( long output, int exponent ) {
+		int olength = decimalLength( output );
+		int sciExponent = exponent + olength - 1;
+		if( ( sciExponent >= -3 ) && ( sciExponent < 7 ) ) {
+			if( sciExponent < 0 ) {
+				buffer[length++] = '0';
+				buffer[length++] = '.';
+				for( int i = -1 ; i > sciExponent ; --i )
+					buffer[length++] = '0';
+				appendDigits( output, olength );
+			} else
+			if( olength <= sciExponent + 1 ) {
+				appendDigits( output, olength );
+				for( int i = olength ; i <= sciExponent ; ++i )
+					buffer[length++] = '0';
+				buffer[length++] = '.';
+				buffer[length++] = '0';
+			} else {
+				int start = length;
+				appendDigits( output, olength );
+				int integerDigits = sciExponent + 1;
+				System.arraycopy( buffer, start + integerDigits, buffer, start + integerDigits + 1, olength - integerDigits );
+				buffer[start + integerDigits] = '.';
+				++length;
+			}
+		} else {
+			int start = length;
+			appendDigits( output, olength );
+			if( olength == 1 ) {
+				buffer[length++] = '.';
+				buffer[length++] = '0';
+			} else {
+				System.arraycopy( buffer, start + 1, buffer, start + 2, olength - 1 );
+				buffer[start + 1] = '.';
+				++length;
+			}
+			buffer[length++] = 'E';
+			if( sciExponent < 0 ) {
+				buffer[length++] = '-';
+				sciExponent = -sciExponent;
+			}
+			appendDigits( sciExponent, decimalLength( sciExponent ) );
+		}
+	}
+
+	private void appendDigits( long value, int count ) {
+		if( count <= 9 ) {
+			appendDigits( (int)value, count );
+			return;
+		}
+		long high = value / DIGITS8_LIMIT;
+		appendDigits( (int)high, count - 8 );
+		appendDigits( (int)( value - high * DIGITS8_LIMIT ), 8 );
+	}
+
+	private void appendDigits( int value, int count ) {
+		int end = length + count;
+		int i = end;
+		while( value >= 100 ) {
+			int q = value / 100;
+			int r = value - q * 100;
+			buffer[--i] = DIGIT_ONES[r];
+			buffer[--i] = DIGIT_TENS[r];
+			value = q;
+		}
+		while( i > length ) {
+			int q = value / 10;
+			buffer[--i] = DIGITS[value - q * 10];
+			value = q;
+		}
+		length = end;
+	}
+
+	private void ensure( int n ) {
+		if( length + n <= buffer.length )
+			return;
+		byte larger[] = new byte[Math.max( buffer.length * 2, length + n )];
+		System.arraycopy( buffer, 0, larger, 0, length );
+		buffer = larger;
+	}
+
+	static int decimalLength( int value ) {
+		if( value >= 100000 ) {
+			if( value >= 10000000 ) {
+				if( value >= 1000000000 )
+					return 10;
+				return value >= 100000000 ? 9 : 8;
+			}
+			return value >= 1000000 ? 7 : 6;
+		}
+		if( value >= 1000 )
+			return value >= 10000 ? 5 : 4;
+		if( value >= 10 )
+			return value >= 100 ? 3 : 2;
+		return 1;
+	}
+
+	static int decimalLength( long value ) {
+		if( value < INT_DIGITS_LIMIT )
+			return decimalLength( (int)value );
+		int n = 10;
+		for( long limit = 10L * INT_DIGITS_LIMIT ; ( n < 19 ) && ( value >= limit ) ; limit *= 10L )
+			++n;
+		return n;
+	}
+
+	static int pow5bits( int e ) {
+		return ( ( e * 1217359 ) >>> 19 ) + 1;
+	}
+
+	static int log10Pow2( int e ) {
+		return ( e * 78913 ) >>> 18;
+	}
+
+	static int log10Pow5( int e ) {
+		return ( e * 732923 ) >>> 20;
+	}
+
+	static int pow5Factor( int value ) {
+		int count = 0;
+		while( value % 5 == 0 ) {
+			value /= 5;
+			++count;
+		}
+		return count;
+	}
+
+	static int pow5Factor( long value ) {
+		int count = 0;
+		while( value % 5L == 0L ) {
+			value /= 5L;
+			++count;
+		}
+		return count;
+	}
+
+// (m * 5^i or its inverse) >> shift for an m of up to 55 bits, with the
+// factor in four 31 bit parts of split at i
+	static long mulPow5divPow2( long m, int split[], int i, int shift ) {
+		long mHigh = m >>> 31;
+		long mLow = m & 0x7FFFFFFFL;
+		int base = i*4;
+		long bits13 = mHigh * split[base];
+		long bits03 = mLow * split[base];
+		long bits12 = mHigh * split[base + 1];
+		long bits02 = mLow * split[base + 1];
+		long bits11 = mHigh * split[base + 2];
+		long bits01 = mLow * split[base + 2];
+		long bits10 = mHigh * split[base + 3];
+		long bits00 = mLow * split[base + 3];
+		return ( ( ( ( ( ( ( ( bits00 >>> 31 ) + bits01 + bits10 ) >>> 31 ) +
+				bits02 + bits11 ) >>> 31 ) +
+				bits03 + bits12 ) >>> 21 ) +
+				( bits13 << 10 ) ) >>> ( shift - 3*31 - 21 );
+	}
+
+// (m * factor) >> shift for a 32 bit m and a 64 bit factor, shift >= 32
+	static int mulShift( int m, long factor, int shift ) {
+		long factorLow = factor & 0xFFFFFFFFL;
+		long factorHigh = factor >>> 32;
+		long bits0 = m * factorLow;
+		long bits1 = m * factorHigh;
+		long sum = ( bits0 >>> 32 ) + bits1;
+		return (int)( sum >>> ( shift - 32 ) );
+	}
+
+	private final byte lineSeparator[];
+	private byte buffer[];
+	private int length = 0;
+	private long digits;
+	private int digitsExponent;
+}
@@ -0,0 +1,252 @@
+package aexp.gyroaccel.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to a capture through its CaptureIndex. The file is memory
+ * mapped in windows, so long captures do not need to fit in the address
+ * space at once. select() restricts the records returned by next() to a
+ * time range and a set of channels; blocks outside the time range are
+ * not touched. In record captures a record of an unselected channel is
+ * skipped by its channel byte, in compressed captures the blocks of
+ * unselected channels are not decoded at all.
+ * <p>
+ * Journal checksums are not verified, the index is trusted; run
+ * CaptureRecovery on captures of doubtful origin first.
+ */
+public class MappedCaptureReader implements CaptureSource {
+	public static final int ALL_CHANNELS = -1;
+	public static final long DEFAULT_WINDOW_SIZE = 32L * 1024L * 1024L;
+	static final int RAW_CHANNELS = CompressedCaptureWriter.RAW_CHANNELS;
+
+	public static int channelBit( int channel ) {
+		return 1 << channel;
+	}
+
+	public MappedCaptureReader( File file ) throws IOException {
+		this( file, CaptureIndex.load( file ), DEFAULT_WINDOW_SIZE );
+	}
+
+	public MappedCaptureReader( File file, CaptureIndex index, long windowSize ) throws IOException {
+		raf = new RandomAccessFile( file, "r" );
+		channel = raf.getChannel();
+		try {
+			header = CaptureHeader.read( channel );
+		} catch( IOException ex ) {
+			raf.close();
+			throw ex;
+		}
+		this.index = index;
+		this.windowSize = windowSize;
+		fileSize = channel.size();
+		compressed = header.isCompressed();
+		for( int i = 0 ; i < RAW_CHANNELS ; ++i ) {
+			decoders[i] = new SampleBlockDecoder();
+			blockData[i] = new byte[0];
+		}
+		select( Long.MIN_VALUE, Long.MAX_VALUE, ALL_CHANNELS );
+	}
+
+/**
+ * Restarts the iteration with the records between
+ * <code>fromTimeStamp</code> and <code>toTimeStamp</code> inclusive whose
+ * channel bit is set in <code>channelMask</code>.
+ */
+	public void select( long fromTimeStamp, long toTimeStamp, int channelMask ) {
+		this.fromTimeStamp = fromTimeStamp;
+		this.toTimeStamp = toTimeStamp;
+		this.channelMask = channelMask;
+		entry = index.findFirst( fromTimeStamp ) - 1;
+		position = 0;
+		end = 0;
+		for( int i = 0 ; i < RAW_CHANNELS ; ++i )
+			pending[i] = false;
+	}
+
+	public CaptureIndex getIndex() {
+		return index;
+	}
+
+	public CaptureHeader getHeader() {
+		return header;
+	}
+
+	public boolean next() throws IOException {
+		while( true ) {
+			if( compressed ? nextDecoded() : nextRecord() )
+				return true;
+			if( !nextEntry() )
+				return false;
+		}
+	}
+
+	public int getChannel() {
+		return recordChannel;
+	}
+
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+
+	public float[] getRawValues() {
+		return rawValues;
+	}
+
+	public void close() throws IOException {
+		window = null;
+		raf.close();
+	}
+
+// Maps the block of the next entry that may hold selected records
+	private boolean nextEntry() throws IOException {
+		++entry;
+		if( ( entry >= index.size() ) || index.startsAfter( entry, toTimeStamp ) ) {
+			entry = index.size();
+			return false;
+		}
+		long offset = index.getOffset( entry );
+		int length = index.getLength( entry );
+		if( ( window == null ) ||
+			( offset < windowStart ) ||
+			( offset + length > windowStart + window.capacity() ) ) {
+			long size = Math.max( length, Math.min( windowSize, fileSize - offset ) );
+			window = channel.map( FileChannel.MapMode.READ_ONLY, offset, size );
+			window.order( ByteOrder.LITTLE_ENDIAN );
+			windowStart = offset;
+		}
+		position = (int)( offset - windowStart );
+		end = position + length;
+		if( compressed )
+			decodeFrame();
+		return true;
+	}
+
+	private boolean nextRecord() {
+		while( position < end ) {
+			int recordPosition = position;
+			int ch = window.get( recordPosition ) & 0xFF;
+			position += CaptureFormat.getRecordSize( ch );
+			if( ( channelMask & channelBit( ch ) ) == 0 )
+				continue;
+			long ts = window.getLong( recordPosition + 1 );
+			if( ( ts < fromTimeStamp ) || ( ts > toTimeStamp ) )
+				continue;
+			recordChannel = ch;
+			timeStamp = ts;
+			recordPosition += 9;
+			if( CaptureFormat.hasRawLayout( ch ) ) {
+				rawValues[0] = window.getFloat( recordPosition );
+				rawValues[1] = window.getFloat( recordPosition + 4 );
+				rawValues[2] = window.getFloat( recordPosition + 8 );
+				values[0] = rawValues[0];
+				values[1] = rawValues[1];
+				values[2] = rawValues[2];
+			} else {
+				values[0] = window.getDouble( recordPosition );
+				values[1] = window.getDouble( recordPosition + 8 );
+				values[2] = window.getDouble( recordPosition + 16 );
+			}
+			return true;
+		}
+		return false;
+	}
+
+// Sets up decoders for the selected blocks of the frame at position
+	private void decodeFrame() throws IOException {
+		if( ( window.get( position ) & 0xFF ) != CaptureFormat.FRAME_MARKER )
+			throw new IOException( "Corrupt capture: bad frame marker at "+( windowStart + position ) );
+		int blocks = window.get( position + 1 ) & 0xFF;
+		int blockPosition = position + CaptureFormat.FRAME_HEADER_SIZE;
+		for( int b = 0 ; b < blocks ; ++b ) {
+			int ch = window.get( blockPosition ) & 0xFF;
+			int count = window.getInt( blockPosition + 1 );
+			int length = window.getInt( blockPosition + 5 );
+			blockPosition += CaptureFormat.BLOCK_HEADER_SIZE;
+			if( ( ch >= RAW_CHANNELS ) || ( count < 0 ) || ( length < 0 ) )
+				throw new IOException( "Corrupt capture: bad block header" );
+			if( ( channelMask & channelBit( ch ) ) != 0 ) {
+				if( blockData[ch].length < length )
+					blockData[ch] = new byte[length];
+				window.position( blockPosition );
+				window.get( blockData[ch], 0, length );
+				decoders[ch].init( blockData[ch], 0, length, count );
+				advance( ch );
+			}
+			blockPosition += length;
+		}
+		position = end;
+	}
+
+	private boolean nextDecoded() {
+		while( true ) {
+			int selected = -1;
+			long minTimeStamp = 0L;
+			for( int i = 0 ; i < RAW_CHANNELS ; ++i ) {
+				if( !pending[i] )
+					continue;
+				long ts = decoders[i].getTimeStamp();
+				if( ( selected < 0 ) || ( ts < minTimeStamp ) ) {
+					selected = i;
+					minTimeStamp = ts;
+				}
+			}
+			if( selected < 0 )
+				return false;
+			SampleBlockDecoder decoder = decoders[selected];
+			float v[] = decoder.getValues();
+			recordChannel = selected;
+			timeStamp = decoder.getTimeStamp();
+			rawValues[0] = v[0];
+			rawValues[1] = v[1];
+			rawValues[2] = v[2];
+			advance( selected );
+			if( ( timeStamp < fromTimeStamp ) || ( timeStamp > toTimeStamp ) )
+				continue;
+			values[0] = rawValues[0];
+			values[1] = rawValues[1];
+			values[2] = rawValues[2];
+			return true;
+		}
+	}
+
+	private void advance( int ch ) {
+		SampleBlockDecoder decoder = decoders[ch];
+		if( decoder.hasNext() ) {
+			decoder.next();
+			pending[ch] = true;
+		} else
+			pending[ch] = false;
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final CaptureHeader header;
+	private final CaptureIndex index;
+	private final long windowSize;
+	private final long fileSize;
+	private final boolean compressed;
+	private final SampleBlockDecoder decoders[] = new SampleBlockDecoder[RAW_CHANNELS];
+	private final byte blockData[][] = new byte[RAW_CHANNELS][];
+	private final boolean pending[] = new boolean[RAW_CHANNELS];
+	private final double values[] = new double[3];
+	private final float rawValues[] = new float[3];
+	private MappedByteBuffer window;
+	private long windowStart;
+	private int position;
+	private int end;
+	private int entry;
+	private long fromTimeStamp;
+	private long toTimeStamp;
+	private int channelMask;
+	private int recordChannel;
+	private long timeStamp;
+}
@@ -0,0 +1,124 @@
+package aexp.gyroaccel.capture;
+
+/**
+ * Decodes a block written by SampleBlockEncoder one sample at a time.
+ */
+public class SampleBlockDecoder {
+	public void init( byte data[], int offset, int length, int count ) {
+		this.data = data;
+		this.limit = (long)( offset + length ) << 3;
+		this.count = count;
+		bitPosition = (long)offset << 3;
+		decoded = 0;
+	}
+
+	public boolean hasNext() {
+		return decoded < count;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+/**
+ * Decodes the next sample. Throws IllegalStateException if the block data
+ * ends before the announced sample count.
+ */
+	public void next() {
+		if( decoded == 0 ) {
+			timeStamp = readBits( 64 );
+			for( int i = 0 ; i < 3 ; ++i ) {
+				bits[i] = (int)readBits( 32 );
+				leading[i] = -1;
+				trailing[i] = 0;
+			}
+			delta = 0L;
+		} else {
+			delta += readDeltaOfDelta();
+			timeStamp += delta;
+			readAxis( 0 );
+			readAxis( 1 );
+			readAxis( 2 );
+		}
+		values[0] = Float.intBitsToFloat( bits[0] );
+		values[1] = Float.intBitsToFloat( bits[1] );
+		values[2] = Float.intBitsToFloat( bits[2] );
+		++decoded;
+	}
+
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	public float[] getValues() {
+		return values;
+	}
+
+	private long readDeltaOfDelta() {
+		if( readBits( 1 ) == 0L )
+			return 0L;
+		if( readBits( 1 ) == 0L )
+			return signExtend( readBits( 16 ), 16 );
+		if( readBits( 1 ) == 0L )
+			return signExtend( readBits( 24 ), 24 );
+		if( readBits( 1 ) == 0L )
+			return signExtend( readBits( 32 ), 32 );
+		return readBits( 64 );
+	}
+
+	private void readAxis( int axis ) {
+		if( readBits( 1 ) == 0L )
+			return;
+		int lead;
+		int length;
+		if( readBits( 1 ) == 0L ) {
+			if( leading[axis] < 0 )
+				throw new IllegalStateException( "Corrupt block: window reuse without window" );
+			lead = leading[axis];
+			length = 32 - lead - trailing[axis];
+		} else {
+			lead = (int)readBits( 5 );
+			length = (int)readBits( 5 ) + 1;
+			leading[axis] = lead;
+			trailing[axis] = 32 - lead - length;
+			if( trailing[axis] < 0 )
+				throw new IllegalStateException( "Corrupt block: bad XOR window" );
+		}
+		int xor = (int)readBits( length ) << ( 32 - lead - length );
+		bits[axis] ^= xor;
+	}
+
+	private static long signExtend( long v, int bits ) {
+		int shift = 64 - bits;
+		return ( v << shift ) >> shift;
+	}
+
+	private long readBits( int n ) {
+		if( bitPosition + n > limit )
+			throw new IllegalStateException( "Corrupt block: data ends after "+decoded+" samples" );
+		long value = 0L;
+		for( int remaining = n ; remaining > 0 ; ) {
+			int byteIndex = (int)( bitPosition >>> 3 );
+			int bitOffset = (int)( bitPosition & 7 );
+			int available = 8 - bitOffset;
+			int k = remaining < available ? remaining : available;
+			int chunk = ( data[byteIndex] >>> ( available - k ) ) & ( ( 1 << k ) - 1 );
+			value = ( value << k ) | chunk;
+			remaining -= k;
+			bitPosition += k;
+		}
+		return value;
+	}
+
+	private byte data[];
+	private long limit;
+	private int count;
+	private int decoded;
+	private long bitPosition;
+	private long timeStamp;
+	private long delta;
+	private final int bits[] = new int[3];
+	private final int leading[] = new int[3];
+	private final int trailing[] = new int[3];
+	private final float values[] = new float[3];
+}
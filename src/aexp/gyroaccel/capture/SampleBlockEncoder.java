@@ -0,0 +1,172 @@
+package aexp.gyroaccel.capture;
+
+/**
+ * Compresses a block of samples of one sensor. Timestamps are stored as
+ * delta-of-delta values in variable size buckets, and each axis is stored
+ * as the XOR of its float bits with the previous value of the same axis,
+ * keeping only the meaningful bits. Regular sampling and slowly varying
+ * values therefore cost a few bits per sample.
+ * <p>
+ * The first sample is stored verbatim: 64 bit timestamp and three 32 bit
+ * floats. For every following sample:
+ * <pre>
+ * timestamp delta-of-delta
+ *   '0'                     zero
+ *   '10'   + 16 bit signed
+ *   '110'  + 24 bit signed
+ *   '1110' + 32 bit signed
+ *   '1111' + 64 bit
+ * each axis
+ *   '0'                     same bits as the previous value
+ *   '10' + meaningful bits  XOR fits the previous leading/trailing window
+ *   '11' + 5 bit leading zero count + 5 bit (length-1) + meaningful bits
+ * </pre>
+ * The block buffer is sized for the worst case up front, so adding a sample
+ * never allocates.
+ */
+public class SampleBlockEncoder {
+	public static final int DEFAULT_BLOCK_SAMPLES = 1024;
+	static final int FIRST_SAMPLE_BITS = 64 + 3*32;
+	static final int MAX_SAMPLE_BITS = 4 + 64 + 3*( 2 + 5 + 5 + 32 );
+
+	public SampleBlockEncoder( int maxSamples ) {
+		this.maxSamples = maxSamples;
+		long bits = FIRST_SAMPLE_BITS + (long)MAX_SAMPLE_BITS * maxSamples;
+		data = new byte[(int)( ( bits + 7 ) / 8 ) + 8];
+		reset();
+	}
+
+	public void reset() {
+		count = 0;
+		bytePosition = 0;
+		pendingBits = 0L;
+		pendingCount = 0;
+	}
+
+	public boolean isFull() {
+		return count >= maxSamples;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getMaxSamples() {
+		return maxSamples;
+	}
+
+/**
+ * Returns the block data; the first getByteLength() bytes are valid.
+ */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getByteLength() {
+		if( pendingCount == 0 )
+			return bytePosition;
+// The last partial byte is padded with zeros but stays pending, so more
+// samples can still be added
+		data[bytePosition] = (byte)( pendingBits << ( 8 - pendingCount ) );
+		return bytePosition + 1;
+	}
+
+	public void add( long timeStamp, float x, float y, float z ) {
+		if( count == 0 ) {
+			writeBits( timeStamp, 64 );
+			int bits[] = previousBits;
+			bits[0] = Float.floatToRawIntBits( x );
+			bits[1] = Float.floatToRawIntBits( y );
+			bits[2] = Float.floatToRawIntBits( z );
+			for( int i = 0 ; i < 3 ; ++i ) {
+				writeBits( bits[i] & 0xFFFFFFFFL, 32 );
+				previousLeading[i] = -1;
+				previousTrailing[i] = 0;
+			}
+			previousDelta = 0L;
+		} else {
+			long delta = timeStamp - previousTimeStamp;
+			writeDeltaOfDelta( delta - previousDelta );
+			previousDelta = delta;
+			writeAxis( 0, Float.floatToRawIntBits( x ) );
+			writeAxis( 1, Float.floatToRawIntBits( y ) );
+			writeAxis( 2, Float.floatToRawIntBits( z ) );
+		}
+		previousTimeStamp = timeStamp;
+		++count;
+	}
+
+	private void writeDeltaOfDelta( long dod ) {
+		if( dod == 0L )
+			writeBits( 0L, 1 );
+		else
+		if( ( dod >= -( 1L << 15 ) ) && ( dod < ( 1L << 15 ) ) ) {
+			writeBits( 0x2L, 2 );
+			writeBits( dod & 0xFFFFL, 16 );
+		} else
+		if( ( dod >= -( 1L << 23 ) ) && ( dod < ( 1L << 23 ) ) ) {
+			writeBits( 0x6L, 3 );
+			writeBits( dod & 0xFFFFFFL, 24 );
+		} else
+		if( ( dod >= -( 1L << 31 ) ) && ( dod < ( 1L << 31 ) ) ) {
+			writeBits( 0xEL, 4 );
+			writeBits( dod & 0xFFFFFFFFL, 32 );
+		} else {
+			writeBits( 0xFL, 4 );
+			writeBits( dod, 64 );
+		}
+	}
+
+	private void writeAxis( int axis, int bits ) {
+		int xor = bits ^ previousBits[axis];
+		previousBits[axis] = bits;
+		if( xor == 0 ) {
+			writeBits( 0L, 1 );
+			return;
+		}
+		int leading = Integer.numberOfLeadingZeros( xor );
+		int trailing = Integer.numberOfTrailingZeros( xor );
+		int prevLeading = previousLeading[axis];
+		int prevTrailing = previousTrailing[axis];
+		if( ( prevLeading >= 0 ) && ( leading >= prevLeading ) && ( trailing >= prevTrailing ) ) {
+			int length = 32 - prevLeading - prevTrailing;
+			writeBits( 0x2L, 2 );
+			writeBits( ( xor >>> prevTrailing ) & 0xFFFFFFFFL, length );
+		} else {
+			int length = 32 - leading - trailing;
+			writeBits( 0x3L, 2 );
+			writeBits( leading, 5 );
+			writeBits( length - 1, 5 );
+			writeBits( ( xor >>> trailing ) & 0xFFFFFFFFL, length );
+			previousLeading[axis] = leading;
+			previousTrailing[axis] = trailing;
+		}
+	}
+
+	private void writeBits( long value, int bits ) {
+		if( bits > 32 ) {
+			writeBits( value >>> 32, bits - 32 );
+			writeBits( value & 0xFFFFFFFFL, 32 );
+			return;
+		}
+// At most 7 bits are pending between calls, so 39 bits fit the accumulator
+		pendingBits = ( pendingBits << bits ) | ( value & ( ( 1L << bits ) - 1L ) );
+		pendingCount += bits;
+		while( pendingCount >= 8 ) {
+			pendingCount -= 8;
+			data[bytePosition++] = (byte)( pendingBits >>> pendingCount );
+		}
+	}
+
+	private final int maxSamples;
+	private final byte data[];
+	private final int previousBits[] = new int[3];
+	private final int previousLeading[] = new int[3];
+	private final int previousTrailing[] = new int[3];
+	private int count;
+	private int bytePosition;
+	private long pendingBits;
+	private int pendingCount;
+	private long previousTimeStamp;
+	private long previousDelta;
+}
@@ -0,0 +1,284 @@
+package aexp.gyroaccel.capture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams samples of selected channels to another process, normally over a
+ * pipe. The producer encodes records into a bounded buffer and never
+ * blocks; a writer thread of its own copies the buffer to the stream. A
+ * reader too slow to keep up loses the records the buffer has no room for,
+ * and the stream tells it how many.
+ * <pre>
+ * header (HEADER_SIZE bytes)
+ *   0  int     STREAM_MAGIC
+ *   4  short   VERSION
+ *   6  short   record size
+ *   8  int     channel mask, bit 1 &lt;&lt; channel for every channel streamed
+ * records, in the raw record layout of CaptureFormat
+ *   byte channel, long timestamp in nanoseconds, float x, y, z
+ *   derived channels are narrowed to floats; a record of CHANNEL_NA
+ *   reports in its timestamp field the number of records dropped since the
+ *   previous one
+ * </pre>
+ * The header is the handshake: a reader checks the magic and the version
+ * and learns which of the channels it asked for are delivered. All values
+ * are little endian.
+ */
+public class SampleStreamWriter {
+	public static final int STREAM_MAGIC = 0x50525947;	// "GYRP"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 12;
+	public static final int RECORD_SIZE = CaptureFormat.RAW_RECORD_SIZE;
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	static final int CHUNK_SIZE = 8192;
+// How long close() waits for the writer thread, twice at most
+	static final long CLOSE_TIMEOUT = 250L;
+
+	public static int channelBit( int channel ) {
+		return 1 << channel;
+	}
+
+	public SampleStreamWriter( OutputStream out, int channelMask, int bufferSize ) {
+		if( bufferSize < HEADER_SIZE + 2*RECORD_SIZE )
+			throw new IllegalArgumentException( "Buffer too small: "+bufferSize );
+		this.out = out;
+		this.channelMask = channelMask;
+		buffer = new byte[bufferSize];
+		putInt( STREAM_MAGIC );
+		putShort( VERSION );
+		putShort( RECORD_SIZE );
+		putInt( channelMask );
+		writerThread = new WriterThread();
+		writerThread.start();
+	}
+
+	public int getChannelMask() {
+		return channelMask;
+	}
+
+	public boolean wantsChannel( int channel ) {
+		return ( channelMask & channelBit( channel ) ) != 0;
+	}
+
+/**
+ * Queues a record of a channel of the mask, or drops it if the buffer is
+ * full. Never blocks on the stream.
+ */
+	public void write( long timeStamp, int channel, float x, float y, float z ) {
+		if( !wantsChannel( channel ) )
+			return;
+		synchronized( lock ) {
+			if( closing )
+				return;
+			int needed = pendingDrops > 0L ? 2*RECORD_SIZE : RECORD_SIZE;
+			if( buffer.length - size < needed ) {
+				++pendingDrops;
+				++recordsDropped;
+				return;
+			}
+			boolean wasEmpty = size == 0;
+			if( pendingDrops > 0L ) {
+				putRecord( pendingDrops, CaptureFormat.CHANNEL_NA, 0.0f, 0.0f, 0.0f );
+				pendingDrops = 0L;
+			}
+			putRecord( timeStamp, channel, x, y, z );
+			++recordsQueued;
+			if( wasEmpty )
+				lock.notify();
+		}
+	}
+
+/**
+ * Returns true once the reader went away or the stream failed; the writer
+ * is useless then and should be closed.
+ */
+	public boolean isClosed() {
+		return closed;
+	}
+
+/**
+ * Lets the writer thread send what is buffered, then closes the stream.
+ * A reader that stops reading without closing its end blocks the writer
+ * thread in the stream; if the thread is not done within CLOSE_TIMEOUT the
+ * stream is closed under it, which fails the blocked write, and the
+ * queued records not sent count as dropped. Returns within twice CLOSE_TIMEOUT.
+ */
+	public void close() {
+		synchronized( lock ) {
+			closing = true;
+			lock.notify();
+		}
+		try {
+			writerThread.join( CLOSE_TIMEOUT );
+			if( !writerThread.isAlive() )
+				return;
+			try {
+				out.close();
+			} catch( IOException ex ) {
+			}
+			writerThread.join( CLOSE_TIMEOUT );
+		} catch( InterruptedException ex ) {
+			Thread.currentThread().interrupt();
+		}
+		if( writerThread.isAlive() )
+			abandon();
+	}
+
+	public long getRecordsQueued() {
+		return recordsQueued;
+	}
+
+/**
+ * Returns the records the buffer had no room for and, once the stream is
+ * closed, the queued records that were never sent.
+ */
+	public long getRecordsDropped() {
+		long dropped = recordsDropped;
+		if( closed )
+			dropped += recordsQueued - recordsSent;
+		return dropped;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+/**
+ * Returns the error that ended the stream, or null.
+ */
+	public IOException getError() {
+		return error;
+	}
+
+	class WriterThread extends Thread {
+		WriterThread() {
+			super( "SampleStreamWriter" );
+		}
+
+		public void run() {
+			byte chunk[] = new byte[CHUNK_SIZE];
+			try {
+				while( true ) {
+					int length;
+					int records;
+					synchronized( lock ) {
+						while( ( size == 0 ) && !closing )
+							lock.wait();
+						if( size == 0 ) {
+// Closing, report the drops no record followed
+							if( pendingDrops == 0L )
+								break;
+							putRecord( pendingDrops, CaptureFormat.CHANNEL_NA, 0.0f, 0.0f, 0.0f );
+							pendingDrops = 0L;
+						}
+						length = take( chunk );
+						records = takenRecords;
+					}
+					out.write( chunk, 0, length );
+					recordsSent += records;
+					bytesWritten += length;
+				}
+				out.flush();
+			} catch( InterruptedException ex ) {
+				error = new IOException( "Stream writer interrupted" );
+			} catch( IOException ex ) {
+				error = ex;
+			} finally {
+				synchronized( lock ) {
+					closing = true;
+					size = 0;
+				}
+				closed = true;
+				try {
+					out.close();
+				} catch( IOException ex ) {
+					if( error == null )
+						error = ex;
+				}
+			}
+		}
+	}
+
+// The stream did not give the writer thread back even when closed; the
+// buffered records and the chunk it is stuck on count as dropped
+	private void abandon() {
+		synchronized( lock ) {
+			size = 0;
+		}
+		closed = true;
+		if( error == null )
+			error = new IOException( "Stream blocked, writer abandoned" );
+	}
+
+// Buffer access, with the lock held
+
+// Takes whole records only, after the header on the first call, and sets
+// takenRecords to the number of sample records among them
+	private int take( byte chunk[] ) {
+		int start = headerTaken ? 0 : HEADER_SIZE;
+		int length = size;
+		if( length > chunk.length )
+			length = start + ( chunk.length - start ) / RECORD_SIZE * RECORD_SIZE;
+		int first = Math.min( length, buffer.length - head );
+		System.arraycopy( buffer, head, chunk, 0, first );
+		System.arraycopy( buffer, 0, chunk, first, length - first );
+		head = ( head + length ) % buffer.length;
+		size -= length;
+		headerTaken = true;
+		takenRecords = 0;
+		for( int i = start ; i < length ; i += RECORD_SIZE )
+			if( chunk[i] != CaptureFormat.CHANNEL_NA )
+				++takenRecords;
+		return length;
+	}
+
+	private void putRecord( long timeStamp, int channel, float x, float y, float z ) {
+		putByte( channel );
+		putLong( timeStamp );
+		putInt( Float.floatToIntBits( x ) );
+		putInt( Float.floatToIntBits( y ) );
+		putInt( Float.floatToIntBits( z ) );
+	}
+
+	private void putLong( long v ) {
+		putInt( (int)v );
+		putInt( (int)( v >>> 32 ) );
+	}
+
+	private void putInt( int v ) {
+		putShort( v );
+		putShort( v >>> 16 );
+	}
+
+	private void putShort( int v ) {
+		putByte( v );
+		putByte( v >>> 8 );
+	}
+
+	private void putByte( int v ) {
+		int tail = head + size;
+		if( tail >= buffer.length )
+			tail -= buffer.length;
+		buffer[tail] = (byte)v;
+		++size;
+	}
+
+	private final OutputStream out;
+	private final int channelMask;
+	private final Object lock = new Object();
+	private final byte buffer[];
+	private final WriterThread writerThread;
+	private int head = 0;
+	private int size = 0;
+	private boolean headerTaken = false;
+	private int takenRecords = 0;
+	private boolean closing = false;
+	private long pendingDrops = 0L;
+	private volatile boolean closed = false;
+	private volatile long recordsQueued = 0L;
+	private volatile long recordsDropped = 0L;
+	private volatile long recordsSent = 0L;
+	private volatile long bytesWritten = 0L;
+	private volatile IOException error = null;
+}
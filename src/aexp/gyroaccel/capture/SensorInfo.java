@@ -0,0 +1,50 @@
+package aexp.gyroaccel.capture;
+
+/**
+ * Sensor metadata stored in a capture header.
+ */
+public class SensorInfo {
+	public SensorInfo(
+			String name,
+			String vendor,
+			float resolution,
+			float maximumRange,
+			int minDelay ) {
+		this.name = name;
+		this.vendor = vendor;
+		this.resolution = resolution;
+		this.maximumRange = maximumRange;
+		this.minDelay = minDelay;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getVendor() {
+		return vendor;
+	}
+
+	public float getResolution() {
+		return resolution;
+	}
+
+	public float getMaximumRange() {
+		return maximumRange;
+	}
+
+	public int getMinDelay() {
+		return minDelay;
+	}
+
+	public String toString() {
+		return name+" ("+vendor+"; resolution: "+resolution+
+				"; range: "+maximumRange+"; min delay: "+minDelay+")";
+	}
+
+	private final String name;
+	private final String vendor;
+	private final float resolution;
+	private final float maximumRange;
+	private final int minDelay;
+}
@@ -0,0 +1,129 @@
+package aexp.gyroaccel.engine;
+
+/**
+ * Device attitude kept as a unit quaternion (w,x,y,z) that rotates device
+ * frame vectors into the reference frame, i.e. the device frame at the end
+ * of calibration. Gyro rotations are applied with a small-angle exponential
+ * map step so an update costs a few multiplications and no trigonometry.
+ */
+public class Attitude {
+	public static final int IDX_W = 0;
+	public static final int IDX_X = 1;
+	public static final int IDX_Y = 2;
+	public static final int IDX_Z = 3;
+	static final int RENORMALIZE_INTERVAL = 32;
+	static final double PARALLEL_LIMIT = 1e-12;
+
+	public Attitude() {
+		reset();
+	}
+
+	public void reset() {
+		w = 1.0;
+		x = 0.0;
+		y = 0.0;
+		z = 0.0;
+		updateCounter = 0;
+	}
+
+	public void get( double q[] ) {
+		q[IDX_W] = w;
+		q[IDX_X] = x;
+		q[IDX_Y] = y;
+		q[IDX_Z] = z;
+	}
+
+/**
+ * Applies a rotation of the device given as a rotation vector in the device
+ * frame, in radians. The exponential map is expanded to second order, which
+ * is exact to well below float precision for the angles a single gyro
+ * sample covers.
+ */
+	public void integrate( double dx, double dy, double dz ) {
+		double theta2 = dx*dx + dy*dy + dz*dz;
+		if( theta2 == 0.0 )
+			return;
+		double dw = 1.0 - theta2 / 8.0;
+		double s = 0.5 - theta2 / 48.0;
+		multiply( dw, dx*s, dy*s, dz*s );
+		if( ++updateCounter >= RENORMALIZE_INTERVAL )
+			normalize();
+	}
+
+/**
+ * Rotates the attitude around an axis in the device frame so that the
+ * device frame direction <code>from</code> is carried onto <code>to</code>
+ * along the shortest arc. Neither vector needs to be normalized.
+ */
+	public void align( double from[], double to[] ) {
+		double fx = from[0], fy = from[1], fz = from[2];
+		double tx = to[0], ty = to[1], tz = to[2];
+		double fLen = Math.sqrt( fx*fx + fy*fy + fz*fz );
+		double tLen = Math.sqrt( tx*tx + ty*ty + tz*tz );
+		if( ( fLen == 0.0 ) || ( tLen == 0.0 ) )
+			return;
+		double cw = fLen*tLen + fx*tx + fy*ty + fz*tz;
+		double cx = fy*tz - fz*ty;
+		double cy = fz*tx - fx*tz;
+		double cz = fx*ty - fy*tx;
+		if( cw < PARALLEL_LIMIT * fLen * tLen ) {
+// Opposite vectors, rotate by half a turn around any perpendicular axis
+			cw = 0.0;
+			if( Math.abs( fx ) < Math.abs( fz ) ) {
+				cx = 0.0;
+				cy = -fz;
+				cz = fy;
+			} else {
+				cx = -fy;
+				cy = fx;
+				cz = 0.0;
+			}
+		}
+		double n = Math.sqrt( cw*cw + cx*cx + cy*cy + cz*cz );
+// The quaternion rotating "from" onto "to" maps reference vectors seen in
+// the old device frame onto the new one, so the attitude takes its inverse
+		multiply( cw/n, -cx/n, -cy/n, -cz/n );
+		normalize();
+	}
+
+/**
+ * Expresses the reference frame vector <code>v</code> in the device frame.
+ * <code>out</code> may be the same array as <code>v</code>.
+ */
+	public void toDevice( double v[], double out[] ) {
+		double vx = v[0], vy = v[1], vz = v[2];
+// Inverse rotation: v + w*t - u x t with u the vector part and t = 2(v x u)
+		double tx = 2.0 * ( vy*z - vz*y );
+		double ty = 2.0 * ( vz*x - vx*z );
+		double tz = 2.0 * ( vx*y - vy*x );
+		out[0] = vx + w*tx - ( y*tz - z*ty );
+		out[1] = vy + w*ty - ( z*tx - x*tz );
+		out[2] = vz + w*tz - ( x*ty - y*tx );
+	}
+
+	private void multiply( double bw, double bx, double by, double bz ) {
+		double nw = w*bw - x*bx - y*by - z*bz;
+		double nx = w*bx + x*bw + y*bz - z*by;
+		double ny = w*by - x*bz + y*bw + z*bx;
+		double nz = w*bz + x*by - y*bx + z*bw;
+		w = nw;
+		x = nx;
+		y = ny;
+		z = nz;
+	}
+
+	private void normalize() {
+		double n = Math.sqrt( w*w + x*x + y*y + z*z );
+		w /= n;
+		x /= n;
+		y /= n;
+		z /= n;
+		updateCounter = 0;
+	}
+
+	private double w;
+	private double x;
+	private double y;
+	private double z;
+	private int updateCounter;
+}
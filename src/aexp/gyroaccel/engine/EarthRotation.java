@@ -0,0 +1,107 @@
+package aexp.gyroaccel.engine;
+
+/**
+ * Rotation of device frame vectors into the gravity-aligned earth frame.
+ * The rotation first turns around z so that gravity has no y component,
+ * then around y so that gravity points along z. Its 3x3 matrix is built
+ * directly from the gravity components, reproducing the angle folding the
+ * atan2 based implementation did with fixAtanDegree, and is only rebuilt
+ * when the gravity vector changes.
+ */
+public class EarthRotation {
+	public static final int MATRIX_SIZE = 9;
+
+	public EarthRotation() {
+		build( 0.0, 0.0, 0.0, matrix );
+	}
+
+/**
+ * Makes the rotation follow the given gravity vector. Returns false if the
+ * gravity vector is the one the current matrix was built from.
+ */
+	public boolean update( double gravity[] ) {
+		double gx = gravity[0];
+		double gy = gravity[1];
+		double gz = gravity[2];
+		if( valid && ( gx == cachedX ) && ( gy == cachedY ) && ( gz == cachedZ ) )
+			return false;
+		build( gx, gy, gz, matrix );
+		cachedX = gx;
+		cachedY = gy;
+		cachedZ = gz;
+		valid = true;
+		return true;
+	}
+
+	public void invalidate() {
+		valid = false;
+	}
+
+/**
+ * Rotates <code>v</code> into the earth frame. <code>out</code> may be the
+ * same array as <code>v</code>.
+ */
+	public void apply( double v[], double out[] ) {
+		double x = v[0];
+		double y = v[1];
+		double z = v[2];
+		double m[] = matrix;
+		out[0] = m[0]*x + m[1]*y + m[2]*z;
+		out[1] = m[3]*x + m[4]*y + m[5]*z;
+		out[2] = m[6]*x + m[7]*y + m[8]*z;
+	}
+
+	public double[] getMatrix() {
+		return matrix;
+	}
+
+/**
+ * Fills the row-major rotation matrix for the gravity vector (gx,gy,gz).
+ */
+	public static void build( double gx, double gy, double gz, double m[] ) {
+// Rotation around z by -a where (cos a,sin a) is the direction of (gx,gy),
+// folded into the first quadrant when gx is negative like fixAtanDegree did
+		double r = Math.sqrt( gx*gx + gy*gy );
+		double c1 = 1.0;
+		double s1 = 0.0;
+		if( r > 0.0 ) {
+			if( ( gx < 0.0 ) && ( gy != 0.0 ) ) {
+				c1 = -gx / r;
+				s1 = Math.abs( gy ) / r;
+			} else {
+				c1 = gx / r;
+				s1 = gy / r;
+			}
+		}
+// x component of gravity after the z rotation, then the same folding for
+// the rotation around y by -b where (cos b,sin b) is the direction of (gz,gx')
+		double rx = gx*c1 + gy*s1;
+		double s = Math.sqrt( rx*rx + gz*gz );
+		double c2 = 1.0;
+		double s2 = 0.0;
+		if( s > 0.0 ) {
+			if( ( gz < 0.0 ) && ( rx != 0.0 ) ) {
+				c2 = -gz / s;
+				s2 = Math.abs( rx ) / s;
+			} else {
+				c2 = gz / s;
+				s2 = rx / s;
+			}
+		}
+		m[0] = c2*c1;
+		m[1] = c2*s1;
+		m[2] = -s2;
+		m[3] = -s1;
+		m[4] = c1;
+		m[5] = 0.0;
+		m[6] = s2*c1;
+		m[7] = s2*s1;
+		m[8] = c2;
+	}
+
+	private final double matrix[] = new double[MATRIX_SIZE];
+	private boolean valid = false;
+	private double cachedX;
+	private double cachedY;
+	private double cachedZ;
+}
@@ -0,0 +1,307 @@
+package aexp.gyroaccel.engine;
+
+/**
+ * Accelerometer/gyroscope fusion without any platform dependency. The engine
+ * first averages the accelerometer to calibrate the gravity vector, then
+ * tracks the device attitude with the gyroscope, derives gravity in the
+ * device frame from it and emits the difference between the
+ * measured acceleration and gravity, rotated into the earth frame.
+ */
+public class FusionEngine implements SampleBlockProcessor {
+	public static final int SAMPLECTR_MOD = 1000;
+	public static final int CALIBRATING_LIMIT = 3000;
+	public static final double ACCEL_DEVIATION_LIMIT = 0.05;
+	public static final int ACCEL_DEVIATION_LENGTH = 5;
+	public static final double GYRO_NOISE_LIMIT = 0.06;
+	public static final double SIMULATED_GRAVITY_DIFF_LIMIT = 0.1;
+	public static final int ENGINESTATES_IDLE = 0;
+	public static final int ENGINESTATES_CALIBRATING = 1;
+	public static final int ENGINESTATES_MEASURING = 2;
+	public static final int SENSORTYPE_NA = 0;
+	public static final int SENSORTYPE_ACCEL = 1;
+	public static final int SENSORTYPE_GYRO = 2;
+	public static final int IDX_X = 0;
+	public static final int IDX_Y = 1;
+	public static final int IDX_Z = 2;
+
+	public FusionEngine( FusionListener listener ) {
+		this.listener = listener;
+	}
+
+	public void reset() {
+		sampleCounter = 0;
+		previousTimeStamp = -1L;
+// Values related to calibrating state
+		calibratingAccelCounter = 0;
+		calibratingLimit = CALIBRATING_LIMIT;
+		simulatedGravity[IDX_X] = 0.0;
+		simulatedGravity[IDX_Y] = 0.0;
+		simulatedGravity[IDX_Z] = 0.0;
+		previousSimulatedGravityValid = false;
+		attitude.reset();
+		earthRotation.invalidate();
+		gravityAccelLimitLen = -1;
+		setState( ENGINESTATES_CALIBRATING );
+	}
+
+	public void stop() {
+		setState( ENGINESTATES_IDLE );
+	}
+
+	public int getState() {
+		return state;
+	}
+
+	public int getSampleCounter() {
+		return sampleCounter;
+	}
+
+	public double getGravityAccelLen() {
+		return gravityAccelLen;
+	}
+
+	public double[] getSimulatedGravity() {
+		return simulatedGravity;
+	}
+
+/**
+ * Returns the device attitude relative to the device orientation at the end
+ * of calibration. The attitude is updated in place as samples arrive.
+ */
+	public Attitude getAttitude() {
+		return attitude;
+	}
+
+	public void processSample( long timeStamp, int sensorType, float values[] ) {
+		updateSampleCounter();
+		switch( state ) {
+		case ENGINESTATES_CALIBRATING:
+			processCalibrating( timeStamp, sensorType, values );
+			break;
+
+		case ENGINESTATES_MEASURING:
+			processMeasuring( timeStamp, sensorType, values );
+			break;
+		}
+	}
+
+	public void processBlock(
+			long timeStamps[],
+			byte sensorTypes[],
+			float xs[],
+			float ys[],
+			float zs[],
+			int offset,
+			int length ) {
+		float values[] = blockValues;
+		int end = offset + length;
+		for( int i = offset ; i < end ; ++i ) {
+			values[IDX_X] = xs[i];
+			values[IDX_Y] = ys[i];
+			values[IDX_Z] = zs[i];
+			processSample( timeStamps[i], sensorTypes[i], values );
+		}
+	}
+
+	public static String getStateName( int state ) {
+		String stateName = null;
+		switch( state ) {
+		case ENGINESTATES_IDLE:
+			stateName = "Idle";
+			break;
+
+		case ENGINESTATES_CALIBRATING:
+			stateName = "Calibrating";
+			break;
+
+		case ENGINESTATES_MEASURING:
+			stateName = "Measuring";
+			break;
+
+		default:
+			stateName = "N/A";
+			break;
+		}
+		return stateName;
+	}
+
+	private void setState( int newState ) {
+		if( state != newState ) {
+			int oldState = state;
+			state = newState;
+			listener.stateChanged( oldState, newState, sampleCounter );
+		}
+	}
+
+	private void updateSampleCounter() {
+		++sampleCounter;
+		if( ( sampleCounter % SAMPLECTR_MOD ) == 0 )
+			listener.sampleCounter( sampleCounter );
+	}
+
+	private void processCalibrating( long timeStamp, int sensorType, float values [] ) {
+		if( sensorType == SENSORTYPE_ACCEL ) {
+			simulatedGravity[IDX_X] += (double)values[IDX_X];
+			simulatedGravity[IDX_Y] += (double)values[IDX_Y];
+			simulatedGravity[IDX_Z] += (double)values[IDX_Z];
+			++calibratingAccelCounter;
+		}
+		if( sensorType == SENSORTYPE_GYRO )
+			previousTimeStamp = timeStamp;
+		if( sampleCounter >= calibratingLimit ) {
+			if( calibratingAccelCounter == 0 ) { // This shouldn't happen
+				calibratingLimit += CALIBRATING_LIMIT;
+				listener.calibratingLimitExtended( calibratingLimit );
+			} else {
+				double avgDiv = (double)calibratingAccelCounter;
+				simulatedGravity[IDX_X] /= avgDiv;
+				simulatedGravity[IDX_Y] /= avgDiv;
+				simulatedGravity[IDX_Z] /= avgDiv;
+				gravityAccelLen = Math.sqrt(
+						simulatedGravity[IDX_X]*simulatedGravity[IDX_X] +
+						simulatedGravity[IDX_Y]*simulatedGravity[IDX_Y] +
+						simulatedGravity[IDX_Z]*simulatedGravity[IDX_Z]);
+				gravityAccelHighLimit = gravityAccelLen * ( 1.0 + ACCEL_DEVIATION_LIMIT );
+				gravityAccelLowLimit = gravityAccelLen * ( 1.0 - ACCEL_DEVIATION_LIMIT );
+				referenceGravity[IDX_X] = simulatedGravity[IDX_X];
+				referenceGravity[IDX_Y] = simulatedGravity[IDX_Y];
+				referenceGravity[IDX_Z] = simulatedGravity[IDX_Z];
+				attitude.reset();
+				listener.calibrated( simulatedGravity, gravityAccelLen );
+				setState( ENGINESTATES_MEASURING );
+			}
+		}
+	}
+
+	private void processMeasuring( long timeStamp, int sensorType, float values [] ) {
+		dv[IDX_X] = (double)values[0];
+		dv[IDX_Y] = (double)values[1];
+		dv[IDX_Z] = (double)values[2];
+		if( sensorType == SENSORTYPE_ACCEL ) {
+			double accelLen = Math.sqrt(
+					dv[IDX_X]*dv[IDX_X] +
+					dv[IDX_Y]*dv[IDX_Y] +
+					dv[IDX_Z]*dv[IDX_Z] );
+			if( ( accelLen < gravityAccelHighLimit ) &&
+				( accelLen > gravityAccelLowLimit ) ) {
+				if( gravityAccelLimitLen < 0 )
+					gravityAccelLimitLen = ACCEL_DEVIATION_LENGTH;
+				--gravityAccelLimitLen;
+				if( gravityAccelLimitLen <= 0 ) {
+					gravityAccelLimitLen = 0;
+					resetGravity( dv );
+					simulatedGravity[IDX_X] = dv[IDX_X];
+					simulatedGravity[IDX_Y] = dv[IDX_Y];
+					simulatedGravity[IDX_Z] = dv[IDX_Z];
+				}
+			} else
+				gravityAccelLimitLen = -1;
+			if( listener.diffRequested( timeStamp ) ) {
+				vecdiff( dv,simulatedGravity,diff );
+				rotateToEarth( diff,rotatedDiff );
+				listener.diff( timeStamp, diff, rotatedDiff );
+			}
+		} else
+		if( sensorType == SENSORTYPE_GYRO ) {
+			if( previousTimeStamp >= 0L ) {
+				double dt = (double)(timeStamp - previousTimeStamp) / 1000000000.0;
+				double dx = gyroNoiseLimiter( dv[IDX_X]*dt );
+				double dy = gyroNoiseLimiter( dv[IDX_Y]*dt );
+				double dz = gyroNoiseLimiter( dv[IDX_Z]*dt );
+				if( ( dx != 0.0 ) || ( dy != 0.0 ) || ( dz != 0.0 ) ) {
+					attitude.integrate( dx, dy, dz );
+					attitude.toDevice( referenceGravity, simulatedGravity );
+				}
+				if( difflimit() )
+					listener.simulatedGravity( timeStamp, simulatedGravity );
+			}
+			previousTimeStamp = timeStamp;
+		}
+	}
+
+/**
+ * Accepts the measured acceleration as the new gravity estimate. The
+ * attitude is turned along the shortest arc from the predicted to the
+ * measured gravity direction so that it stays a full attitude, and the
+ * reference gravity takes over the measured length.
+ */
+	private void resetGravity( double measured[] ) {
+		attitude.align( simulatedGravity, measured );
+		double measuredLen = Math.sqrt(
+				measured[IDX_X]*measured[IDX_X] +
+				measured[IDX_Y]*measured[IDX_Y] +
+				measured[IDX_Z]*measured[IDX_Z] );
+		double referenceLen = Math.sqrt(
+				referenceGravity[IDX_X]*referenceGravity[IDX_X] +
+				referenceGravity[IDX_Y]*referenceGravity[IDX_Y] +
+				referenceGravity[IDX_Z]*referenceGravity[IDX_Z] );
+		if( referenceLen > 0.0 ) {
+			double scale = measuredLen / referenceLen;
+			referenceGravity[IDX_X] *= scale;
+			referenceGravity[IDX_Y] *= scale;
+			referenceGravity[IDX_Z] *= scale;
+		}
+	}
+
+	public static double gyroNoiseLimiter( double gyroValue ) {
+		double v = gyroValue;
+		if( Math.abs( v ) < GYRO_NOISE_LIMIT )
+			v = 0.0;
+		return v;
+	}
+
+	private void copySimulatedGravity() {
+		previousSimulatedGravity[IDX_X] = simulatedGravity[IDX_X];
+		previousSimulatedGravity[IDX_Y] = simulatedGravity[IDX_Y];
+		previousSimulatedGravity[IDX_Z] = simulatedGravity[IDX_Z];
+	}
+
+	private boolean difflimit() {
+		if( !previousSimulatedGravityValid ) {
+			previousSimulatedGravityValid = true;
+			copySimulatedGravity();
+			return true;
+		} else
+		if( ( Math.abs( previousSimulatedGravity[IDX_X]-simulatedGravity[ IDX_X ]) > SIMULATED_GRAVITY_DIFF_LIMIT) ||
+			( Math.abs( previousSimulatedGravity[IDX_Y]-simulatedGravity[ IDX_Y ]) > SIMULATED_GRAVITY_DIFF_LIMIT) ||
+			( Math.abs( previousSimulatedGravity[IDX_Z]-simulatedGravity[ IDX_Z ]) > SIMULATED_GRAVITY_DIFF_LIMIT) ) {
+				copySimulatedGravity();
+				return true;
+			}
+		return false;
+	}
+
+	public static void vecdiff( double v1[], double v2[], double diff[] ) {
+		diff[IDX_X] = v1[IDX_X] - v2[IDX_X];
+		diff[IDX_Y] = v1[IDX_Y] - v2[IDX_Y];
+		diff[IDX_Z] = v1[IDX_Z] - v2[IDX_Z];
+	}
+
+	private void rotateToEarth( double diff[], double rotatedDiff[] ) {
+		earthRotation.update( simulatedGravity );
+		earthRotation.apply( diff, rotatedDiff );
+	}
+
+	private FusionListener listener;
+	private volatile int state = ENGINESTATES_IDLE;
+	private int calibratingLimit;
+	private int calibratingAccelCounter;
+	private double gravityAccelLen;
+	private double gravityAccelHighLimit;
+	private double gravityAccelLowLimit;
+	private int gravityAccelLimitLen;
+	private double simulatedGravity[] = new double[3];
+	private final double referenceGravity[] = new double[3];
+	private final Attitude attitude = new Attitude();
+	private final EarthRotation earthRotation = new EarthRotation();
+	private double previousSimulatedGravity[] = new double[3];
+	private boolean previousSimulatedGravityValid = false;
+	private int sampleCounter;
+	private long previousTimeStamp;
+// Scratch vectors of the per-sample path, preallocated so that processing
+// a sample in steady state does not allocate
+	private final double dv[] = new double[3];
+	private final double diff[] = new double[3];
+	private final double rotatedDiff[] = new double[3];
+	private final float blockValues[] = new float[3];
+}
@@ -0,0 +1,23 @@
+package aexp.gyroaccel.engine;
+
+/**
+ * Receives the output of a FusionEngine. All calls are made on the thread
+ * that feeds samples into the engine. Vectors passed to the listener are
+ * owned by the engine and reused for the next sample; copy them if they are
+ * needed after the call returns.
+ */
+public interface FusionListener {
+	void stateChanged( int oldState, int newState, int sampleCounter );
+	void sampleCounter( int sampleCounter );
+	void calibratingLimitExtended( int calibratingLimit );
+	void calibrated( double gravity[], double gravityLen );
+/**
+ * Called for every accelerometer sample in measuring state after gravity
+ * has been updated. The earth-frame diff is only computed and passed to
+ * diff() if this returns true, so consumers that throttle their output
+ * should decide here.
+ */
+	boolean diffRequested( long timeStamp );
+	void diff( long timeStamp, double diff[], double rotatedDiff[] );
+	void simulatedGravity( long timeStamp, double gravity[] );
+}
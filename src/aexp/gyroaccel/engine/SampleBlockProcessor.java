@@ -0,0 +1,17 @@
+package aexp.gyroaccel.engine;
+
+/**
+ * Consumes a contiguous block of samples stored column by column. Only the
+ * elements from <code>offset</code> to <code>offset+length-1</code> belong
+ * to the block; the arrays are owned by the caller.
+ */
+public interface SampleBlockProcessor {
+	void processBlock(
+			long timeStamps[],
+			byte sensorTypes[],
+			float xs[],
+			float ys[],
+			float zs[],
+			int offset,
+			int length );
+}
@@ -0,0 +1,113 @@
+package aexp.gyroaccel.engine;
+
+/**
+ * Single producer, single consumer ring buffer of sensor samples. Samples
+ * are stored in primitive columns so the producer never allocates and the
+ * consumer can process them in contiguous blocks. When the ring is full new
+ * samples are dropped and counted; the producer never blocks.
+ */
+public class SampleRing {
+	public SampleRing( int capacity ) {
+		if( ( capacity <= 0 ) || ( ( capacity & ( capacity - 1 ) ) != 0 ) )
+			throw new IllegalArgumentException( "Capacity must be a power of two: "+capacity );
+		this.capacity = capacity;
+		mask = capacity - 1;
+		timeStamps = new long[capacity];
+		sensorTypes = new byte[capacity];
+		xs = new float[capacity];
+		ys = new float[capacity];
+		zs = new float[capacity];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+/**
+ * Producer side. Returns false if the ring was full and the sample has been
+ * dropped.
+ */
+	public boolean put( long timeStamp, int sensorType, float x, float y, float z ) {
+		long h = head;
+		if( h - tail >= capacity ) {
+			++dropped;
+			return false;
+		}
+		int i = (int)h & mask;
+		timeStamps[i] = timeStamp;
+		sensorTypes[i] = (byte)sensorType;
+		xs[i] = x;
+		ys[i] = y;
+		zs[i] = z;
+		head = h + 1;
+		if( consumerWaiting ) {
+			synchronized( lock ) {
+				lock.notify();
+			}
+		}
+		return true;
+	}
+
+/**
+ * Consumer side. Hands at most <code>maxBlock</code> queued samples to the
+ * processor, in one or two contiguous blocks depending on wrap-around, and
+ * returns the number of samples consumed.
+ */
+	public int drain( SampleBlockProcessor processor, int maxBlock ) {
+		long t = tail;
+		long available = head - t;
+		int n = available < maxBlock ? (int)available : maxBlock;
+		if( n == 0 )
+			return 0;
+		int start = (int)t & mask;
+		int first = Math.min( n, capacity - start );
+		processor.processBlock( timeStamps, sensorTypes, xs, ys, zs, start, first );
+		if( first < n )
+			processor.processBlock( timeStamps, sensorTypes, xs, ys, zs, 0, n - first );
+		tail = t + n;
+		return n;
+	}
+
+/**
+ * Consumer side. Waits until samples are available or the timeout elapses.
+ */
+	public void await( long timeoutMillis ) throws InterruptedException {
+		if( head != tail )
+			return;
+		synchronized( lock ) {
+			consumerWaiting = true;
+			try {
+				if( head == tail )
+					lock.wait( timeoutMillis );
+			} finally {
+				consumerWaiting = false;
+			}
+		}
+	}
+
+	public int size() {
+		return (int)( head - tail );
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	public void clear() {
+		tail = head;
+		dropped = 0L;
+	}
+
+	private final int capacity;
+	private final int mask;
+	private final long timeStamps[];
+	private final byte sensorTypes[];
+	private final float xs[];
+	private final float ys[];
+	private final float zs[];
+	private final Object lock = new Object();
+	private volatile long head = 0L;
+	private volatile long tail = 0L;
+	private volatile long dropped = 0L;
+	private volatile boolean consumerWaiting = false;
+}
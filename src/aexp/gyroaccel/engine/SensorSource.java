@@ -0,0 +1,17 @@
+package aexp.gyroaccel.engine;
+
+/**
+ * Producer of the samples of a sampling session. Between start() and
+ * stop() the source is the single producer of the ring; it delivers from
+ * its own thread or from the sensor callbacks. Timestamps are in
+ * nanoseconds like SensorEvent timestamps.
+ */
+public interface SensorSource {
+	void start( SampleRing ring );
+
+/**
+ * Stops delivering samples. No sample is put into the ring once stop()
+ * returns.
+ */
+	void stop();
+}
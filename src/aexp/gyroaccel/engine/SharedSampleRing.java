@@ -0,0 +1,324 @@
+package aexp.gyroaccel.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring of samples in a buffer shared between processes, normally a memory
+ * mapped file. One Writer publishes samples, any number of Readers in
+ * other processes follow it without calls into the writer's process; a
+ * reader that falls behind by more than the capacity loses the overwritten
+ * samples and is told how many.
+ * <p>
+ * Layout, little endian: a HEADER_SIZE header with MAGIC, VERSION, the
+ * capacity in records, the published sequence and the closed flag, then
+ * capacity records of RECORD_SIZE bytes: stamp, timestamp, CaptureFormat
+ * channel, x, y, z and a checksum of the stamp and the payload. Sample n
+ * (counting from 0) goes to record n % capacity. Its stamp is -(n+1) while
+ * the writer fills the record and n+1 once it is complete. A reader
+ * accepts a copy if it sees the same stamp n+1 before and after copying
+ * and the checksum matches the stamp and the payload it copied. The
+ * published sequence is the count of complete samples. The writer sets
+ * the closed flag when it stops for good; it never reuses a ring after
+ * that, so a reader finishes the published samples and asks for the ring
+ * that replaced it.
+ * <p>
+ * Java 6 has no ordered accesses to a ByteBuffer. Both sides separate the
+ * stamps from the payload with an access to a volatile field, but nothing
+ * guarantees that the barriers of a field order the mapped memory too;
+ * the checksum catches a copy mixing two laps if they do not.
+ */
+public class SharedSampleRing {
+	public static final int MAGIC = 0x53525947;	// "GYRS"
+	public static final int VERSION = 3;
+	public static final int HEADER_SIZE = 64;
+	public static final int RECORD_SIZE = 8 + 8 + 4 + 3*4 + 8;
+	static final int OFFSET_MAGIC = 0;
+	static final int OFFSET_VERSION = 4;
+	static final int OFFSET_CAPACITY = 8;
+	static final int OFFSET_SEQUENCE = 16;
+	static final int OFFSET_CLOSED = 24;
+	static final int RECORD_STAMP = 0;
+	static final int RECORD_TIMESTAMP = 8;
+	static final int RECORD_CHANNEL = 16;
+	static final int RECORD_VALUES = 20;
+	static final int RECORD_CHECKSUM = 32;
+// Largest capacity whose ring size fits an int
+	static final int MAX_CAPACITY = ( Integer.MAX_VALUE - HEADER_SIZE ) / RECORD_SIZE;
+// Copies of a record in reach of the writer that may fail before it is
+// given up as lost
+	static final int MAX_COPY_ATTEMPTS = 4;
+
+	static boolean isValidCapacity( int capacity ) {
+		return ( capacity > 0 ) &&
+			( capacity <= MAX_CAPACITY ) &&
+			( ( capacity & ( capacity - 1 ) ) == 0 );
+	}
+
+	public static int getSize( int capacity ) {
+		return HEADER_SIZE + capacity * RECORD_SIZE;
+	}
+
+/**
+ * Maps a file of the size of a ring with the given capacity for writing,
+ * creating or truncating it.
+ */
+	public static MappedByteBuffer mapForWriting( File file, int capacity ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			raf.setLength( 0L );
+			raf.setLength( getSize( capacity ) );
+			return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0L, getSize( capacity ) );
+		} finally {
+			raf.close();
+		}
+	}
+
+/**
+ * Maps the whole file behind the stream read only. The mapping stays valid
+ * after the stream is closed.
+ */
+	public static MappedByteBuffer mapForReading( FileInputStream in ) throws IOException {
+		FileChannel channel = in.getChannel();
+		return channel.map( FileChannel.MapMode.READ_ONLY, 0L, channel.size() );
+	}
+
+// Mixes every bit of the stamp and the payload, so that a copy taking any
+// field from another lap fails
+	static long checksum( long stamp, long timeStamp, int channel, int x, int y, int z ) {
+		long h = stamp * 0x9E3779B97F4A7C15L;
+		h = ( h ^ ( h >>> 32 ) ^ timeStamp ) * 0xC2B2AE3D27D4EB4FL;
+		h = ( h ^ ( h >>> 29 ) ^ ( ( (long)channel << 32 ) | ( x & 0xFFFFFFFFL ) ) ) * 0x165667B19E3779F9L;
+		h = ( h ^ ( h >>> 32 ) ^ ( ( (long)y << 32 ) | ( z & 0xFFFFFFFFL ) ) ) * 0x9E3779B97F4A7C15L;
+		return h ^ ( h >>> 29 );
+	}
+
+	public static class Writer {
+/**
+ * The capacity must be a power of two no larger than MAX_CAPACITY and the
+ * buffer at least getSize( capacity ) bytes long.
+ */
+		public Writer( ByteBuffer buffer, int capacity ) {
+			if( !isValidCapacity( capacity ) )
+				throw new IllegalArgumentException( "Capacity must be a power of two up to "+MAX_CAPACITY+": "+capacity );
+			if( buffer.capacity() < getSize( capacity ) )
+				throw new IllegalArgumentException( "Buffer too small for "+capacity+" records: "+buffer.capacity() );
+			this.buffer = buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+			mask = capacity - 1;
+			for( int i = 0 ; i < getSize( capacity ) ; i += 8 )
+				this.buffer.putLong( i, 0L );
+			this.buffer.putInt( OFFSET_VERSION, VERSION );
+			this.buffer.putInt( OFFSET_CAPACITY, capacity );
+			fence = 0;
+// Readers accept the ring once the magic is there
+			this.buffer.putInt( OFFSET_MAGIC, MAGIC );
+		}
+
+		public void put( long timeStamp, int channel, float x, float y, float z ) {
+			if( closed )
+				return;
+			long stamp = sequence + 1L;
+			int record = HEADER_SIZE + (int)( sequence & mask ) * RECORD_SIZE;
+			buffer.putLong( record + RECORD_STAMP, -stamp );
+			fence = 0;
+			buffer.putLong( record + RECORD_TIMESTAMP, timeStamp );
+			buffer.putInt( record + RECORD_CHANNEL, channel );
+			int xBits = Float.floatToRawIntBits( x );
+			int yBits = Float.floatToRawIntBits( y );
+			int zBits = Float.floatToRawIntBits( z );
+			buffer.putInt( record + RECORD_VALUES, xBits );
+			buffer.putInt( record + RECORD_VALUES + 4, yBits );
+			buffer.putInt( record + RECORD_VALUES + 8, zBits );
+			buffer.putLong( record + RECORD_CHECKSUM, checksum( stamp, timeStamp, channel, xBits, yBits, zBits ) );
+			fence = 0;
+			buffer.putLong( record + RECORD_STAMP, stamp );
+			buffer.putLong( OFFSET_SEQUENCE, stamp );
+			fence = 0;
+			sequence = stamp;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+/**
+ * Tells the readers that no samples follow the published ones.
+ */
+		public void close() {
+			closed = true;
+			fence = 0;
+			buffer.putInt( OFFSET_CLOSED, 1 );
+			fence = 0;
+		}
+
+		private final ByteBuffer buffer;
+		private final int mask;
+		private long sequence = 0L;
+		private volatile boolean closed = false;
+		private volatile int fence;
+	}
+
+	public static class Reader {
+/**
+ * Starts reading at the oldest sample still in the ring.
+ */
+		public Reader( ByteBuffer buffer ) throws IOException {
+			this.buffer = buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+			if( this.buffer.capacity() < HEADER_SIZE )
+				throw new IOException( "Not a sample ring, "+this.buffer.capacity()+" bytes" );
+			if( this.buffer.getInt( OFFSET_MAGIC ) != MAGIC )
+				throw new IOException( "Not a sample ring, bad magic" );
+			int version = this.buffer.getInt( OFFSET_VERSION );
+			if( version != VERSION )
+				throw new IOException( "Unsupported sample ring version "+version );
+			capacity = this.buffer.getInt( OFFSET_CAPACITY );
+			if( !isValidCapacity( capacity ) )
+				throw new IOException( "Bad sample ring capacity "+capacity );
+			if( this.buffer.capacity() < getSize( capacity ) )
+				throw new IOException( "Sample ring truncated, "+this.buffer.capacity()+" bytes" );
+			mask = capacity - 1;
+			nextSequence = Math.max( getPublishedSequence() - capacity, 0L );
+		}
+
+		public int getCapacity() {
+			return capacity;
+		}
+
+/**
+ * The number of samples written so far.
+ */
+		public long getPublishedSequence() {
+			long sequence = buffer.getLong( OFFSET_SEQUENCE );
+			int f = fence;
+			return sequence;
+		}
+
+		public long getNextSequence() {
+			return nextSequence;
+		}
+
+/**
+ * True once the writer has stopped. Samples published before can still be
+ * read; check this before getPublishedSequence() so that none is missed.
+ */
+		public boolean isClosed() {
+			boolean closed = buffer.getInt( OFFSET_CLOSED ) != 0;
+			int f = fence;
+			return closed;
+		}
+
+/**
+ * Samples overwritten before this reader got to them.
+ */
+		public long getSamplesLost() {
+			return samplesLost;
+		}
+
+/**
+ * Copies up to maxCount of the samples not read yet, oldest first, and
+ * returns how many were copied. Values are stored as x, y, z triplets.
+ */
+		public int read( long timeStamps[], byte channels[], float values[], int maxCount ) {
+			long published = getPublishedSequence();
+			int count = 0;
+			int attempts = 0;
+			while( ( count < maxCount ) && ( nextSequence < published ) ) {
+				if( published - nextSequence > capacity )
+					skipTo( published - capacity );
+				if( readRecord( nextSequence ) ) {
+					timeStamps[count] = timeStamp;
+					channels[count] = (byte)channel;
+					int base = count * 3;
+					values[base] = x;
+					values[base+1] = y;
+					values[base+2] = z;
+					++count;
+					++nextSequence;
+					attempts = 0;
+					continue;
+				}
+				published = getPublishedSequence();
+// Overwritten while copying, the writer is a lap ahead now
+				if( published - nextSequence >= capacity )
+					skipTo( Math.max( published - capacity + 1, nextSequence + 1 ) );
+				else
+// A torn copy of a complete record, or a corrupt one
+				if( ++attempts == MAX_COPY_ATTEMPTS ) {
+					skipTo( nextSequence + 1 );
+					attempts = 0;
+				}
+			}
+			return count;
+		}
+
+/**
+ * Finds the most recent sample of a channel among the samples in the ring
+ * without moving the read position. On success the values are stored into
+ * xyz and the timestamp is available from getLatestTimeStamp().
+ */
+		public boolean readLatest( int channel, float xyz[] ) {
+			long published = getPublishedSequence();
+			long oldest = Math.max( published - capacity, 0L );
+			for( long sequence = published - 1L ; sequence >= oldest ; --sequence ) {
+				if( !readRecord( sequence ) )
+					return false;
+				if( this.channel == channel ) {
+					xyz[0] = x;
+					xyz[1] = y;
+					xyz[2] = z;
+					latestTimeStamp = timeStamp;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public long getLatestTimeStamp() {
+			return latestTimeStamp;
+		}
+
+		private void skipTo( long sequence ) {
+			samplesLost += sequence - nextSequence;
+			nextSequence = sequence;
+		}
+
+		private boolean readRecord( long sequence ) {
+			int record = HEADER_SIZE + (int)( sequence & mask ) * RECORD_SIZE;
+			long stamp = buffer.getLong( record + RECORD_STAMP );
+			int f = fence;
+			timeStamp = buffer.getLong( record + RECORD_TIMESTAMP );
+			channel = buffer.getInt( record + RECORD_CHANNEL );
+			int xBits = buffer.getInt( record + RECORD_VALUES );
+			int yBits = buffer.getInt( record + RECORD_VALUES + 4 );
+			int zBits = buffer.getInt( record + RECORD_VALUES + 8 );
+			long sum = buffer.getLong( record + RECORD_CHECKSUM );
+			f = fence;
+			x = Float.intBitsToFloat( xBits );
+			y = Float.intBitsToFloat( yBits );
+			z = Float.intBitsToFloat( zBits );
+			return ( stamp == sequence + 1L ) &&
+					( buffer.getLong( record + RECORD_STAMP ) == stamp ) &&
+					( sum == checksum( stamp, timeStamp, channel, xBits, yBits, zBits ) );
+		}
+
+		private final ByteBuffer buffer;
+		private final int capacity;
+		private final int mask;
+		private long nextSequence;
+		private long samplesLost = 0L;
+		private long latestTimeStamp;
+// The record copied by readRecord()
+		private long timeStamp;
+		private int channel;
+		private float x;
+		private float y;
+		private float z;
+		private volatile int fence;
+	}
+}
@@ -0,0 +1,300 @@
+package aexp.gyroaccel.engine;
+
+import java.util.Random;
+
+/**
+ * Generates accelerometer and gyroscope samples in real time, for running
+ * the sampling pipeline without sensors and at rates well beyond them.
+ * Each sensor is scheduled at its own rate against System.nanoTime(), and
+ * the sample timestamps are the scheduled times, so that the consumer can
+ * take the age of a sample as its latency. A late wakeup releases every
+ * sample that fell due at once, so the rates hold under load.
+ * <p>
+ * The device lies still for STILL_SAMPLES samples so that the engine can
+ * calibrate, then moves according to the motion profile. The samples can
+ * be disturbed like real sensor streams: gaussian noise on the values,
+ * timestamp jitter as a fraction of the period, gaps where a sensor
+ * delivers nothing for a while, and pairs of samples of the same sensor
+ * delivered out of order. Generation is deterministic for a given seed
+ * apart from the pacing.
+ * <p>
+ * The setters must be called before start().
+ */
+public class SyntheticSensorSource implements SensorSource {
+	public static final int PROFILE_STILL = 0;
+	public static final int PROFILE_TILT = 1;
+	public static final int PROFILE_SHAKE = 2;
+	public static final int PROFILE_WALK = 3;
+	public static final String PROFILE_NAMES[] = { "still", "tilt", "shake", "walk" };
+	public static final int STILL_SAMPLES = FusionEngine.CALIBRATING_LIMIT + 200;
+	public static final double GRAVITY = 9.81;
+	public static final double DEFAULT_ACCEL_NOISE = 0.04;
+	public static final double DEFAULT_GYRO_NOISE = 0.015;
+	static final int ACCEL = 0;
+	static final int GYRO = 1;
+	static final long MIN_SLEEP_NANOS = 50000L;
+
+/**
+ * Rates are in samples per second.
+ */
+	public SyntheticSensorSource( int profile, double accelRate, double gyroRate ) {
+		if( ( accelRate <= 0.0 ) || ( gyroRate <= 0.0 ) )
+			throw new IllegalArgumentException( "Rates must be positive: "+accelRate+", "+gyroRate );
+		this.profile = profile;
+		periods[ACCEL] = (long)( 1e9 / accelRate );
+		periods[GYRO] = (long)( 1e9 / gyroRate );
+		stillSeconds = STILL_SAMPLES / ( accelRate + gyroRate );
+	}
+
+	public static int getProfile( String profileName ) {
+		for( int i = 0 ; i < PROFILE_NAMES.length ; ++i )
+			if( PROFILE_NAMES[i].equals( profileName ) )
+				return i;
+		return -1;
+	}
+
+	public void setNoise( double accelNoise, double gyroNoise ) {
+		noise[ACCEL] = accelNoise;
+		noise[GYRO] = gyroNoise;
+	}
+
+/**
+ * Standard deviation of the timestamp jitter as a fraction of the period.
+ */
+	public void setJitter( double jitter ) {
+		this.jitter = jitter;
+	}
+
+/**
+ * Every sample starts a gap with the given probability; the sensor then
+ * delivers nothing for gapMillis.
+ */
+	public void setGaps( double gapProbability, long gapMillis ) {
+		this.gapProbability = gapProbability;
+		gapNanos = gapMillis * 1000000L;
+	}
+
+/**
+ * Every sample is swapped with the next sample of its sensor with the
+ * given probability.
+ */
+	public void setOutOfOrder( double outOfOrderProbability ) {
+		this.outOfOrderProbability = outOfOrderProbability;
+	}
+
+	public void setSeed( long seed ) {
+		random = new Random( seed );
+	}
+
+/**
+ * Stops generating after the given number of samples, 0 for no limit.
+ */
+	public void setSampleLimit( long sampleLimit ) {
+		this.sampleLimit = sampleLimit;
+	}
+
+	public void start( SampleRing ring ) {
+		this.ring = ring;
+		running = true;
+		generatorThread = new GeneratorThread();
+		generatorThread.start();
+	}
+
+	public void stop() {
+		GeneratorThread thread = generatorThread;
+		if( thread == null )
+			return;
+		generatorThread = null;
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch( InterruptedException ex ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+/**
+ * Returns true once the sample limit has been reached.
+ */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public long getSamplesGenerated() {
+		return samplesGenerated;
+	}
+
+/**
+ * Generated samples the ring had no room for.
+ */
+	public long getSamplesDropped() {
+		return samplesDropped;
+	}
+
+/**
+ * Samples left out by gaps.
+ */
+	public long getSamplesSkipped() {
+		return samplesSkipped;
+	}
+
+	public long getSamplesReordered() {
+		return samplesReordered;
+	}
+
+/**
+ * The largest delay between the scheduled time of a sample and its
+ * delivery.
+ */
+	public long getMaxLagNanos() {
+		return maxLagNanos;
+	}
+
+	class GeneratorThread extends Thread {
+		GeneratorThread() {
+			super( "SyntheticSensorSource" );
+		}
+
+		public void run() {
+			long start = System.nanoTime();
+			dues[ACCEL] = start;
+			dues[GYRO] = start + periods[GYRO] / 2;
+			try {
+				while( running ) {
+					int sensor = dues[ACCEL] <= dues[GYRO] ? ACCEL : GYRO;
+					long due = dues[sensor];
+					long wait = due - System.nanoTime();
+					if( wait >= MIN_SLEEP_NANOS )
+						Thread.sleep( wait / 1000000L, (int)( wait % 1000000L ) );
+					long lag = System.nanoTime() - due;
+					if( lag > maxLagNanos )
+						maxLagNanos = lag;
+					dues[sensor] = due + periods[sensor];
+					if( ( gapProbability > 0.0 ) && ( random.nextDouble() < gapProbability ) ) {
+						long skipped = gapNanos / periods[sensor];
+						dues[sensor] += skipped * periods[sensor];
+						samplesSkipped += skipped + 1;
+						continue;
+					}
+					generate( sensor, due, ( due - start ) / 1e9 );
+					if( ( sampleLimit > 0L ) && ( samplesGenerated >= sampleLimit ) ) {
+						finished = true;
+						break;
+					}
+				}
+			} catch( InterruptedException ex ) {
+// Stopped
+			}
+		}
+	}
+
+	private void generate( int sensor, long due, double t ) {
+		long timeStamp = due;
+		if( jitter > 0.0 )
+			timeStamp += (long)( random.nextGaussian() * jitter * periods[sensor] );
+		float v[] = values;
+		motion( sensor, t, v );
+		for( int i = 0 ; i < 3 ; ++i )
+			v[i] += (float)( random.nextGaussian() * noise[sensor] );
+		int sensorType = sensor == ACCEL ? FusionEngine.SENSORTYPE_ACCEL : FusionEngine.SENSORTYPE_GYRO;
+		if( held[sensor] ) {
+// Deliver the newer sample ahead of the held one
+			held[sensor] = false;
+			put( timeStamp, sensorType, v[0], v[1], v[2] );
+			float h[] = heldValues[sensor];
+			put( heldTimeStamps[sensor], sensorType, h[0], h[1], h[2] );
+			++samplesReordered;
+			return;
+		}
+		if( ( outOfOrderProbability > 0.0 ) && ( random.nextDouble() < outOfOrderProbability ) ) {
+			held[sensor] = true;
+			heldTimeStamps[sensor] = timeStamp;
+			System.arraycopy( v, 0, heldValues[sensor], 0, 3 );
+			return;
+		}
+		put( timeStamp, sensorType, v[0], v[1], v[2] );
+	}
+
+	private void put( long timeStamp, int sensorType, float x, float y, float z ) {
+		++samplesGenerated;
+		if( !ring.put( timeStamp, sensorType, x, y, z ) )
+			++samplesDropped;
+	}
+
+// Noise-free values of the sensor at t seconds after the start. The device
+// rotates around its y axis by angle(t) and the gyroscope reports the
+// derivative of that angle.
+	private void motion( int sensor, double t, float v[] ) {
+		double motionT = t - stillSeconds;
+		double angle = 0.0;
+		double rate = 0.0;
+		double ax = 0.0;
+		double ay = 0.0;
+		double az = 0.0;
+		if( motionT > 0.0 )
+			switch( profile ) {
+			case PROFILE_TILT: {
+// 0.6 rad/s back and forth with a 4 s period
+				double w = 2.0 * Math.PI / 4.0;
+				rate = 0.6 * Math.sin( w * motionT );
+				angle = 0.6 * ( 1.0 - Math.cos( w * motionT ) ) / w;
+				break;
+			}
+
+			case PROFILE_SHAKE: {
+// 6 Hz along x with the wrist rocking at the same rate
+				double w = 2.0 * Math.PI * 6.0;
+				ax = 8.0 * Math.sin( w * motionT );
+				rate = 1.5 * Math.cos( w * motionT );
+				angle = 1.5 * Math.sin( w * motionT ) / w;
+				break;
+			}
+
+			case PROFILE_WALK: {
+// Steps at 1.8 Hz bounce vertically, the body sways at half that
+				double w = 2.0 * Math.PI * 0.9;
+				az = 2.5 * Math.sin( 2.0 * w * motionT );
+				ay = 0.25 * Math.sin( w * motionT );
+				rate = 0.15 * Math.cos( w * motionT );
+				angle = 0.15 * Math.sin( w * motionT ) / w;
+				break;
+			}
+			}
+		if( sensor == ACCEL ) {
+			v[0] = (float)( GRAVITY * Math.sin( angle ) + ax );
+			v[1] = (float)ay;
+			v[2] = (float)( GRAVITY * Math.cos( angle ) + az );
+		} else {
+			v[0] = 0.0f;
+			v[1] = (float)rate;
+			v[2] = 0.0f;
+		}
+	}
+
+	private final int profile;
+	private final long periods[] = new long[2];
+	private final double stillSeconds;
+	private final double noise[] = { DEFAULT_ACCEL_NOISE, DEFAULT_GYRO_NOISE };
+	private double jitter = 0.0;
+	private double gapProbability = 0.0;
+	private long gapNanos = 0L;
+	private double outOfOrderProbability = 0.0;
+	private Random random = new Random( 0L );
+	private long sampleLimit = 0L;
+	private SampleRing ring;
+	private GeneratorThread generatorThread;
+// Generator thread state
+	private final long dues[] = new long[2];
+	private final float values[] = new float[3];
+	private final boolean held[] = new boolean[2];
+	private final long heldTimeStamps[] = new long[2];
+	private final float heldValues[][] = new float[2][3];
+	private volatile boolean running = false;
+	private volatile boolean finished = false;
+	private volatile long samplesGenerated = 0L;
+	private volatile long samplesDropped = 0L;
+	private volatile long samplesSkipped = 0L;
+	private volatile long samplesReordered = 0L;
+	private volatile long maxLagNanos = 0L;
+}